@@ -25,6 +25,14 @@ package de.ingrid.iplug.dsc;
 import de.ingrid.admin.IConfig;
 import de.ingrid.admin.command.PlugdescriptionCommandObject;
 import de.ingrid.iplug.dsc.index.DatabaseConnection;
+import de.ingrid.iplug.dsc.utils.BwstrGeometryIndex;
+import de.ingrid.iplug.dsc.utils.BwstrLocCache;
+import de.ingrid.iplug.dsc.utils.BwstrLocUtil;
+import de.ingrid.iplug.dsc.utils.CodelistCache;
+import de.ingrid.iplug.dsc.utils.DatabaseConnectionUtils;
+import de.ingrid.iplug.dsc.utils.IgcProfileCache;
+import de.ingrid.iplug.dsc.utils.SQLUtils;
+import de.ingrid.iplug.dsc.utils.ScriptEngine;
 import de.ingrid.utils.PlugDescription;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -57,6 +65,63 @@ public class Configuration implements IConfig {
     @Value("${mapper.index.docSql:}")
     public String indexMapperSql;
 
+    @Value("${mapper.index.docCountSql:}")
+    public String indexMapperCountSql;
+
+    @Value("${mapper.index.streaming:false}")
+    public boolean indexStreaming;
+
+    @Value("${mapper.index.fetchSize:1000}")
+    public int indexFetchSize;
+
+    @Value("${mapper.index.hierarchySql:}")
+    public String indexHierarchySql;
+
+    @Value("${mapper.index.hierarchyMemoryBudget:67108864}")
+    public long indexHierarchyMemoryBudget;
+
+    @Value("${mapper.index.changedSinceSql:}")
+    public String indexChangedSinceSql;
+
+    @Value("${mapper.index.delta.stateFile:index-delta.state}")
+    public String indexDeltaStateFile;
+
+    @Value("${mapper.index.delta.timestampFormat:yyyyMMddHHmmssSSS}")
+    public String indexDeltaTimestampFormat;
+
+    @Value("${mapper.index.delta.overlap:60000}")
+    public long indexDeltaOverlap;
+
+    @Value("${mapper.index.delta.interval:0}")
+    public long indexDeltaInterval;
+
+    @Value("${mapper.index.checkpoint.file:index-checkpoint.state}")
+    public String indexCheckpointFile;
+
+    @Value("${mapper.index.checkpoint.interval:1000}")
+    public int indexCheckpointInterval;
+
+    @Value("${mapper.index.connectionReuse.maxRecords:0}")
+    public int indexConnectionReuseMaxRecords;
+
+    @Value("${mapper.index.connectionReuse.maxMillis:60000}")
+    public long indexConnectionReuseMaxMillis;
+
+    @Value("${mapper.index.partition.count:0}")
+    public int indexPartitionCount;
+
+    @Value("${mapper.index.partition.strategy:hash}")
+    public String indexPartitionStrategy;
+
+    @Value("${mapper.index.partition.table:dsc_index_partition}")
+    public String indexPartitionTable;
+
+    @Value("${mapper.index.partition.leaseMillis:600000}")
+    public long indexPartitionLeaseMillis;
+
+    @Value("${mapper.index.partition.nodeId:}")
+    public String indexPartitionNodeId;
+
     @Value("${mapper.index.fieldId:}")
     public String indexFieldId;
 
@@ -66,9 +131,79 @@ public class Configuration implements IConfig {
     @Value("${mapper.index.beans:[]}")
     public String indexMapper;
 
+    @Value("${mapper.igcProfile.checkInterval:60000}")
+    public long igcProfileCheckInterval;
+
+    @Value("${mapper.script.reloadInterval:10000}")
+    public long scriptReloadInterval;
+
+    @Value("${mapper.sql.statementCacheSize:50}")
+    public int sqlStatementCacheSize;
+
+    @Value("${mapper.sql.poolMaxStatements:0}")
+    public int sqlPoolMaxStatements;
+
+    @Value("${mapper.codelist.refreshInterval:3600000}")
+    public long codelistRefreshInterval;
+
+    @Value("${mapper.bwstrLoc.cache.size:10000}")
+    public int bwstrLocCacheSize;
+
+    @Value("${mapper.bwstrLoc.cache.dir:}")
+    public String bwstrLocCacheDir;
+
+    @Value("${mapper.bwstrLoc.cache.timeToLive:604800000}")
+    public long bwstrLocCacheTimeToLive;
+
+    @Value("${mapper.bwstrLoc.maxConcurrentRequests:4}")
+    public int bwstrLocMaxConcurrentRequests;
+
+    @Value("${mapper.bwstrLoc.maxRequestsPerSecond:0}")
+    public int bwstrLocMaxRequestsPerSecond;
+
+    @Value("${mapper.bwstrLoc.batchSize:50}")
+    public int bwstrLocBatchSize;
+
+    @Value("${mapper.bwstrLoc.batchWindow:0}")
+    public long bwstrLocBatchWindow;
+
+    @Value("${mapper.bwstrLoc.geometryFile:}")
+    public String bwstrLocGeometryFile;
+
+    @Value("${mapper.bwstrLoc.httpClient:commons}")
+    public String bwstrLocHttpClient;
+
+    @Value("${mapper.bwstrLoc.connectTimeout:10000}")
+    public int bwstrLocConnectTimeout;
+
+    @Value("${mapper.bwstrLoc.requestTimeout:30000}")
+    public int bwstrLocRequestTimeout;
+
+    @Value("${mapper.index.workers:1}")
+    public int indexWorkers;
+
+    @Value("${mapper.index.queueSize:100}")
+    public int indexQueueSize;
+
+    @Value("${mapper.index.ordered:true}")
+    public boolean indexOrdered;
+
     @Override
     public void initialize() {
-
+        IgcProfileCache.getInstance().setCheckInterval( igcProfileCheckInterval );
+        ScriptEngine.setReloadInterval( scriptReloadInterval );
+        SQLUtils.setStatementCacheSize( sqlStatementCacheSize );
+        CodelistCache.getInstance().setRefreshInterval( codelistRefreshInterval );
+        DatabaseConnectionUtils.getInstance().setMaxPooledStatements( sqlPoolMaxStatements );
+        BwstrLocCache.getInstance().setMaxEntries( bwstrLocCacheSize );
+        BwstrLocCache.getInstance().setDirectory( bwstrLocCacheDir );
+        BwstrLocCache.getInstance().setTimeToLive( bwstrLocCacheTimeToLive );
+        BwstrLocUtil.setMaxConcurrentRequests( bwstrLocMaxConcurrentRequests );
+        BwstrLocUtil.setMaxRequestsPerSecond( bwstrLocMaxRequestsPerSecond );
+        BwstrLocUtil.setMaxBatchSize( bwstrLocBatchSize );
+        BwstrLocUtil.setBatchWindow( bwstrLocBatchWindow );
+        BwstrLocUtil.setDefaultHttpClient( BwstrLocUtil.createHttpClient( bwstrLocHttpClient, bwstrLocConnectTimeout, bwstrLocRequestTimeout ) );
+        BwstrGeometryIndex.getInstance().load( bwstrLocGeometryFile );
     }
 
     @Override
@@ -32,7 +32,10 @@ import de.ingrid.elasticsearch.search.IndexImpl;
 import de.ingrid.iplug.HeartBeatPlug;
 import de.ingrid.iplug.IPlugdescriptionFieldFilter;
 import de.ingrid.iplug.PlugDescriptionFieldFilters;
+import de.ingrid.iplug.dsc.index.DscDocumentProducer;
+import de.ingrid.iplug.dsc.index.DscIndexUpdater;
 import de.ingrid.iplug.dsc.record.DscRecordCreator;
+import de.ingrid.iplug.dsc.utils.CodelistCache;
 import de.ingrid.utils.*;
 import de.ingrid.utils.dsc.Record;
 import de.ingrid.utils.metadata.IMetadataInjector;
@@ -51,6 +54,8 @@ import org.springframework.context.annotation.FilterType;
 import org.springframework.context.annotation.ImportResource;
 
 import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 
 /**
  * This iPlug connects to the iBus delivers search results based on a index.
@@ -83,6 +88,12 @@ public class DscSearchPlug extends HeartBeatPlug implements IRecordLoader {
     @Autowired
     private IndexManager indexManager;
 
+    @Autowired
+    private DscIndexUpdater indexUpdater;
+
+    @Autowired
+    private DscDocumentProducer dscDocumentProducer;
+
     private DscRecordCreator dscRecordProducer;
 
     private final IndexImpl _indexSearcher;
@@ -218,8 +229,38 @@ public class DscSearchPlug extends HeartBeatPlug implements IRecordLoader {
             indexScheduler.triggerManually();
             doc = new IngridDocument();
             doc.put("success", true);
+        } else if ("indexDelta".equals(info.getMethod()) || "indexDeltaFull".equals(info.getMethod())) {
+            // update the existing index in place, "indexDeltaFull" maps all records
+            indexUpdater.triggerManually("indexDeltaFull".equals(info.getMethod()));
+            doc = new IngridDocument();
+            doc.put("success", true);
+        } else if ("indexPartitioned".equals(info.getMethod())) {
+            // all nodes have to use the same run id, defaults to the current day
+            String runId = info.getParameter() != null
+                    ? info.getParameter().toString()
+                    : new SimpleDateFormat("yyyyMMdd").format(new Date());
+            indexUpdater.triggerPartitioned(runId);
+            doc = new IngridDocument();
+            doc.put("success", true);
+            doc.put("runId", runId);
+        } else if ("pauseIndexing".equals(info.getMethod())) {
+            dscDocumentProducer.pause();
+            doc = new IngridDocument();
+            doc.put("success", true);
+            doc.put("paused", dscDocumentProducer.isPaused());
+        } else if ("resumeIndexing".equals(info.getMethod())) {
+            dscDocumentProducer.resume();
+            doc = new IngridDocument();
+            doc.put("success", true);
+            doc.put("paused", dscDocumentProducer.isPaused());
+        } else if ("refreshCodelists".equals(info.getMethod())) {
+            // e.g. after the syslists were changed in the catalog
+            CodelistCache.getInstance().invalidate();
+            doc = new IngridDocument();
+            doc.put("success", true);
+        } else {
+            log.warn("The following method is not supported: " + info.getMethod());
         }
-        log.warn("The following method is not supported: " + info.getMethod());
 
         return doc;
     }
@@ -22,7 +22,9 @@
  */
 package de.ingrid.iplug.dsc;
 
+import de.ingrid.elasticsearch.IndexManager;
 import de.ingrid.iplug.dsc.index.DscDocumentProducer;
+import de.ingrid.iplug.dsc.index.DscIndexUpdater;
 import de.ingrid.iplug.dsc.index.mapper.IRecordMapper;
 import de.ingrid.iplug.dsc.index.mapper.IdfProducerDocumentMapper;
 import de.ingrid.iplug.dsc.index.mapper.IgcProfileDocumentMapper;
@@ -76,6 +78,7 @@ public class SpringConfiguration {
         List<Object> scripts = doc.getArrayList( "scripts" );
         Resource[] mappingScripts = convertToMappingScriptResources( scripts );
         mapper.setMappingScripts( mappingScripts );
+        mapper.setLibraryScripts( convertToMappingScriptResources( doc.getArrayList( "libraries" ) ) );
         Boolean compile = (Boolean) doc.get( "compile" );
         mapper.setCompile( compile == null ? true : compile );
         return mapper;
@@ -86,6 +89,7 @@ public class SpringConfiguration {
         List<Object> scripts = doc.getArrayList( "scripts" );
         Resource[] mappingScripts = convertToMappingScriptResources( scripts );
         mapper.setMappingScripts( mappingScripts );
+        mapper.setLibraryScripts( convertToMappingScriptResources( doc.getArrayList( "libraries" ) ) );
         Boolean compile = (Boolean) doc.get( "compile" );
         mapper.setCompile( compile == null ? true : compile );
         return mapper;
@@ -96,6 +100,9 @@ public class SpringConfiguration {
         DscDocumentProducer producer = new DscDocumentProducer();
 
         producer.setRecordSetProducer( recordSetProducer );
+        producer.setWorkers( dscConfig.indexWorkers );
+        producer.setQueueSize( dscConfig.indexQueueSize );
+        producer.setOrdered( dscConfig.indexOrdered );
 
         if (dscConfig.indexMapper == null)
             log.error( "indexMapper (mapper.index.beans) is/are not defined!" );
@@ -119,6 +126,14 @@ public class SpringConfiguration {
         return producer;
     }
 
+    @Bean
+    public DscIndexUpdater dscIndexUpdater(DscDocumentProducer dscDocumentProducer, IndexManager indexManager) {
+        DscIndexUpdater updater = new DscIndexUpdater( dscDocumentProducer, indexManager );
+        updater.setCheckpointInterval( dscConfig.indexCheckpointInterval );
+        updater.schedule( dscConfig.indexDeltaInterval );
+        return updater;
+    }
+
     /**
      * from configuration:
      * idf.mapper.idfMapper=scriptedIdfMapper,true,script1,script2
@@ -173,6 +188,23 @@ public class SpringConfiguration {
     public PlugDescriptionConfiguredDatabaseRecordSetProducer recordSetProducer() {
         PlugDescriptionConfiguredDatabaseRecordSetProducer producer = new PlugDescriptionConfiguredDatabaseRecordSetProducer();
         producer.setRecordSql( dscConfig.indexMapperSql );
+        producer.setRecordCountSql( dscConfig.indexMapperCountSql );
+        producer.setStreaming( dscConfig.indexStreaming );
+        producer.setFetchSize( dscConfig.indexFetchSize );
+        producer.setRecordSqlHierarchy( dscConfig.indexHierarchySql );
+        producer.setHierarchyMemoryBudget( dscConfig.indexHierarchyMemoryBudget );
+        producer.setRecordChangedSinceSql( dscConfig.indexChangedSinceSql );
+        producer.setDeltaStateFile( dscConfig.indexDeltaStateFile );
+        producer.setDeltaTimestampFormat( dscConfig.indexDeltaTimestampFormat );
+        producer.setDeltaOverlap( dscConfig.indexDeltaOverlap );
+        producer.setCheckpointFile( dscConfig.indexCheckpointFile );
+        producer.setConnectionReuseMaxRecords( dscConfig.indexConnectionReuseMaxRecords );
+        producer.setConnectionReuseMaxMillis( dscConfig.indexConnectionReuseMaxMillis );
+        producer.setPartitionCount( dscConfig.indexPartitionCount );
+        producer.setPartitionStrategy( dscConfig.indexPartitionStrategy );
+        producer.setPartitionTable( dscConfig.indexPartitionTable );
+        producer.setPartitionLeaseMillis( dscConfig.indexPartitionLeaseMillis );
+        producer.setNodeId( dscConfig.indexPartitionNodeId );
         return producer;
     }
 
@@ -29,6 +29,7 @@ import de.ingrid.iplug.dsc.index.mapper.IRecordMapper;
 import de.ingrid.iplug.dsc.index.mapper.ScriptedDocumentMapper;
 import de.ingrid.iplug.dsc.index.producer.IRecordSetProducer;
 import de.ingrid.iplug.dsc.om.SourceRecord;
+import de.ingrid.iplug.dsc.utils.SQLUtils;
 import de.ingrid.utils.ElasticDocument;
 import de.ingrid.utils.PlugDescription;
 import org.apache.commons.logging.Log;
@@ -44,6 +45,11 @@ import java.util.List;
  * datasource and maps each record into a LuceneDocument.
  * This producer is configured with a IRecordSetProducer and one or more
  * IRecordMapper. 
+ * <p/>
+ * If more than one worker is configured, the records are mapped in parallel
+ * by a {@link ParallelMappingPipeline}. The number of workers, the size of the
+ * output queue and whether the documents are delivered in the order of the
+ * records can be configured.
  * @author joachim
  */
 //@Service
@@ -60,6 +66,27 @@ public class DscDocumentProducer implements IDocumentProducer {
     
     private IndexInfo indexInfo = null;
 
+    private int workers = 1;
+
+    private int queueSize = 100;
+
+    private boolean ordered = true;
+
+    private ParallelMappingPipeline pipeline = null;
+
+    private final Object runLock = new Object();
+
+    /** true while a run is in progress, i.e. hasNext() did not return false yet */
+    private boolean runActive = false;
+
+    /** thread updating the index, null if no update is in progress */
+    private Thread updateThread = null;
+
+    private boolean failed = false;
+
+    /** index written by the last rebuild of the index, until the alias points to it */
+    private String rebuiltIndexName = null;
+
     final private static Log log = LogFactory.getLog(DscDocumentProducer.class);
     
     public DscDocumentProducer() {
@@ -73,10 +100,115 @@ public class DscDocumentProducer implements IDocumentProducer {
      */
     @Override
     public boolean hasNext() {
+        synchronized (runLock) {
+            // the index rebuild waits for a running update of the index
+            while (updateThread != null && updateThread != Thread.currentThread()) {
+                try {
+                    runLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log.error("Interrupted while waiting for the update of the index.", e);
+                    return false;
+                }
+            }
+            if (!runActive) {
+                runActive = true;
+                failed = false;
+                if (updateThread == null && rebuiltIndexName != null) {
+                    // the index of the last rebuild was never used
+                    rebuiltIndexName = null;
+                    recordSetProducer.finishRun(false);
+                }
+            }
+        }
+        if (hasNextDocument()) {
+            return true;
+        }
+        synchronized (runLock) {
+            runActive = false;
+            if (updateThread == null) {
+                if (!failed && indexInfo != null && indexInfo.getRealIndexName() != null) {
+                    rebuiltIndexName = indexInfo.getRealIndexName();
+                } else {
+                    recordSetProducer.finishRun(false);
+                }
+            }
+        }
+        log.info(SQLUtils.getStatementCacheStatistics());
+        return false;
+    }
+
+    /**
+     * Reserves the producer for an update of the index by the current thread,
+     * e.g. by the {@link DscIndexUpdater}. Other threads calling
+     * {@link #hasNext()} wait until {@link #endUpdate()} is called.
+     *
+     * @return false if another update or a run of the index rebuild is in
+     *         progress
+     */
+    public boolean beginUpdate() {
+        synchronized (runLock) {
+            if (updateThread != null || runActive) {
+                return false;
+            }
+            updateThread = Thread.currentThread();
+            return true;
+        }
+    }
+
+    /**
+     * Releases the producer reserved by {@link #beginUpdate()}.
+     */
+    public void endUpdate() {
+        synchronized (runLock) {
+            if (updateThread == Thread.currentThread()) {
+                updateThread = null;
+                runLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stores the state of the last rebuild of the index as base for
+     * incremental runs once the index written by the rebuild is in use.
+     *
+     * @param indexName name of the index the alias points to
+     */
+    public void confirmRebuild(String indexName) {
+        synchronized (runLock) {
+            if (rebuiltIndexName != null && rebuiltIndexName.equals(indexName)) {
+                rebuiltIndexName = null;
+                recordSetProducer.finishRun(true);
+            }
+        }
+    }
+
+    private boolean hasNextDocument() {
+        if (workers > 1) {
+            if (pipeline == null) {
+                pipeline = new ParallelMappingPipeline(recordSetProducer, this::mapRecord, workers, queueSize, ordered);
+                pipeline.start();
+            }
+            try {
+                if (pipeline.hasNext()) {
+                    return true;
+                }
+                if (!pipeline.isComplete()) {
+                    log.error("Mapping workers stopped before all records were read.");
+                    failed = true;
+                }
+            } catch (RuntimeException e) {
+                log.error("Error obtaining information about a next document. Skip all records.", e);
+                failed = true;
+            }
+            closePipeline();
+            return false;
+        }
         try {
             return recordSetProducer.hasNext();
         } catch (Exception e) {
             log.error("Error obtaining information about a next record. Skip all records.", e);
+            failed = true;
             return false;
         }
     }
@@ -88,9 +220,66 @@ public class DscDocumentProducer implements IDocumentProducer {
      */
     @Override
     public ElasticDocument next() {
+        if (pipeline != null) {
+            return pipeline.next();
+        }
+        SourceRecord record;
+        try {
+            record = recordSetProducer.next();
+        } catch (Exception e) {
+            log.error("Error obtaining next record.", e);
+            return null;
+        }
+        return mapRecord(record);
+    }
+
+    /**
+     * Aborts the current index run. Records already claimed by the workers
+     * are not delivered anymore, the next run starts from the beginning.
+     */
+    public void abort() {
+        synchronized (runLock) {
+            runActive = false;
+        }
+        if (pipeline != null) {
+            closePipeline();
+        } else {
+            synchronized (recordSetProducer) {
+                recordSetProducer.reset();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the current or last run stopped because of an error, so
+     * not all records were delivered.
+     *
+     * @return true if the run failed
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    private void closePipeline() {
+        try {
+            pipeline.close();
+        } finally {
+            pipeline = null;
+        }
+    }
+
+    /**
+     * Maps a source record with all configured IRecordMapper. The record is
+     * closed afterwards.
+     *
+     * @param sourceRecord the record to map
+     * @return the mapped document or null if the mapping failed or the record
+     *         was skipped
+     */
+    private ElasticDocument mapRecord(SourceRecord sourceRecord) {
         ElasticDocument doc = new ElasticDocument();
         try {
-            try (SourceRecord record = recordSetProducer.next()) {
+            try (SourceRecord record = sourceRecord) {
                 for (IRecordMapper mapper : recordMapperList) {
                     long start = 0;
                     if (log.isDebugEnabled()) {
@@ -188,6 +377,22 @@ public class DscDocumentProducer implements IDocumentProducer {
     public synchronized boolean isFolderWithPublishDoc(String uuid) {
         return recordSetProducer.isFolderWithPublishDoc(uuid);
     }
+
+    /**
+     * Pauses the current and following index runs until {@link #resume()} is
+     * called. Records already read are still mapped.
+     */
+    public void pause() {
+        recordSetProducer.pause();
+    }
+
+    public void resume() {
+        recordSetProducer.resume();
+    }
+
+    public boolean isPaused() {
+        return recordSetProducer.isPaused();
+    }
     /*
      * (non-Javadoc)
      * 
@@ -201,11 +406,20 @@ public class DscDocumentProducer implements IDocumentProducer {
 
     @Override
     public Integer getDocumentCount() {
-        try {
-            if (recordSetProducer.hasNext()) {
-                return recordSetProducer.getDocCount();
+        synchronized (runLock) {
+            if (updateThread != null && updateThread != Thread.currentThread()) {
+                // the producer delivers the records of the update
+                return null;
             }
-        } catch (Exception e) {}
+        }
+        // the producer may be in use by the workers of the mapping pipeline
+        synchronized (recordSetProducer) {
+            try {
+                if (recordSetProducer.hasNext()) {
+                    return recordSetProducer.getDocCount();
+                }
+            } catch (Exception e) {}
+        }
         return null;
     }
     
@@ -234,6 +448,30 @@ public class DscDocumentProducer implements IDocumentProducer {
         this.indexInfo = indexInfo;
     }
 
+    public int getWorkers() {
+        return workers;
+    }
+
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
     public void setConfig(Config config) {
         this.config = config;
     }
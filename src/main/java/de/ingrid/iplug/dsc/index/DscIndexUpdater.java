@@ -0,0 +1,305 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.index;
+
+import de.ingrid.elasticsearch.IndexInfo;
+import de.ingrid.elasticsearch.IndexManager;
+import de.ingrid.iplug.dsc.index.producer.IRecordSetProducer;
+import de.ingrid.utils.ElasticDocument;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Updates the existing index in place with the documents of an incremental
+ * run of the IRecordSetProducer of a {@link DscDocumentProducer}. Only the
+ * records changed since the last run are mapped and written to the index,
+ * records deleted since then are removed from the index.
+ * <p/>
+ * The complete rebuild of the index is still done by the IndexScheduler of
+ * the base webapp. Incremental runs can be triggered manually or in a fixed
+ * interval. They are skipped while a rebuild is in progress, a rebuild waits
+ * until a running update is finished.
+ * <p/>
+ * Every checkpointInterval records the index is flushed and the progress is
+ * stored by the IRecordSetProducer, so an interrupted run can be continued by
+ * the next run. Checkpoints require the documents to be delivered in the
+ * order of the records.
+ * <p/>
+ * In partitioned runs several iPlug instances update the same index. Every
+ * node claims partitions of the records until all partitions are done.
+ */
+public class DscIndexUpdater {
+
+    final private static Log log = LogFactory.getLog(DscIndexUpdater.class);
+
+    private final DscDocumentProducer documentProducer;
+
+    private final IndexManager indexManager;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    private ScheduledExecutorService scheduler = null;
+
+    private int checkpointInterval = 1000;
+
+    public DscIndexUpdater(DscDocumentProducer documentProducer, IndexManager indexManager) {
+        this.documentProducer = documentProducer;
+        this.indexManager = indexManager;
+    }
+
+    /**
+     * Runs an incremental update of the index.
+     *
+     * @param full if true, all records are mapped and written to the index
+     * @return true if the index was updated successfully, false if the update
+     *         failed or another update is running
+     */
+    public boolean update(boolean full) {
+        IRecordSetProducer recordSetProducer = documentProducer.getRecordSetProducer();
+        if (!recordSetProducer.isIncrementalRunSupported()) {
+            log.warn("Incremental index runs are not supported by the configured record set producer.");
+            return false;
+        }
+        if (!running.compareAndSet(false, true)) {
+            log.warn("Incremental index run already in progress.");
+            return false;
+        }
+        if (!documentProducer.beginUpdate()) {
+            log.warn("Index run in progress, incremental index run skipped.");
+            running.set(false);
+            return false;
+        }
+        boolean success = false;
+        try {
+            IndexInfo indexInfo = getIndexInfo();
+            // the state of a rebuild is the base of the run if the rebuilt index is in use
+            documentProducer.confirmRebuild(indexManager.getIndexNameFromAliasName(indexInfo.getToAlias(), indexInfo.getToIndex()));
+            long start = System.currentTimeMillis();
+            recordSetProducer.startIncrementalRun(full);
+
+            boolean checkpoints = checkpointInterval > 0
+                    && (documentProducer.getWorkers() <= 1 || documentProducer.isOrdered());
+            if (checkpointInterval > 0 && !checkpoints) {
+                log.warn("No checkpoints are stored, since the documents are not delivered in the order of the records.");
+            }
+            int updated = 0;
+            int skipped = 0;
+            while (documentProducer.hasNext()) {
+                ElasticDocument doc = documentProducer.next();
+                if (doc == null) {
+                    skipped++;
+                } else {
+                    indexManager.update(indexInfo, doc, false);
+                    updated++;
+                }
+                if (checkpoints && (updated + skipped) % checkpointInterval == 0) {
+                    indexManager.flush();
+                    recordSetProducer.checkpoint(updated + skipped);
+                }
+            }
+            if (documentProducer.isFailed()) {
+                throw new IllegalStateException("Not all changed records could be read.");
+            }
+            List<String> deletedIds = recordSetProducer.getDeletedRecordIds();
+            for (String id : deletedIds) {
+                indexManager.delete(indexInfo, id, false);
+            }
+            indexManager.flush();
+            success = true;
+
+            if (log.isInfoEnabled()) {
+                log.info("Incremental index run finished in " + (System.currentTimeMillis() - start) + " ms: "
+                        + updated + " documents updated, " + skipped + " records skipped, "
+                        + deletedIds.size() + " documents deleted.");
+            }
+        } catch (Exception e) {
+            log.error("Error during incremental index run.", e);
+            documentProducer.abort();
+        } finally {
+            try {
+                recordSetProducer.finishIncrementalRun(success);
+            } finally {
+                documentProducer.endUpdate();
+                running.set(false);
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Runs the partitions of a partitioned run claimed by this node. All
+     * records of a partition are mapped and written to the index.
+     *
+     * @param runId id of the run, the same for all nodes taking part
+     * @return true if all partitions claimed by this node were updated
+     *         successfully
+     */
+    public boolean updatePartitioned(String runId) {
+        IRecordSetProducer recordSetProducer = documentProducer.getRecordSetProducer();
+        if (!recordSetProducer.isPartitionedRunSupported()) {
+            log.warn("Partitioned index runs are not supported by the configured record set producer.");
+            return false;
+        }
+        if (!running.compareAndSet(false, true)) {
+            log.warn("Index run already in progress.");
+            return false;
+        }
+        if (!documentProducer.beginUpdate()) {
+            log.warn("Index run in progress, partitioned index run skipped.");
+            running.set(false);
+            return false;
+        }
+        boolean success = true;
+        try {
+            IndexInfo indexInfo = getIndexInfo();
+            while (success && recordSetProducer.startPartitionedRun(runId)) {
+                success = false;
+                try {
+                    long start = System.currentTimeMillis();
+                    int updated = 0;
+                    while (documentProducer.hasNext()) {
+                        ElasticDocument doc = documentProducer.next();
+                        if (doc != null) {
+                            indexManager.update(indexInfo, doc, false);
+                            updated++;
+                        }
+                    }
+                    if (documentProducer.isFailed()) {
+                        throw new IllegalStateException("Not all records of the partition could be read.");
+                    }
+                    indexManager.flush();
+                    success = true;
+                    if (log.isInfoEnabled()) {
+                        log.info("Partition finished in " + (System.currentTimeMillis() - start) + " ms: "
+                                + updated + " of " + recordSetProducer.getDocCount() + " records ("
+                                + recordSetProducer.getTotalDocCount() + " in all partitions) written to the index.");
+                    }
+                } catch (Exception e) {
+                    log.error("Error during partitioned index run.", e);
+                    documentProducer.abort();
+                } finally {
+                    recordSetProducer.finishPartitionedRun(success);
+                }
+            }
+            Map<Integer, Integer> counts = recordSetProducer.getPartitionDocCounts(runId);
+            int total = 0;
+            for (Integer count : counts.values()) {
+                total += count;
+            }
+            log.info("Finished partitions of run " + runId + ": " + counts + ", " + total + " records in total.");
+        } catch (Exception e) {
+            log.error("Error during partitioned index run.", e);
+            success = false;
+        } finally {
+            documentProducer.endUpdate();
+            running.set(false);
+        }
+        return success;
+    }
+
+    /**
+     * Runs the partitions of a partitioned run in the background.
+     *
+     * @param runId id of the run, the same for all nodes taking part
+     */
+    public void triggerPartitioned(final String runId) {
+        Thread t = new Thread(() -> updatePartitioned(runId), "dsc-index-update");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Runs an incremental update in the background.
+     *
+     * @param full if true, all records are mapped and written to the index
+     */
+    public void triggerManually(final boolean full) {
+        Thread t = new Thread(() -> update(full), "dsc-index-update");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Starts incremental updates in a fixed interval.
+     *
+     * @param intervalMinutes interval in minutes, no updates are scheduled if
+     *            less than 1
+     */
+    public synchronized void schedule(long intervalMinutes) {
+        if (intervalMinutes < 1 || scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dsc-index-update-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> update(false), intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+        log.info("Incremental index runs scheduled every " + intervalMinutes + " minutes.");
+    }
+
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * Sets the number of records after which the progress is stored, 0
+     * disables checkpoints.
+     *
+     * @param checkpointInterval
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    private IndexInfo getIndexInfo() {
+        IndexInfo indexInfo = documentProducer.getIndexInfo();
+        if (indexInfo == null) {
+            throw new IllegalStateException("No index info configured for the document producer.");
+        }
+        // work on a copy, the index info of the producer is also used by the index rebuild
+        IndexInfo updateInfo = new IndexInfo();
+        updateInfo.setToIndex(indexInfo.getToIndex());
+        updateInfo.setToType(indexInfo.getToType());
+        updateInfo.setToAlias(indexInfo.getToAlias());
+        updateInfo.setDocIdField(indexInfo.getDocIdField());
+        updateInfo.setRealIndexName(indexInfo.getRealIndexName());
+        // update the index the alias currently points to, it changes with every rebuild of the index
+        String realIndexName = indexManager.getIndexNameFromAliasName(indexInfo.getToAlias(), indexInfo.getToIndex());
+        if (realIndexName != null) {
+            updateInfo.setRealIndexName(realIndexName);
+        }
+        return updateInfo;
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.index;
+
+import de.ingrid.iplug.dsc.index.producer.IRecordSetProducer;
+import de.ingrid.iplug.dsc.om.SourceRecord;
+import de.ingrid.utils.ElasticDocument;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Maps the records of an {@link IRecordSetProducer} with a pool of worker
+ * threads. Every worker claims the next record from the producer (which opens
+ * a separate connection for every record), runs the mapping on it and puts the
+ * result into a bounded output buffer, that is consumed via
+ * {@link #hasNext()} and {@link #next()}.
+ * <p/>
+ * The buffer holds about <code>queueSize</code> claimed but not yet consumed
+ * records (at most one more per worker). If the pipeline is ordered, the documents are delivered in the
+ * order the producer returned the records, otherwise in the order the mapping
+ * finished.
+ * <p/>
+ * The {@link IRecordSetProducer} is not thread safe, so all access to it is
+ * synchronized on the producer instance.
+ */
+public class ParallelMappingPipeline {
+
+    final private static Log log = LogFactory.getLog(ParallelMappingPipeline.class);
+
+    private static final long CLOSE_TIMEOUT_SECONDS = 60;
+
+    private final IRecordSetProducer recordSetProducer;
+
+    private final Function<SourceRecord, ElasticDocument> mapping;
+
+    private final int workers;
+
+    private final int queueSize;
+
+    private final boolean ordered;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition resultAvailable = lock.newCondition();
+
+    private final Condition capacityAvailable = lock.newCondition();
+
+    /** mapped documents by sequence number, in the order the mapping finished */
+    private final Map<Long, ElasticDocument> results = new LinkedHashMap<>();
+
+    private ExecutorService executor = null;
+
+    /** sequence number of the next record claimed from the producer */
+    private long nextSequence = 0;
+
+    /** sequence number of the next document to deliver in ordered mode */
+    private long nextToDeliver = 0;
+
+    /** records claimed from the producer and not yet consumed */
+    private int outstanding = 0;
+
+    private int activeWorkers = 0;
+
+    /** workers not yet finishing, the last one releases the producer */
+    private final AtomicInteger runningWorkers = new AtomicInteger();
+
+    private boolean closed = false;
+
+    /** true if the producer has no more records, guarded by the producer */
+    private boolean exhausted = false;
+
+    /** true if the producer returned all records, guarded by the producer */
+    private boolean complete = false;
+
+    public ParallelMappingPipeline(IRecordSetProducer recordSetProducer, Function<SourceRecord, ElasticDocument> mapping,
+            int workers, int queueSize, boolean ordered) {
+        this.recordSetProducer = recordSetProducer;
+        this.mapping = mapping;
+        this.workers = Math.max(1, workers);
+        this.queueSize = Math.max(this.workers, queueSize);
+        this.ordered = ordered;
+    }
+
+    /**
+     * Starts the worker threads. The workers stop if the producer has no more
+     * records or the pipeline is closed. The producer is released after the
+     * last worker finished, it is reset if not all records were claimed.
+     */
+    public void start() {
+        if (log.isInfoEnabled()) {
+            log.info("Start mapping pipeline with " + workers + " workers, queue size " + queueSize + ", "
+                    + (ordered ? "ordered" : "unordered") + " output.");
+        }
+        synchronized (recordSetProducer) {
+            recordSetProducer.setResetDeferred(true);
+        }
+        activeWorkers = workers;
+        runningWorkers.set(workers);
+        executor = Executors.newFixedThreadPool(workers, new WorkerThreadFactory());
+        for (int i = 0; i < workers; i++) {
+            executor.execute(this::work);
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Returns true if a next document is available. Blocks until a worker
+     * delivers the next document or all workers finished.
+     * 
+     * @return
+     */
+    public boolean hasNext() {
+        lock.lock();
+        try {
+            while (!isResultAvailable() && activeWorkers > 0 && !closed) {
+                resultAvailable.await();
+            }
+            return isResultAvailable();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while waiting for next mapped document.", e);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the next mapped document. The document is null if the mapping of
+     * the according record failed.
+     * 
+     * @return
+     */
+    public ElasticDocument next() {
+        if (!hasNext()) {
+            return null;
+        }
+        lock.lock();
+        try {
+            ElasticDocument doc;
+            if (ordered) {
+                doc = results.remove(nextToDeliver);
+                nextToDeliver++;
+            } else {
+                Iterator<ElasticDocument> it = results.values().iterator();
+                doc = it.next();
+                it.remove();
+            }
+            outstanding--;
+            capacityAvailable.signal();
+            return doc;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops all workers and waits until they finished. Records already claimed
+     * are mapped but not delivered anymore.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            capacityAvailable.signalAll();
+            resultAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    log.warn("Mapping workers did not finish within " + CLOSE_TIMEOUT_SECONDS + " seconds.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the workers claimed all records of the producer. Only
+     * meaningful after {@link #hasNext()} returned false.
+     *
+     * @return false if the workers stopped because of an error or the
+     *         pipeline was closed
+     */
+    public boolean isComplete() {
+        synchronized (recordSetProducer) {
+            return complete;
+        }
+    }
+
+    private boolean isResultAvailable() {
+        return ordered ? results.containsKey(nextToDeliver) : !results.isEmpty();
+    }
+
+    private void work() {
+        try {
+            while (true) {
+                long sequence;
+                SourceRecord record;
+                // do not wait while holding the producer, it may be needed by
+                // the consumer (e.g. to get the document count)
+                if (!awaitCapacity()) {
+                    break;
+                }
+                synchronized (recordSetProducer) {
+                    if (exhausted) {
+                        break;
+                    }
+                    try {
+                        if (!recordSetProducer.hasNext()) {
+                            exhausted = true;
+                            complete = true;
+                            break;
+                        }
+                    } catch (Exception e) {
+                        log.error("Error obtaining information about a next record. Skip all records.", e);
+                        exhausted = true;
+                        break;
+                    }
+                    try {
+                        record = recordSetProducer.next();
+                    } catch (Exception e) {
+                        log.error("Error obtaining next record.", e);
+                        record = null;
+                    }
+                    sequence = claim();
+                }
+                // always deliver the claimed sequence, otherwise the ordered
+                // output waits for it forever
+                ElasticDocument doc = null;
+                try {
+                    if (record != null) {
+                        doc = mapping.apply(record);
+                    }
+                } finally {
+                    deliver(sequence, doc);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            log.error("Error in mapping worker, stop worker.", t);
+        } finally {
+            finishWorker();
+        }
+    }
+
+    private void finishWorker() {
+        if (runningWorkers.decrementAndGet() == 0) {
+            // no record is in use anymore
+            synchronized (recordSetProducer) {
+                try {
+                    if (!complete) {
+                        recordSetProducer.reset();
+                    }
+                } finally {
+                    recordSetProducer.setResetDeferred(false);
+                }
+            }
+        }
+        lock.lock();
+        try {
+            activeWorkers--;
+            resultAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean awaitCapacity() throws InterruptedException {
+        lock.lock();
+        try {
+            while (outstanding >= queueSize && !closed) {
+                capacityAvailable.await();
+            }
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long claim() {
+        lock.lock();
+        try {
+            outstanding++;
+            return nextSequence++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void deliver(long sequence, ElasticDocument doc) {
+        lock.lock();
+        try {
+            if (!closed) {
+                results.put(sequence, doc);
+                resultAvailable.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private static final AtomicInteger poolNumber = new AtomicInteger(1);
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        private final String prefix = "dsc-mapping-" + poolNumber.getAndIncrement() + "-";
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -44,12 +44,10 @@ public interface IRecordMapper {
      * record may vary. It is up to the implementing class to interpret the
      * source record and throw exceptions, if the record does not comply with
      * the needs of the mapper.<br>
-     * <b>NOTICE: With Java 1.8 and nashorn:mozilla_compat.js mapping engine is
-     * NOT THREAD SAFE ANYMORE !!! So make this method synchronized in
-     * implementation if Java 1.8 and nashorn:mozilla_compat.js is used
-     * (nashorn) !!!<br>
-     * see
-     * https://blogs.oracle.com/nashorn/entry/nashorn_multi_threading_and_mt</b>
+     * <b>NOTICE: A script engine instance is NOT THREAD SAFE !!! Scripted
+     * implementations must not share one engine between threads, use
+     * {@link de.ingrid.iplug.dsc.utils.ScriptEngine} which executes the
+     * scripts in one context per thread.</b>
      * 
      * @param record
      * @param doc
@@ -25,30 +25,24 @@
  */
 package de.ingrid.iplug.dsc.index.mapper;
 
-import java.io.StringReader;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
 import org.apache.log4j.Logger;
 import org.springframework.core.annotation.Order;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 
 import de.ingrid.iplug.dsc.om.DatabaseSourceRecord;
 import de.ingrid.iplug.dsc.om.SourceRecord;
+import de.ingrid.iplug.dsc.utils.IgcProfileCache;
+import de.ingrid.iplug.dsc.utils.IgcProfileCache.IgcProfile;
 import de.ingrid.utils.ElasticDocument;
-import de.ingrid.utils.xml.ConfigurableNamespaceContext;
-import de.ingrid.utils.xml.IDFNamespaceContext;
-import de.ingrid.utils.xml.IgcProfileNamespaceContext;
-import de.ingrid.utils.xpath.XPathUtils;
 
 /**
  * IGC profile based source record to lucene document mapping. It maps the
@@ -58,7 +52,8 @@ import de.ingrid.utils.xpath.XPathUtils;
  * <p />
  * The class can be configured with a SQL string that retrieves the IGC profile
  * from the database. The profile must be stored in a database record field
- * names 'igc_profile'.
+ * names 'igc_profile'. The parsed profile is shared by all mappers (see
+ * {@link IgcProfileCache}).
  * 
  * @author joachim@wemove.com
  * 
@@ -69,62 +64,29 @@ public class IgcProfileDocumentMapper implements IRecordMapper {
     private String sql;
 
     private static final Logger log = Logger.getLogger(IgcProfileDocumentMapper.class);
-    
-    private XPathUtils xPathUtils = null;
+
+    /** maximum number of parent ids in one query for table rows */
+    private static final int MAX_PARENT_IDS_PER_QUERY = 500;
 
     @Override
     public void map(SourceRecord record, ElasticDocument doc) throws Exception {
         if (!(record instanceof DatabaseSourceRecord)) {
             throw new IllegalArgumentException("Record is no DatabaseRecord!");
         }
-        ConfigurableNamespaceContext cnc = new ConfigurableNamespaceContext();
-        cnc.addNamespaceContext(new IDFNamespaceContext());
-        cnc.addNamespaceContext(new IgcProfileNamespaceContext());
-        xPathUtils = new XPathUtils(cnc);
         String objId = (String) record.get(DatabaseSourceRecord.ID);
 
         Connection connection = (Connection) record.get(DatabaseSourceRecord.CONNECTION);
-        PreparedStatement ps = null;
         try {
-            ps = connection.prepareStatement(sql);
-            ResultSet rs = ps.executeQuery();
-            rs.next();
-            String igcProfileStr = rs.getString("igc_profile");
-            ps.close();
-            if (igcProfileStr != null) {
-                DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-                dbf.setNamespaceAware(true);
-                DocumentBuilder db;
-                db = dbf.newDocumentBuilder();
-                org.w3c.dom.Document igcProfile = db.parse(new InputSource(new StringReader(igcProfileStr)));
-                NodeList igcProfileIndexNames = xPathUtils.getNodeList(igcProfile, "//igcp:controls/*//igcp:indexName");
-                Map<String, String> profileInfo = new HashMap<String, String>();
-                for (int i = 0; i < igcProfileIndexNames.getLength(); i++) {
-                    String igcProfileIndexName = igcProfileIndexNames.item(i).getTextContent();
-                    if (igcProfileIndexName != null && igcProfileIndexName.trim().length() > 0) {
-                        Node igcProfileNode = igcProfileIndexNames.item(i).getParentNode();
-                        String igcProfileNodeId = xPathUtils.getString(igcProfileNode, "igcp:id");
-                        profileInfo.put(igcProfileNodeId, igcProfileIndexName);
-                    }
-                }
+            IgcProfile igcProfile = IgcProfileCache.getInstance().getProfile(connection, sql);
+            if (igcProfile != null) {
+                Map<String, String> profileInfo = igcProfile.getIndexNames();
                 if (!profileInfo.isEmpty()) {
-                    ps = connection.prepareStatement("SELECT * FROM additional_field_data WHERE obj_id=?");
-                    // convert id to number to be used in PreparedStatement as Integer to avoid postgres error !
-                    ps.setInt(1, new Integer(objId));
-                    mapAdditionalData(connection, ps, doc, profileInfo);
-                    ps.close();
+                    mapAdditionalData(connection, objId, doc, profileInfo);
                 }
             }
         } catch (SQLException e) {
             log.error("Error mapping IGC profile.", e);
             throw e;
-        } finally {
-        	// isClosed() CAUSES EXCEPTION ON ORACLE !!!
-        	// Exception in thread "Thread-8" java.lang.AbstractMethodError: oracle.jdbc.driver.T4CPreparedStatement.isClosed()Z
-            // if (ps != null && !ps.isClosed()) {
-            if (ps != null) {
-                ps.close();
-            }
         }
     }
 
@@ -138,34 +100,97 @@ public class IgcProfileDocumentMapper implements IRecordMapper {
 
     /**
      * Does the mapping of additional data into the index based on index field
-     * name definitions in the profile. This mapping occurs recursively if
-     * needed because of the hierarchical structure of the data in the database
-     * for table data.
+     * name definitions in the profile. Table data is stored hierarchically in
+     * the database, so the rows are loaded level by level with one query per
+     * level (and chunk of parent ids) and mapped depth first in memory, in the
+     * same order as a recursive traversal.
      * 
      * 
      * @param connection
-     * @param ps
+     * @param objId
      * @param doc
      * @param profileInfo
      * @throws Exception
      */
-    private void mapAdditionalData(Connection connection, PreparedStatement ps, Map<String, Object> doc,
+    private void mapAdditionalData(Connection connection, String objId, Map<String, Object> doc,
             Map<String, String> profileInfo) throws Exception {
-        ResultSet rs = ps.executeQuery();
-        while (rs.next()) {
-            String fieldKey = rs.getString("field_key");
-            if (profileInfo.containsKey(fieldKey) && rs.getString("data") != null && rs.getString("data").length() > 0) {
-                doc.put( profileInfo.get(fieldKey), rs.getString("data") );
-            }
-            String id = rs.getString("id");
-            PreparedStatement psNew = connection
-                    .prepareStatement("SELECT * FROM additional_field_data WHERE parent_field_id=?");
+        List<AdditionalFieldRow> topRows = new ArrayList<AdditionalFieldRow>();
+        try (PreparedStatement ps = connection.prepareStatement("SELECT id, field_key, data FROM additional_field_data WHERE obj_id=?")) {
             // convert id to number to be used in PreparedStatement as Integer to avoid postgres error !
-            psNew.setInt(1, new Integer(id));
-            mapAdditionalData(connection, psNew, doc, profileInfo);
-            psNew.close();
+            ps.setInt(1, Integer.valueOf(objId));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    topRows.add(new AdditionalFieldRow(rs.getString("id"), rs.getString("field_key"), rs.getString("data")));
+                }
+            }
+        }
+
+        Map<String, List<AdditionalFieldRow>> rowsByParent = new HashMap<String, List<AdditionalFieldRow>>();
+        List<AdditionalFieldRow> level = topRows;
+        while (!level.isEmpty()) {
+            level = loadChildRows(connection, level, rowsByParent);
         }
 
+        // depth first traversal without recursion, children in the order of the database
+        List<AdditionalFieldRow> stack = new ArrayList<AdditionalFieldRow>();
+        for (int i = topRows.size() - 1; i >= 0; i--) {
+            stack.add(topRows.get(i));
+        }
+        while (!stack.isEmpty()) {
+            AdditionalFieldRow row = stack.remove(stack.size() - 1);
+            if (profileInfo.containsKey(row.fieldKey) && row.data != null && row.data.length() > 0) {
+                doc.put( profileInfo.get(row.fieldKey), row.data );
+            }
+            List<AdditionalFieldRow> children = rowsByParent.getOrDefault(row.id, Collections.<AdditionalFieldRow>emptyList());
+            for (int i = children.size() - 1; i >= 0; i--) {
+                stack.add(children.get(i));
+            }
+        }
+    }
+
+    /**
+     * Loads the child rows of all given rows.
+     *
+     * @return the loaded child rows, which are also added to rowsByParent
+     */
+    private List<AdditionalFieldRow> loadChildRows(Connection connection, List<AdditionalFieldRow> parents,
+            Map<String, List<AdditionalFieldRow>> rowsByParent) throws SQLException {
+        List<AdditionalFieldRow> children = new ArrayList<AdditionalFieldRow>();
+        for (int from = 0; from < parents.size(); from += MAX_PARENT_IDS_PER_QUERY) {
+            List<AdditionalFieldRow> chunk = parents.subList(from, Math.min(parents.size(), from + MAX_PARENT_IDS_PER_QUERY));
+            StringBuilder sqlChildren = new StringBuilder("SELECT id, field_key, data, parent_field_id FROM additional_field_data WHERE parent_field_id IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                sqlChildren.append(i == 0 ? "?" : ",?");
+            }
+            sqlChildren.append(")");
+            try (PreparedStatement ps = connection.prepareStatement(sqlChildren.toString())) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    // convert id to number to be used in PreparedStatement as Integer to avoid postgres error !
+                    ps.setInt(i + 1, Integer.valueOf(chunk.get(i).id));
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        AdditionalFieldRow row = new AdditionalFieldRow(rs.getString("id"), rs.getString("field_key"), rs.getString("data"));
+                        rowsByParent.computeIfAbsent(rs.getString("parent_field_id"), k -> new ArrayList<AdditionalFieldRow>()).add(row);
+                        children.add(row);
+                    }
+                }
+            }
+        }
+        return children;
+    }
+
+    /** Row of table additional_field_data. */
+    private static class AdditionalFieldRow {
+        final String id;
+        final String fieldKey;
+        final String data;
+
+        AdditionalFieldRow(String id, String fieldKey, String data) {
+            this.id = id;
+            this.fieldKey = fieldKey;
+            this.data = data;
+        }
     }
     
 }
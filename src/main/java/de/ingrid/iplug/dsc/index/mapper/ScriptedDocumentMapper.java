@@ -23,7 +23,7 @@
 package de.ingrid.iplug.dsc.index.mapper;
 
 import java.sql.Connection;
-import java.util.Hashtable;
+import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
@@ -47,6 +47,13 @@ import de.ingrid.utils.index.IndexUtils;
  * <p />
  * If the compile parameter is set to true, the script is compiled, if
  * the ScriptEngine supports compilation.
+ * <p />
+ * The mapper is thread safe, every thread executes the scripts in its own
+ * script context (see {@link ScriptEngine}). The utils passed to the scripts
+ * are created once per thread and rebound to every record.
+ * <p />
+ * Library scripts only define functions used by the mapping scripts. They are
+ * evaluated once per script context and not for every record.
  * 
  * @author joachim@wemove.com
  * 
@@ -55,32 +62,32 @@ import de.ingrid.utils.index.IndexUtils;
 public class ScriptedDocumentMapper implements IRecordMapper {
 
     private Resource[] mappingScripts;
+    private Resource[] libraryScripts;
     private boolean compile = false;
 
     private static final Logger log = Logger.getLogger(ScriptedDocumentMapper.class);
 
+    /** The script utils are created once per thread and rebound to every record. */
+    private final ThreadLocal<ScriptUtils> scriptUtils = ThreadLocal.withInitial(ScriptUtils::new);
+
     @Override
-    public synchronized void map(SourceRecord record, ElasticDocument doc) throws Exception {
+    public void map(SourceRecord record, ElasticDocument doc) throws Exception {
         if (mappingScripts == null) {
             log.error("Mapping script(s) not set!");
             throw new IllegalArgumentException("Mapping script(s) not set!");
         }
+        ScriptUtils utils = scriptUtils.get();
         try {
-            // create utils for script
+            // rebind the utils of this thread to the record
             Connection connection = (Connection) record.get(DatabaseSourceRecord.CONNECTION);
-            SQLUtils sqlUtils = new SQLUtils(connection);
-            IndexUtils idxUtils = new IndexUtils(doc);
-            TransformationUtils trafoUtils = new TransformationUtils(sqlUtils);
+            utils.sqlUtils.setConnection(connection);
 
-            Map<String, Object> parameters = new Hashtable<>();
+            Map<String, Object> parameters = utils.parameters;
             parameters.put("sourceRecord", record);
             parameters.put("luceneDoc", doc);
-            parameters.put("log", log);
-            parameters.put("SQL", sqlUtils);
-            parameters.put("IDX", idxUtils);
-            parameters.put("TRANSF", trafoUtils);
+            parameters.put("IDX", new IndexUtils(doc));
 
-            ScriptEngine.execute(this.mappingScripts, parameters, compile);
+            ScriptEngine.execute(this.libraryScripts, this.mappingScripts, parameters, compile);
         } catch (Exception e) {
             if (e.getMessage() != null && e.getMessage().contains("SkipException")) {
                 log.warn("Skipping document: " + e.getMessage());
@@ -88,6 +95,8 @@ public class ScriptedDocumentMapper implements IRecordMapper {
                 log.error("Error mapping source record to lucene document.", e);
             }
             throw e;
+        } finally {
+            utils.release();
         }
     }
 
@@ -99,6 +108,14 @@ public class ScriptedDocumentMapper implements IRecordMapper {
 		this.mappingScripts = mappingScripts;
 	}
 
+    public Resource[] getLibraryScripts() {
+        return libraryScripts;
+    }
+
+    public void setLibraryScripts(Resource[] libraryScripts) {
+        this.libraryScripts = libraryScripts;
+    }
+
 
     public boolean isCompile() {
         return compile;
@@ -108,4 +125,28 @@ public class ScriptedDocumentMapper implements IRecordMapper {
         this.compile = compile;
     }
 
+    /**
+     * The utils passed to the mapping scripts of one thread, rebound for
+     * every record instead of being created again.
+     */
+    private static class ScriptUtils {
+        final SQLUtils sqlUtils = new SQLUtils(null);
+        final TransformationUtils trafoUtils = new TransformationUtils(sqlUtils);
+        final Map<String, Object> parameters = new HashMap<>();
+
+        ScriptUtils() {
+            parameters.put("log", log);
+            parameters.put("SQL", sqlUtils);
+            parameters.put("TRANSF", trafoUtils);
+        }
+
+        /** Do not keep the record alive until the next record of the thread. */
+        void release() {
+            sqlUtils.setConnection(null);
+            parameters.remove("sourceRecord");
+            parameters.remove("luceneDoc");
+            parameters.remove("IDX");
+        }
+    }
+
 }
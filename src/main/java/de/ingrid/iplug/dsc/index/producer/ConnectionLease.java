@@ -0,0 +1,198 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.index.producer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A pooled connection kept by an indexing thread for several records. Every
+ * record gets a wrapper of the connection whose close() only hands the
+ * connection back to the lease. The connection is returned to the pool when
+ * the lease expired (number of records or age) or was retired, and it is
+ * not reused after a SQLException occurred on the connection or one of its
+ * statements.
+ */
+class ConnectionLease {
+
+    final private static Log log = LogFactory.getLog(ConnectionLease.class);
+
+    private final Connection connection;
+
+    private final long created = System.currentTimeMillis();
+
+    private final int maxRecords;
+
+    private final long maxMillis;
+
+    private int records = 0;
+
+    private boolean inUse = false;
+
+    private boolean failed = false;
+
+    private boolean retired = false;
+
+    private boolean closed = false;
+
+    ConnectionLease(Connection connection, int maxRecords, long maxMillis) {
+        this.connection = connection;
+        this.maxRecords = maxRecords;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * @return true if the connection can be handed to another record
+     */
+    synchronized boolean isReusable() {
+        if (closed || failed || retired || inUse || records >= maxRecords
+                || System.currentTimeMillis() - created >= maxMillis) {
+            return false;
+        }
+        try {
+            return !connection.isClosed();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Hands the connection to a record.
+     *
+     * @return the connection to use by the record, closing it hands it back
+     *         to the lease
+     */
+    synchronized Connection acquire() {
+        inUse = true;
+        records++;
+        return (Connection) Proxy.newProxyInstance(ConnectionLease.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new LeasedConnectionHandler());
+    }
+
+    /**
+     * Closes the connection as soon as it is not used by a record anymore.
+     */
+    synchronized void retire() {
+        retired = true;
+        if (!inUse) {
+            close();
+        }
+    }
+
+    private synchronized void release() {
+        inUse = false;
+        if (failed || retired) {
+            close();
+        }
+    }
+
+    private synchronized void markFailed() {
+        failed = true;
+    }
+
+    private synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (failed) {
+                // do not let the pool validate a broken connection
+                connection.rollback();
+            }
+        } catch (SQLException e) {
+            log.debug("Error rolling back failed connection.", e);
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            log.error("Error closing leased connection.", e);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Closed leased connection after " + records + " records, failed: " + failed);
+        }
+    }
+
+    private Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof SQLException) {
+                markFailed();
+            }
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Connection wrapper handed to one record.
+     */
+    private class LeasedConnectionHandler implements InvocationHandler {
+
+        private boolean released = false;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                if (!released) {
+                    released = true;
+                    release();
+                }
+                return null;
+            }
+            if ("isClosed".equals(name)) {
+                return released || (Boolean) ConnectionLease.this.invoke(connection, method, args);
+            }
+            if (released) {
+                throw new SQLException("Connection already closed.");
+            }
+            Object result = ConnectionLease.this.invoke(connection, method, args);
+            if (result instanceof Statement) {
+                return wrapStatement((Statement) result);
+            }
+            return result;
+        }
+
+        private Object wrapStatement(final Statement statement) {
+            Class<?> type = Statement.class;
+            if (statement instanceof CallableStatement) {
+                type = CallableStatement.class;
+            } else if (statement instanceof PreparedStatement) {
+                type = PreparedStatement.class;
+            }
+            return Proxy.newProxyInstance(ConnectionLease.class.getClassLoader(), new Class<?>[] { type },
+                    (proxy, method, args) -> ConnectionLease.this.invoke(statement, method, args));
+        }
+    }
+}
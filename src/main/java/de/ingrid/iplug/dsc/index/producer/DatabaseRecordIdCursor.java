@@ -0,0 +1,161 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.index.producer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates lazily over the record ids selected by a SQL statement. The result
+ * set is kept open as a forward only, read only server side cursor, the rows
+ * are fetched in chunks of the configured fetch size. The id is expected in
+ * the first column of the result set.
+ * <p/>
+ * Every row is checked with a {@link RecordFilter} before its id is
+ * delivered. The filter must not use the connection of the cursor, since some
+ * drivers (e.g. MySQL) do not allow other statements on a connection while a
+ * result set is streamed.
+ * <p/>
+ * The cursor closes the statement and the connection when all rows are read
+ * or {@link #close()} is called. If reading a row fails, the cursor is closed
+ * and {@link #hasNext()} throws an IllegalStateException.
+ */
+class DatabaseRecordIdCursor implements Iterator<String>, AutoCloseable {
+
+    final private static Log log = LogFactory.getLog(DatabaseRecordIdCursor.class);
+
+    /**
+     * Decides whether the record of the current row of the result set is
+     * delivered.
+     */
+    interface RecordFilter {
+        boolean accept(ResultSet rs) throws SQLException;
+    }
+
+    private final Connection connection;
+
+    private final RecordFilter filter;
+
+    private PreparedStatement ps = null;
+
+    private ResultSet rs = null;
+
+    private String nextId = null;
+
+    private boolean nextAvailable = false;
+
+    private boolean closed = false;
+
+    /** error that stopped reading the rows */
+    private SQLException failure = null;
+
+    DatabaseRecordIdCursor(Connection connection, String sql, int fetchSize, RecordFilter filter) throws SQLException {
+        this.connection = connection;
+        this.filter = filter;
+        try {
+            // e.g. postgres only uses a cursor if not in auto commit mode
+            connection.setAutoCommit(false);
+            ps = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(fetchSize);
+            rs = ps.executeQuery();
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextAvailable) {
+            return true;
+        }
+        if (failure != null) {
+            throw new IllegalStateException("Error reading next record id from cursor.", failure);
+        }
+        if (closed) {
+            return false;
+        }
+        try {
+            while (rs.next()) {
+                String id = rs.getString(1);
+                if (filter.accept(rs)) {
+                    nextId = id;
+                    nextAvailable = true;
+                    return true;
+                }
+            }
+        } catch (SQLException e) {
+            // not the end of the records, the run must not look complete
+            failure = e;
+            close();
+            throw new IllegalStateException("Error reading next record id from cursor.", e);
+        }
+        close();
+        return false;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        nextAvailable = false;
+        return nextId;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (rs != null) {
+                rs.close();
+            }
+            if (ps != null) {
+                ps.close();
+            }
+        } catch (SQLException e) {
+            log.error("Error closing record id cursor.", e);
+        }
+        try {
+            connection.rollback();
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            log.error("Error resetting connection of record id cursor.", e);
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            log.error("Error closing connection of record id cursor.", e);
+        }
+    }
+}
@@ -26,6 +26,9 @@
 package de.ingrid.iplug.dsc.index.producer;
 
 import java.sql.Connection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import de.ingrid.iplug.dsc.om.SourceRecord;
 
@@ -61,6 +64,17 @@ public interface IRecordSetProducer {
      */
     void reset();
 
+    /**
+     * If set, the producer keeps the resources of the run (e.g. the
+     * datasource) when hasNext() returns false, because the delivered records
+     * are still processed by other threads. hasNext() returns false until the
+     * deferral is lifted, which releases the resources.
+     *
+     * @param resetDeferred true to defer the release at the end of the records
+     */
+    default void setResetDeferred(boolean resetDeferred) {
+    }
+
     /**
      * Get the total number of documents.
      * @return the total number of documents, otherwise 'null' if it cannot be determined before.
@@ -107,5 +121,140 @@ public interface IRecordSetProducer {
      * @return
      */
     public boolean isParentPublishDoc(String uuid, boolean addValue, Connection conn);
+
+    /**
+     * Returns true if the producer supports incremental runs.
+     *
+     * @return true if incremental runs are supported
+     */
+    default boolean isIncrementalRunSupported() {
+        return false;
+    }
+
+    /**
+     * Prepares the next run as incremental run, in which only records changed
+     * since the last successful run are delivered. The records deleted since
+     * then are available via {@link #getDeletedRecordIds()} after hasNext()
+     * returned false. The run has to be finished with
+     * {@link #finishIncrementalRun(boolean)}.
+     *
+     * @param full if true, all records are delivered
+     */
+    default void startIncrementalRun(boolean full) {
+        throw new UnsupportedOperationException("Incremental runs are not supported.");
+    }
+
+    /**
+     * Get the ids of the records deleted since the last successful run.
+     *
+     * @return the ids of the deleted records
+     */
+    default List<String> getDeletedRecordIds() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Finishes an incremental run. The state of the run is only stored as
+     * base for the next incremental run if the run was successful.
+     *
+     * @param success true if all changes were written to the index
+     */
+    default void finishIncrementalRun(boolean success) {
+    }
+
+    /**
+     * Finishes a run that is neither incremental nor partitioned, e.g. the
+     * rebuild of the index, after all records were delivered. The state of
+     * the run is only stored as base for the next incremental run if the
+     * run was successful.
+     *
+     * @param success true if all records were written to the index and the
+     *            index is in use
+     */
+    default void finishRun(boolean success) {
+    }
+
+    /**
+     * Stores the progress of the current incremental run. If the run is not
+     * finished successfully, the next incremental run of the same kind
+     * continues after the processed records.
+     *
+     * @param processedRecords number of records delivered in this run that
+     *            are completely processed, in the order they were delivered
+     */
+    default void checkpoint(int processedRecords) {
+    }
+
+    /**
+     * Returns true if the producer supports partitioned runs.
+     *
+     * @return true if partitioned runs are supported
+     */
+    default boolean isPartitionedRunSupported() {
+        return false;
+    }
+
+    /**
+     * Claims the next partition of a partitioned run, which is shared by
+     * several nodes. The next run only delivers the records of the claimed
+     * partition and has to be finished with
+     * {@link #finishPartitionedRun(boolean)}.
+     *
+     * @param runId id of the run, the same for all nodes
+     * @return false if no partition is left
+     */
+    default boolean startPartitionedRun(String runId) {
+        throw new UnsupportedOperationException("Partitioned runs are not supported.");
+    }
+
+    /**
+     * Finishes the run of the claimed partition. Only successful partitions
+     * are marked as done, others can be claimed again.
+     *
+     * @param success true if all records of the partition were written to the index
+     */
+    default void finishPartitionedRun(boolean success) {
+    }
+
+    /**
+     * Get the number of documents of the finished partitions of a run.
+     *
+     * @param runId id of the run
+     * @return the number of documents by partition number
+     */
+    default Map<Integer, Integer> getPartitionDocCounts(String runId) {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Get the total number of documents of all partitions. Equals
+     * {@link #getDocCount()} if the run is not partitioned.
+     *
+     * @return the total number of documents
+     */
+    default int getTotalDocCount() {
+        return getDocCount();
+    }
+
+    /**
+     * Pauses the delivery of records. hasNext() blocks until
+     * {@link #resume()} is called.
+     */
+    default void pause() {
+        throw new UnsupportedOperationException("Pausing is not supported.");
+    }
+
+    /**
+     * Resumes the delivery of records after {@link #pause()}.
+     */
+    default void resume() {
+    }
+
+    /**
+     * @return true if the delivery of records is paused
+     */
+    default boolean isPaused() {
+        return false;
+    }
     
 }
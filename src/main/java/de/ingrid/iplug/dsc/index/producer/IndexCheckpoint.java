@@ -0,0 +1,131 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.index.producer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Progress of an interrupted incremental index run. Contains the start time
+ * of the run, whether it was a full run and the id of the last record that
+ * was completely processed, in the order the records were delivered.
+ */
+class IndexCheckpoint {
+
+    private static final String RUN_START = "runStart";
+
+    private static final String FULL = "full";
+
+    private static final String PROCESSED = "processed";
+
+    private static final String LAST_RECORD_ID = "lastRecordId";
+
+    private final long runStart;
+
+    private final boolean full;
+
+    private final int processed;
+
+    private final String lastRecordId;
+
+    IndexCheckpoint(long runStart, boolean full, int processed, String lastRecordId) {
+        this.runStart = runStart;
+        this.full = full;
+        this.processed = processed;
+        this.lastRecordId = lastRecordId;
+    }
+
+    long getRunStart() {
+        return runStart;
+    }
+
+    boolean isFull() {
+        return full;
+    }
+
+    int getProcessed() {
+        return processed;
+    }
+
+    String getLastRecordId() {
+        return lastRecordId;
+    }
+
+    /**
+     * Reads the checkpoint from a file.
+     *
+     * @param file the checkpoint file
+     * @return the checkpoint or null if the file does not exist
+     * @throws IOException
+     */
+    static IndexCheckpoint load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            props.load(in);
+        }
+        try {
+            return new IndexCheckpoint(
+                    Long.parseLong(props.getProperty(RUN_START)),
+                    Boolean.parseBoolean(props.getProperty(FULL)),
+                    Integer.parseInt(props.getProperty(PROCESSED, "0")),
+                    props.getProperty(LAST_RECORD_ID));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid checkpoint file: " + file, e);
+        }
+    }
+
+    /**
+     * Writes the checkpoint to a file. The file is replaced only after the
+     * checkpoint is written completely.
+     *
+     * @param file the checkpoint file
+     * @throws IOException
+     */
+    void save(File file) throws IOException {
+        Properties props = new Properties();
+        props.setProperty(RUN_START, Long.toString(runStart));
+        props.setProperty(FULL, Boolean.toString(full));
+        props.setProperty(PROCESSED, Integer.toString(processed));
+        if (lastRecordId != null) {
+            props.setProperty(LAST_RECORD_ID, lastRecordId);
+        }
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        Path tmp = new File(file.getAbsolutePath() + ".tmp").toPath();
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            props.store(out, "checkpoint of incremental index run");
+        }
+        Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
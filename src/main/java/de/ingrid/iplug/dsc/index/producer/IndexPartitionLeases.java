@@ -0,0 +1,331 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.index.producer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Coordinates the partitions of a partitioned index run between several
+ * iPlug instances by a lease table in the source database. Every partition
+ * of a run has a row, a node claims a partition by an atomic conditional
+ * update. A partition whose lease expired, e.g. because the node crashed, can
+ * be claimed by another node.
+ * <p/>
+ * How the records are split into partitions is determined once by the node
+ * creating the run and stored with the partitions, all nodes use the
+ * {@link Scheme} of partition 0.
+ * <p/>
+ * The table has to be created in advance:
+ * <pre>
+ * CREATE TABLE dsc_index_partition (
+ *   run_id VARCHAR(64) NOT NULL,
+ *   partition_no INTEGER NOT NULL,
+ *   node_id VARCHAR(255),
+ *   lease_until BIGINT,
+ *   state VARCHAR(16) NOT NULL,
+ *   doc_count INTEGER,
+ *   strategy VARCHAR(16),
+ *   range_min BIGINT,
+ *   range_max BIGINT,
+ *   record_count INTEGER,
+ *   PRIMARY KEY (run_id, partition_no))
+ * </pre>
+ */
+class IndexPartitionLeases {
+
+    final private static Log log = LogFactory.getLog(IndexPartitionLeases.class);
+
+    static final String STATE_OPEN = "OPEN";
+
+    static final String STATE_RUNNING = "RUNNING";
+
+    static final String STATE_DONE = "DONE";
+
+    /** partitions by hash of the id string */
+    static final String STRATEGY_HASH = "hash";
+
+    /** partitions by the numeric id modulo the number of partitions */
+    static final String STRATEGY_MOD = "mod";
+
+    /** partitions by equally sized ranges of the numeric ids */
+    static final String STRATEGY_RANGE = "range";
+
+    private final String table;
+
+    IndexPartitionLeases(String table) {
+        this.table = table;
+    }
+
+    /**
+     * Creates the rows of all partitions of a run if they do not exist yet.
+     * Rows created concurrently by another node are ignored.
+     */
+    void createPartitions(Connection conn, String runId, int partitionCount, Scheme scheme) throws SQLException {
+        List<Integer> existing = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement("SELECT partition_no FROM " + table + " WHERE run_id = ?")) {
+            ps.setString(1, runId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    existing.add(rs.getInt(1));
+                }
+            }
+        }
+        for (int partition = 0; partition < partitionCount; partition++) {
+            if (existing.contains(partition)) {
+                continue;
+            }
+            try (PreparedStatement ps = conn.prepareStatement("INSERT INTO " + table
+                    + " (run_id, partition_no, state, doc_count, strategy, range_min, range_max, record_count)"
+                    + " VALUES (?, ?, ?, 0, ?, ?, ?, ?)")) {
+                ps.setString(1, runId);
+                ps.setInt(2, partition);
+                ps.setString(3, STATE_OPEN);
+                ps.setString(4, scheme.strategy);
+                ps.setLong(5, scheme.min);
+                ps.setLong(6, scheme.max);
+                ps.setInt(7, scheme.recordCount);
+                ps.executeUpdate();
+            } catch (SQLException e) {
+                // created by another node in the meantime
+                if (log.isDebugEnabled()) {
+                    log.debug("Partition " + partition + " of run " + runId + " not created: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the scheme stored with partition 0 of a run or null if the
+     *         run was not created yet
+     */
+    Scheme getScheme(Connection conn, String runId) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT strategy, range_min, range_max, record_count FROM "
+                + table + " WHERE run_id = ? AND partition_no = 0")) {
+            ps.setString(1, runId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return new Scheme(rs.getString(1), rs.getLong(2), rs.getLong(3), rs.getInt(4));
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Claims the first partition of a run that is not done and not leased by
+     * another node.
+     *
+     * @return the number of the claimed partition or null if no partition is
+     *         available
+     */
+    Integer claim(Connection conn, String runId, String nodeId, long leaseMillis) throws SQLException {
+        long now = System.currentTimeMillis();
+        List<Integer> candidates = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement("SELECT partition_no FROM " + table
+                + " WHERE run_id = ? AND state <> ? AND (node_id IS NULL OR node_id = ? OR lease_until < ?)"
+                + " ORDER BY partition_no")) {
+            ps.setString(1, runId);
+            ps.setString(2, STATE_DONE);
+            ps.setString(3, nodeId);
+            ps.setLong(4, now);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    candidates.add(rs.getInt(1));
+                }
+            }
+        }
+        for (Integer partition : candidates) {
+            try (PreparedStatement ps = conn.prepareStatement("UPDATE " + table
+                    + " SET node_id = ?, lease_until = ?, state = ?"
+                    + " WHERE run_id = ? AND partition_no = ? AND state <> ?"
+                    + " AND (node_id IS NULL OR node_id = ? OR lease_until < ?)")) {
+                ps.setString(1, nodeId);
+                ps.setLong(2, now + leaseMillis);
+                ps.setString(3, STATE_RUNNING);
+                ps.setString(4, runId);
+                ps.setInt(5, partition);
+                ps.setString(6, STATE_DONE);
+                ps.setString(7, nodeId);
+                ps.setLong(8, now);
+                if (ps.executeUpdate() == 1) {
+                    return partition;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Extends the lease of a partition claimed by the node.
+     *
+     * @return false if the partition was taken over by another node
+     */
+    boolean renew(Connection conn, String runId, int partition, String nodeId, long leaseMillis) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("UPDATE " + table + " SET lease_until = ?"
+                + " WHERE run_id = ? AND partition_no = ? AND node_id = ? AND state = ?")) {
+            ps.setLong(1, System.currentTimeMillis() + leaseMillis);
+            ps.setString(2, runId);
+            ps.setInt(3, partition);
+            ps.setString(4, nodeId);
+            ps.setString(5, STATE_RUNNING);
+            return ps.executeUpdate() == 1;
+        }
+    }
+
+    /**
+     * Marks a partition claimed by the node as done or releases it for other
+     * nodes.
+     */
+    void finish(Connection conn, String runId, int partition, String nodeId, boolean done, int docCount) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("UPDATE " + table
+                + " SET state = ?, doc_count = ?, node_id = ?, lease_until = ?"
+                + " WHERE run_id = ? AND partition_no = ? AND node_id = ?")) {
+            ps.setString(1, done ? STATE_DONE : STATE_OPEN);
+            ps.setInt(2, done ? docCount : 0);
+            if (done) {
+                ps.setString(3, nodeId);
+            } else {
+                ps.setNull(3, Types.VARCHAR);
+            }
+            ps.setLong(4, 0);
+            ps.setString(5, runId);
+            ps.setInt(6, partition);
+            ps.setString(7, nodeId);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * @return the number of documents of all finished partitions of a run
+     */
+    Map<Integer, Integer> getDocCounts(Connection conn, String runId) throws SQLException {
+        Map<Integer, Integer> counts = new TreeMap<>();
+        try (PreparedStatement ps = conn.prepareStatement("SELECT partition_no, doc_count FROM " + table
+                + " WHERE run_id = ? AND state = ? ORDER BY partition_no")) {
+            ps.setString(1, runId);
+            ps.setString(2, STATE_DONE);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    counts.put(rs.getInt(1), rs.getInt(2));
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Describes how the records of a run are split into partitions. Numeric
+     * ids that are not in the range of the run belong to the first or last
+     * partition, ids that are not numeric to the first partition.
+     */
+    static class Scheme {
+
+        final String strategy;
+
+        final long min;
+
+        final long max;
+
+        /** number of records to index when the run was created */
+        final int recordCount;
+
+        Scheme(String strategy, long min, long max, int recordCount) {
+            this.strategy = strategy;
+            this.min = min;
+            this.max = max;
+            this.recordCount = recordCount;
+        }
+
+        /**
+         * Creates the scheme for the ids of the records to index. Range and
+         * modulo partitioning fall back to hash partitioning if an id is not
+         * numeric.
+         */
+        static Scheme create(List<String> ids, String requestedStrategy) {
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (String id : ids) {
+                Long value = parse(id);
+                if (value == null) {
+                    return new Scheme(STRATEGY_HASH, 0, 0, ids.size());
+                }
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            if (ids.isEmpty()) {
+                min = max = 0;
+            }
+            String strategy = STRATEGY_RANGE.equals(requestedStrategy) ? STRATEGY_RANGE : STRATEGY_MOD;
+            return new Scheme(strategy, min, max, ids.size());
+        }
+
+        boolean isNumeric() {
+            return STRATEGY_RANGE.equals(strategy) || STRATEGY_MOD.equals(strategy);
+        }
+
+        /**
+         * @return the smallest id of a partition in range partitioning
+         */
+        long lowerBound(int partition, int partitionCount) {
+            long span = max - min + 1;
+            return min + (span * partition + partitionCount - 1) / partitionCount;
+        }
+
+        int partitionOf(String id, int partitionCount) {
+            if (!isNumeric()) {
+                return Math.floorMod(id.hashCode(), partitionCount);
+            }
+            Long value = parse(id);
+            if (value == null) {
+                return 0;
+            }
+            if (STRATEGY_MOD.equals(strategy)) {
+                return (int) Math.abs(value % partitionCount);
+            }
+            int partition = 0;
+            while (partition < partitionCount - 1 && value >= lowerBound(partition + 1, partitionCount)) {
+                partition++;
+            }
+            return partition;
+        }
+
+        private static Long parse(String id) {
+            try {
+                return Long.parseLong(id.trim());
+            } catch (NumberFormatException | NullPointerException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.index.producer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In memory graph of the object hierarchy used for the publication checks
+ * during an index run. Replaces the recursive SQL checks
+ * (recordSqlValidateFolderChildren, recordSqlValidateParentPublishDoc) that
+ * need one query per tree level for every record.
+ * <p/>
+ * The nodes are addressed by int indices, the parent of a node is stored in
+ * an int array and the published flags in a {@link BitSet}. After all nodes
+ * are added, {@link #build()} computes "has published descendant" and "all
+ * ancestors published" for every node in linear time without recursion.
+ * <p/>
+ * The graph keeps track of its estimated memory consumption while nodes are
+ * added. If the configured budget is exceeded, the graph is discarded and
+ * the SQL based checks have to be used.
+ */
+class ObjectHierarchyGraph {
+
+    final private static Log log = LogFactory.getLog(ObjectHierarchyGraph.class);
+
+    /** estimated bytes per node without the uuid characters (map entry, index, arrays) */
+    private static final int NODE_OVERHEAD_BYTES = 120;
+
+    private static final int NO_PARENT = -1;
+
+    private static final int UNKNOWN_PARENT = -2;
+
+    private final long memoryBudget;
+
+    private long estimatedMemory = 0;
+
+    private final Map<String, Integer> nodeIndex = new HashMap<>();
+
+    /** parent uuids of the nodes, only needed until build() is called */
+    private List<String> parentUuids = new ArrayList<>();
+
+    private final BitSet published = new BitSet();
+
+    private BitSet hasPublishedDescendant = null;
+
+    private BitSet allAncestorsPublished = null;
+
+    /**
+     * @param memoryBudget maximum estimated memory of the graph in bytes
+     */
+    ObjectHierarchyGraph(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Loads the graph from the database. The SQL has to deliver one row per
+     * node with the columns uuid, uuid of the parent (null for top level
+     * nodes) and a value that is not null if the node is published.
+     *
+     * @param conn connection to the database
+     * @param sql SQL selecting all nodes of the hierarchy
+     * @param memoryBudget maximum estimated memory of the graph in bytes
+     * @return the graph or null if the memory budget is exceeded
+     * @throws SQLException
+     */
+    static ObjectHierarchyGraph load(Connection conn, String sql, long memoryBudget) throws SQLException {
+        long start = System.currentTimeMillis();
+        if (log.isDebugEnabled()) {
+            log.debug("SQL: " + sql);
+        }
+        ObjectHierarchyGraph graph = new ObjectHierarchyGraph(memoryBudget);
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (!graph.addNode(rs.getString(1), rs.getString(2), rs.getString(3) != null)) {
+                        log.warn("Object hierarchy exceeds the memory budget of " + memoryBudget
+                                + " bytes, using SQL for the publication checks.");
+                        return null;
+                    }
+                }
+            }
+        }
+        graph.build();
+        if (log.isInfoEnabled()) {
+            log.info("Object hierarchy with " + graph.size() + " nodes loaded in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        }
+        return graph;
+    }
+
+    /**
+     * Adds a node to the graph. If a uuid is added more than once, the last
+     * parent is used and the node is published if any of the rows is
+     * published.
+     *
+     * @param uuid uuid of the node
+     * @param parentUuid uuid of the parent node or null for top level nodes
+     * @param isPublished true if the node is published
+     * @return false if the memory budget is exceeded
+     */
+    boolean addNode(String uuid, String parentUuid, boolean isPublished) {
+        if (uuid == null) {
+            return true;
+        }
+        Integer idx = nodeIndex.get(uuid);
+        if (idx == null) {
+            estimatedMemory += NODE_OVERHEAD_BYTES + 2L * uuid.length()
+                    + (parentUuid == null ? 0 : 2L * parentUuid.length());
+            if (estimatedMemory > memoryBudget) {
+                return false;
+            }
+            idx = parentUuids.size();
+            nodeIndex.put(uuid, idx);
+            parentUuids.add(parentUuid);
+        } else {
+            parentUuids.set(idx, parentUuid);
+        }
+        if (isPublished) {
+            published.set(idx);
+        }
+        return true;
+    }
+
+    /**
+     * Resolves the parents and computes the publication state of all nodes.
+     */
+    void build() {
+        int size = parentUuids.size();
+        int[] parent = new int[size];
+        for (int i = 0; i < size; i++) {
+            String parentUuid = parentUuids.get(i);
+            if (parentUuid == null) {
+                parent[i] = NO_PARENT;
+            } else {
+                Integer p = nodeIndex.get(parentUuid);
+                parent[i] = p == null ? UNKNOWN_PARENT : p;
+            }
+        }
+        parentUuids = null;
+
+        // mark all ancestors of published nodes, stop at nodes already marked
+        hasPublishedDescendant = new BitSet(size);
+        for (int i = published.nextSetBit(0); i >= 0; i = published.nextSetBit(i + 1)) {
+            int p = parent[i];
+            while (p >= 0 && !hasPublishedDescendant.get(p)) {
+                hasPublishedDescendant.set(p);
+                p = parent[p];
+            }
+        }
+
+        // walk up to the first node with known state, then resolve the path
+        // top down; nodes on a cycle are treated as not published
+        allAncestorsPublished = new BitSet(size);
+        BitSet resolved = new BitSet(size);
+        BitSet onPath = new BitSet(size);
+        int[] path = new int[16];
+        for (int i = 0; i < size; i++) {
+            if (resolved.get(i)) {
+                continue;
+            }
+            int depth = 0;
+            int n = i;
+            boolean state;
+            while (true) {
+                if (n < 0) {
+                    // NO_PARENT is fine, an unknown parent is not published
+                    state = n == NO_PARENT;
+                    break;
+                }
+                if (resolved.get(n)) {
+                    state = allAncestorsPublished.get(n);
+                    break;
+                }
+                if (onPath.get(n)) {
+                    state = false;
+                    break;
+                }
+                if (depth == path.length) {
+                    path = Arrays.copyOf(path, depth * 2);
+                }
+                path[depth++] = n;
+                onPath.set(n);
+                n = parent[n];
+            }
+            while (depth > 0) {
+                n = path[--depth];
+                state = state && published.get(n);
+                allAncestorsPublished.set(n, state);
+                resolved.set(n);
+                onPath.clear(n);
+            }
+        }
+    }
+
+    /**
+     * @return number of nodes in the graph
+     */
+    int size() {
+        return nodeIndex.size();
+    }
+
+    /**
+     * Corresponds to the recursive check with recordSqlValidateFolderChildren.
+     *
+     * @param uuid uuid of the node
+     * @return true if any node below the node is published
+     */
+    boolean isFolderWithPublishDoc(String uuid) {
+        Integer idx = nodeIndex.get(uuid);
+        return idx != null && hasPublishedDescendant.get(idx);
+    }
+
+    /**
+     * Corresponds to the recursive check with recordSqlValidateParentPublishDoc.
+     *
+     * @param uuid uuid of the node
+     * @return true if the node and all its ancestors are published
+     */
+    boolean isParentPublishDoc(String uuid) {
+        Integer idx = nodeIndex.get(uuid);
+        return idx != null && allAncestorsPublished.get(idx);
+    }
+}
@@ -36,13 +36,26 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Takes care of selecting all source record Ids from a database. The SQL 
@@ -50,6 +63,38 @@ import java.util.List;
  * 
  * The database connection is configured via the PlugDescription.
  * 
+ * By default all record ids are read into memory before the first record is
+ * delivered. In streaming mode the ids are read lazily from a server side
+ * cursor (see {@link DatabaseRecordIdCursor}) and the number of records is
+ * determined by a separate count query.
+ * 
+ * If recordSqlHierarchy is set, the object hierarchy is loaded once per run
+ * into an {@link ObjectHierarchyGraph} and the publication checks are done in
+ * memory instead of querying the database recursively for every record. If
+ * the hierarchy exceeds the memory budget, the SQL checks are used.
+ * 
+ * If recordChangedSinceSql is set, incremental runs are supported. The ids of
+ * all records and the start time of every completed run are stored in a state
+ * file. An incremental run only delivers the records selected by
+ * recordChangedSinceSql since the last run and records not delivered by the
+ * last run. Records delivered by the last run but not selected anymore are
+ * reported as deleted.
+ * 
+ * The progress of incremental runs can be stored in a checkpoint file. If a
+ * run is interrupted, the next incremental run of the same kind continues
+ * after the last processed record. The delivery of records can be paused and
+ * resumed.
+ * 
+ * By default every record gets its own connection from the pool. If
+ * connectionReuseMaxRecords is greater than 1, every thread fetching records
+ * keeps its connection for the configured number of records or time (see
+ * {@link ConnectionLease}).
+ * 
+ * If partitionCount is greater than 1, partitioned runs are supported. The
+ * records are split into partitions by hash or range of their id, the nodes
+ * taking part in the run claim the partitions by a lease table (see
+ * {@link IndexPartitionLeases}).
+ * 
  * 
  * @author joachim@wemove.com
  * 
@@ -76,10 +121,106 @@ public class PlugDescriptionConfiguredDatabaseRecordSetProducer implements
 
     String recordParentFolderByUuidSql = "";
 
+    String recordCountSql = "";
+
+    String recordSqlHierarchy = "";
+
+    private long hierarchyMemoryBudget = 64L * 1024 * 1024;
+
+    /** hierarchy used for the publication checks of the current run, null if the SQL checks are used */
+    private ObjectHierarchyGraph hierarchyGraph = null;
+
     Iterator<String> recordIdIterator = null;
 
     private int numRecords;
 
+    String recordChangedSinceSql = "";
+
+    private String deltaStateFile = "index-delta.state";
+
+    private String deltaTimestampFormat = "yyyyMMddHHmmssSSS";
+
+    private long deltaOverlap = 60000;
+
+    private boolean incrementalRun = false;
+
+    private boolean incrementalFull = false;
+
+    private List<String> deletedRecordIds = Collections.emptyList();
+
+    /** state of the current run, stored when the run is completed */
+    private RecordSetDeltaState pendingDeltaState = null;
+
+    /** state of the last run that delivered all records, stored by finishRun() */
+    private RecordSetDeltaState completedRunState = null;
+
+    private String checkpointFile = "index-checkpoint.state";
+
+    /** ids of the current incremental run in delivery order, including records skipped on resume */
+    private List<String> incrementalRecordIds = null;
+
+    /** number of records skipped because they were processed by an interrupted run */
+    private int incrementalOffset = 0;
+
+    private int connectionReuseMaxRecords = 0;
+
+    private long connectionReuseMaxMillis = 60000;
+
+    /** connection kept by the thread fetching records if connections are reused */
+    private final ThreadLocal<ConnectionLease> connectionLease = new ThreadLocal<>();
+
+    private final Set<ConnectionLease> connectionLeases = ConcurrentHashMap.newKeySet();
+
+    private int partitionCount = 0;
+
+    private String partitionStrategy = PARTITION_HASH;
+
+    private String partitionTable = "dsc_index_partition";
+
+    private long partitionLeaseMillis = 600000;
+
+    private String nodeId = ManagementFactory.getRuntimeMXBean().getName();
+
+    private String partitionRunId = null;
+
+    /** partition claimed for the current run, null if the run is not partitioned */
+    private Integer currentPartition = null;
+
+    private boolean partitionLost = false;
+
+    private long partitionLeaseRenewed = 0;
+
+    /** how the records of the current partitioned run are split, the same for all nodes */
+    private IndexPartitionLeases.Scheme partitionScheme = null;
+
+    public static final String PARTITION_HASH = "hash";
+
+    public static final String PARTITION_RANGE = "range";
+
+    private final Object pauseLock = new Object();
+
+    private volatile boolean paused = false;
+
+    /** ids delivered in streaming mode, needed for the state of the run */
+    private List<String> deliveredRecordIds = null;
+
+    /**
+     * true if all records were delivered while the release was deferred or in
+     * an incremental or partitioned run, hasNext() returns false until the run
+     * is finished or reset
+     */
+    private boolean exhausted = false;
+
+    /** if true, the producer is not released at the end of the records until the deferral is lifted */
+    private boolean resetDeferred = false;
+
+    private boolean streaming = false;
+
+    private int fetchSize = 1000;
+
+    /** connection used for the publication checks while streaming record ids */
+    private Connection streamingCheckConnection = null;
+
     final private static Log log = LogFactory
             .getLog(PlugDescriptionConfiguredDatabaseRecordSetProducer.class);
 
@@ -94,13 +235,49 @@ public class PlugDescriptionConfiguredDatabaseRecordSetProducer implements
      */
     @Override
     public boolean hasNext() {
+        awaitResume();
+        if (exhausted) {
+            return false;
+        }
+        if (currentPartition != null && !renewPartitionLease()) {
+            recordIdIterator = Collections.emptyIterator();
+        }
         if (recordIdIterator == null) {
-            createRecordIdsFromDatabase();
+            if (currentPartition != null) {
+                createPartitionRecordIdsFromDatabase();
+            } else if (incrementalRun) {
+                createIncrementalRecordIdsFromDatabase();
+            } else if (streaming) {
+                openRecordIdCursor();
+            } else {
+                createRecordIdsFromDatabase();
+            }
+        }
+        boolean hasNextId;
+        try {
+            hasNextId = recordIdIterator != null && recordIdIterator.hasNext();
+        } catch (RuntimeException e) {
+            // the run is incomplete, its state must not be stored
+            if (!resetDeferred) {
+                reset();
+            }
+            throw e;
         }
-        if (recordIdIterator.hasNext()) {
+        if (hasNextId) {
             return true;
         } else {
-            reset();
+            if (!incrementalRun && currentPartition == null && recordIdIterator != null) {
+                // the records are not in the index yet, see finishRun()
+                completedRunState = completedDeltaState();
+            }
+            if (resetDeferred) {
+                // records may still be in use, release() is called when the deferral is lifted
+                exhausted = true;
+            } else {
+                release();
+                // incremental and partitioned runs must not start over before they are finished
+                exhausted = incrementalRun || currentPartition != null;
+            }
             return false;
         }
     }
@@ -111,7 +288,31 @@ public class PlugDescriptionConfiguredDatabaseRecordSetProducer implements
      */
     @Override
     public void reset() {
+        exhausted = false;
+        release();
+    }
+
+    @Override
+    public void setResetDeferred(boolean resetDeferred) {
+        this.resetDeferred = resetDeferred;
+        if (!resetDeferred && exhausted) {
+            release();
+            exhausted = incrementalRun || currentPartition != null;
+        }
+    }
+
+    /**
+     * Closes the connection to the database and the iterator for the records.
+     */
+    private void release() {
+        closeRecordIdCursor();
+        retireConnectionLeases();
         recordIdIterator =  null;
+        hierarchyGraph = null;
+        deliveredRecordIds = null;
+        if (!incrementalRun) {
+            pendingDeltaState = null;
+        }
         closeDatasource();
     }
 
@@ -125,8 +326,16 @@ public class PlugDescriptionConfiguredDatabaseRecordSetProducer implements
         Connection connection = null;
         try {
             // connection will be closed in autoclosable DatabaseSourceRecord
-            connection = DatabaseConnectionUtils.getInstance().openConnection(internalDatabaseConnection);
-            return new DatabaseSourceRecord(recordIdIterator.next(), connection);
+            if (connectionReuseMaxRecords > 1) {
+                connection = leaseConnection();
+            } else {
+                connection = DatabaseConnectionUtils.getInstance().openConnection(internalDatabaseConnection);
+            }
+            String id = recordIdIterator.next();
+            if (deliveredRecordIds != null) {
+                deliveredRecordIds.add(id);
+            }
+            return new DatabaseSourceRecord(id, connection);
         } catch (SQLException e) {
             log.error("Error getting connection from datasource.", e);
         }
@@ -155,6 +364,253 @@ public class PlugDescriptionConfiguredDatabaseRecordSetProducer implements
         this.recordSql = recordSql;
     }
 
+    public String getRecordCountSql() {
+        return recordCountSql;
+    }
+
+    /**
+     * Sets the SQL to count the records in streaming mode. If not set, the
+     * records selected by recordSql are counted. The count is determined before
+     * the publication checks, so it may be greater than the number of records
+     * delivered.
+     *
+     * @param recordCountSql
+     */
+    public void setRecordCountSql(String recordCountSql) {
+        this.recordCountSql = recordCountSql;
+    }
+
+    public String getRecordChangedSinceSql() {
+        return recordChangedSinceSql;
+    }
+
+    /**
+     * Sets the SQL selecting the ids of the records changed since a point in
+     * time, e.g. "SELECT id FROM t01_object WHERE mod_time >= ?". The
+     * parameter is set to the start of the last run formatted with
+     * deltaTimestampFormat. If set, incremental runs are supported.
+     *
+     * @param recordChangedSinceSql
+     */
+    public void setRecordChangedSinceSql(String recordChangedSinceSql) {
+        this.recordChangedSinceSql = recordChangedSinceSql;
+    }
+
+    public String getDeltaStateFile() {
+        return deltaStateFile;
+    }
+
+    /**
+     * Sets the file storing the state of the last completed run.
+     *
+     * @param deltaStateFile
+     */
+    public void setDeltaStateFile(String deltaStateFile) {
+        this.deltaStateFile = deltaStateFile;
+    }
+
+    public String getDeltaTimestampFormat() {
+        return deltaTimestampFormat;
+    }
+
+    /**
+     * Sets the format of the parameter of recordChangedSinceSql as
+     * {@link SimpleDateFormat} pattern. If empty, the parameter is set as
+     * timestamp.
+     *
+     * @param deltaTimestampFormat
+     */
+    public void setDeltaTimestampFormat(String deltaTimestampFormat) {
+        this.deltaTimestampFormat = deltaTimestampFormat;
+    }
+
+    public long getDeltaOverlap() {
+        return deltaOverlap;
+    }
+
+    /**
+     * Sets the milliseconds subtracted from the start of the last run when
+     * selecting the changed records, to compensate clock differences between
+     * database and iPlug.
+     *
+     * @param deltaOverlap
+     */
+    public void setDeltaOverlap(long deltaOverlap) {
+        this.deltaOverlap = deltaOverlap;
+    }
+
+    public int getConnectionReuseMaxRecords() {
+        return connectionReuseMaxRecords;
+    }
+
+    /**
+     * Sets the number of records a thread uses the same connection for. If
+     * not greater than 1, every record gets its own connection from the pool.
+     *
+     * @param connectionReuseMaxRecords
+     */
+    public void setConnectionReuseMaxRecords(int connectionReuseMaxRecords) {
+        this.connectionReuseMaxRecords = connectionReuseMaxRecords;
+    }
+
+    public long getConnectionReuseMaxMillis() {
+        return connectionReuseMaxMillis;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds a thread uses the same
+     * connection for.
+     *
+     * @param connectionReuseMaxMillis
+     */
+    public void setConnectionReuseMaxMillis(long connectionReuseMaxMillis) {
+        this.connectionReuseMaxMillis = connectionReuseMaxMillis;
+    }
+
+    public int getPartitionCount() {
+        return partitionCount;
+    }
+
+    /**
+     * Sets the number of partitions of partitioned runs. If not greater than
+     * 1, partitioned runs are not supported.
+     *
+     * @param partitionCount
+     */
+    public void setPartitionCount(int partitionCount) {
+        this.partitionCount = partitionCount;
+    }
+
+    public String getPartitionStrategy() {
+        return partitionStrategy;
+    }
+
+    /**
+     * Sets how the records are split into partitions: "hash" of the id or
+     * "range" of the numeric id.
+     *
+     * @param partitionStrategy
+     */
+    public void setPartitionStrategy(String partitionStrategy) {
+        this.partitionStrategy = partitionStrategy;
+    }
+
+    public String getPartitionTable() {
+        return partitionTable;
+    }
+
+    /**
+     * Sets the name of the lease table coordinating partitioned runs.
+     *
+     * @param partitionTable
+     */
+    public void setPartitionTable(String partitionTable) {
+        this.partitionTable = partitionTable;
+    }
+
+    public long getPartitionLeaseMillis() {
+        return partitionLeaseMillis;
+    }
+
+    /**
+     * Sets the time in milliseconds after which a partition of a node that
+     * does not renew its lease can be claimed by another node.
+     *
+     * @param partitionLeaseMillis
+     */
+    public void setPartitionLeaseMillis(long partitionLeaseMillis) {
+        this.partitionLeaseMillis = partitionLeaseMillis;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Sets the id of this node in partitioned runs, must be unique for all
+     * nodes. Defaults to process id and host name.
+     *
+     * @param nodeId
+     */
+    public void setNodeId(String nodeId) {
+        if (nodeId != null && !nodeId.isEmpty()) {
+            this.nodeId = nodeId;
+        }
+    }
+
+    public String getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    /**
+     * Sets the file storing the progress of an incremental run.
+     *
+     * @param checkpointFile
+     */
+    public void setCheckpointFile(String checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * If true, the record ids are read lazily from a server side cursor
+     * instead of reading all ids into memory before the first record is
+     * delivered.
+     *
+     * @param streaming
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Sets the number of rows fetched from the database at once in streaming
+     * mode.
+     *
+     * @param fetchSize
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public String getRecordSqlHierarchy() {
+        return recordSqlHierarchy;
+    }
+
+    /**
+     * Sets the SQL to load the object hierarchy for the publication checks.
+     * The SQL has to deliver the columns uuid, uuid of the parent and a value
+     * that is not null if the object is published, consistent with
+     * recordSqlValidateFolderChildren and recordSqlValidateParentPublishDoc.
+     * If not set, the publication checks are done by these SQL statements.
+     *
+     * @param recordSqlHierarchy
+     */
+    public void setRecordSqlHierarchy(String recordSqlHierarchy) {
+        this.recordSqlHierarchy = recordSqlHierarchy;
+    }
+
+    public long getHierarchyMemoryBudget() {
+        return hierarchyMemoryBudget;
+    }
+
+    /**
+     * Sets the maximum estimated memory in bytes of the object hierarchy
+     * loaded by recordSqlHierarchy.
+     *
+     * @param hierarchyMemoryBudget
+     */
+    public void setHierarchyMemoryBudget(long hierarchyMemoryBudget) {
+        this.hierarchyMemoryBudget = hierarchyMemoryBudget;
+    }
+
     public String getRecordByIdSql() {
         return recordByIdSql;
     }
@@ -204,49 +660,629 @@ public class PlugDescriptionConfiguredDatabaseRecordSetProducer implements
     }
 
     private void createRecordIdsFromDatabase() {
+        long start = System.currentTimeMillis();
+        List<String> recordIds = selectRecordIdsFromDatabase();
+        if (recordIds != null) {
+            if (isIncrementalRunSupported()) {
+                pendingDeltaState = new RecordSetDeltaState(start, recordIds);
+            }
+            recordIdIterator = recordIds.listIterator();
+            numRecords = recordIds.size();
+        }
+    }
+
+    /**
+     * Selects the ids of all records to index.
+     *
+     * @return the ids or null if an error occurred
+     */
+    private List<String> selectRecordIdsFromDatabase() {
+        try (Connection conn = DatabaseConnectionUtils.getInstance().openConnection(internalDatabaseConnection)) {
+            return selectRecordIdsFromDatabase(conn);
+        } catch (Exception e) {
+            log.error("Error creating record ids.", e);
+        }
+        return null;
+    }
+
+    private List<String> selectRecordIdsFromDatabase(Connection conn) throws SQLException {
+        List<String> recordIds = new ArrayList<String>();
+        if (log.isDebugEnabled()) {
+            log.debug("SQL: " + recordSql);
+        }
+        loadHierarchyGraph(conn);
+        try (PreparedStatement ps = conn.prepareStatement(recordSql)) {
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String id = rs.getString(1);
+                    if (isRecordToIndex(rs, conn)) {
+                        recordIds.add(id);
+                    }
+                }
+            }
+        }
+        return recordIds;
+    }
+
+    /**
+     * Creates the ids of an incremental run: all records if no state of a
+     * previous run exists or a full run is requested, otherwise the records
+     * changed since the last run and the records new since the last run.
+     */
+    private void createIncrementalRecordIdsFromDatabase() {
+        long start = System.currentTimeMillis();
+        List<String> recordIds = selectRecordIdsFromDatabase();
+        if (recordIds == null) {
+            return;
+        }
+        RecordSetDeltaState previousState = null;
+        try {
+            previousState = RecordSetDeltaState.load(new File(deltaStateFile));
+        } catch (IOException e) {
+            log.error("Error reading state of last index run, all records will be indexed.", e);
+        }
+
+        List<String> ids = recordIds;
+        if (previousState != null) {
+            Set<String> currentIds = new HashSet<>(recordIds);
+            List<String> deleted = new ArrayList<>();
+            for (String id : previousState.getRecordIds()) {
+                if (!currentIds.contains(id)) {
+                    deleted.add(id);
+                }
+            }
+            deletedRecordIds = deleted;
+
+            if (!incrementalFull) {
+                Set<String> changedIds = selectChangedRecordIdsFromDatabase(previousState.getWatermark() - deltaOverlap);
+                if (changedIds == null) {
+                    return;
+                }
+                Set<String> previousIds = previousState.getRecordIds();
+                ids = new ArrayList<>();
+                for (String id : recordIds) {
+                    if (changedIds.contains(id) || !previousIds.contains(id)) {
+                        ids.add(id);
+                    }
+                }
+            }
+        }
+        incrementalRecordIds = ids;
+        incrementalOffset = 0;
+        IndexCheckpoint checkpoint = loadCheckpoint();
+        if (checkpoint != null && checkpoint.isFull() == incrementalFull && checkpoint.getLastRecordId() != null) {
+            int position = ids.indexOf(checkpoint.getLastRecordId()) + 1;
+            if (position > 0) {
+                // records changed after being processed by the interrupted run
+                // are found by the next run, since it starts from its start time
+                start = checkpoint.getRunStart();
+                incrementalOffset = position;
+                ids = ids.subList(position, ids.size());
+                log.info("Resume interrupted index run after record " + checkpoint.getLastRecordId()
+                        + ", skipping " + position + " records.");
+            } else {
+                log.info("Last record of interrupted index run not found, index run starts from the beginning.");
+            }
+        }
+        if (log.isInfoEnabled()) {
+            log.info("Incremental run" + (previousState == null || incrementalFull ? " (full)" : "") + ": "
+                    + ids.size() + " of " + recordIds.size() + " records to index, "
+                    + deletedRecordIds.size() + " records to delete.");
+        }
+        pendingDeltaState = new RecordSetDeltaState(start, recordIds);
+        recordIdIterator = ids.listIterator();
+        numRecords = ids.size();
+    }
+
+    private IndexCheckpoint loadCheckpoint() {
         try {
-            List<String> recordIds = new ArrayList<String>();
+            return IndexCheckpoint.load(new File(checkpointFile));
+        } catch (IOException e) {
+            log.error("Error reading checkpoint of interrupted index run, index run starts from the beginning.", e);
+        }
+        return null;
+    }
+
+    private void deleteCheckpoint() {
+        File file = new File(checkpointFile);
+        if (file.exists() && !file.delete()) {
+            log.warn("Could not delete checkpoint file '" + checkpointFile + "'.");
+        }
+    }
+
+    @Override
+    public void checkpoint(int processedRecords) {
+        if (!incrementalRun || incrementalRecordIds == null || pendingDeltaState == null || processedRecords <= 0) {
+            return;
+        }
+        int position = Math.min(incrementalOffset + processedRecords, incrementalRecordIds.size());
+        IndexCheckpoint checkpoint = new IndexCheckpoint(pendingDeltaState.getWatermark(), incrementalFull,
+                position, incrementalRecordIds.get(position - 1));
+        try {
+            checkpoint.save(new File(checkpointFile));
+        } catch (IOException e) {
+            log.error("Error writing checkpoint to '" + checkpointFile + "'.", e);
+        }
+    }
+
+    @Override
+    public boolean isPartitionedRunSupported() {
+        return partitionCount > 1;
+    }
+
+    @Override
+    public boolean startPartitionedRun(String runId) {
+        if (!isPartitionedRunSupported()) {
+            throw new UnsupportedOperationException("Property partitionCount not set.");
+        }
+        if (recordIdIterator != null || currentPartition != null) {
+            throw new IllegalStateException("Another index run is in progress.");
+        }
+        IndexPartitionLeases leases = new IndexPartitionLeases(partitionTable);
+        try (Connection conn = DatabaseConnectionUtils.getInstance().openConnection(internalDatabaseConnection)) {
+            IndexPartitionLeases.Scheme scheme = leases.getScheme(conn, runId);
+            if (scheme == null) {
+                // the node creating the run decides how the records are split
+                scheme = IndexPartitionLeases.Scheme.create(selectRecordIdsFromDatabase(conn), partitionStrategy);
+                if (PARTITION_RANGE.equals(partitionStrategy) && !scheme.isNumeric()) {
+                    log.warn("Record ids are not numeric, using hash partitioning.");
+                }
+            }
+            leases.createPartitions(conn, runId, partitionCount, scheme);
+            // another node may have created the run in the meantime
+            scheme = leases.getScheme(conn, runId);
+            Integer partition = leases.claim(conn, runId, nodeId, partitionLeaseMillis);
+            if (partition == null) {
+                log.info("No partition of run " + runId + " left for node " + nodeId + ".");
+                return false;
+            }
+            partitionRunId = runId;
+            partitionScheme = scheme;
+            currentPartition = partition;
+            exhausted = false;
+            partitionLost = false;
+            partitionLeaseRenewed = System.currentTimeMillis();
+            log.info("Node " + nodeId + " claimed partition " + partition + " of " + partitionCount + " of run " + runId + ".");
+            return true;
+        } catch (SQLException e) {
+            log.error("Error claiming partition of run " + runId + ".", e);
+        }
+        return false;
+    }
+
+    @Override
+    public void finishPartitionedRun(boolean success) {
+        if (currentPartition == null) {
+            return;
+        }
+        IndexPartitionLeases leases = new IndexPartitionLeases(partitionTable);
+        try (Connection conn = DatabaseConnectionUtils.getInstance().openConnection(internalDatabaseConnection)) {
+            leases.finish(conn, partitionRunId, currentPartition, nodeId, success && !partitionLost, numRecords);
+        } catch (SQLException e) {
+            log.error("Error finishing partition " + currentPartition + " of run " + partitionRunId + ".", e);
+        }
+        currentPartition = null;
+        partitionRunId = null;
+        partitionScheme = null;
+        reset();
+    }
+
+    @Override
+    public Map<Integer, Integer> getPartitionDocCounts(String runId) {
+        try (Connection conn = DatabaseConnectionUtils.getInstance().openConnection(internalDatabaseConnection)) {
+            return new IndexPartitionLeases(partitionTable).getDocCounts(conn, runId);
+        } catch (SQLException e) {
+            log.error("Error reading document counts of run " + runId + ".", e);
+        }
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public int getTotalDocCount() {
+        return currentPartition != null ? partitionScheme.recordCount : getDocCount();
+    }
+
+    /**
+     * Renews the lease of the claimed partition if a third of the lease time
+     * is over.
+     *
+     * @return false if the partition was taken over by another node
+     */
+    private boolean renewPartitionLease() {
+        if (partitionLost) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now - partitionLeaseRenewed < partitionLeaseMillis / 3) {
+            return true;
+        }
+        try (Connection conn = DatabaseConnectionUtils.getInstance().openConnection(internalDatabaseConnection)) {
+            if (new IndexPartitionLeases(partitionTable).renew(conn, partitionRunId, currentPartition, nodeId, partitionLeaseMillis)) {
+                partitionLeaseRenewed = now;
+                return true;
+            }
+            log.warn("Partition " + currentPartition + " of run " + partitionRunId + " was taken over by another node.");
+            partitionLost = true;
+        } catch (SQLException e) {
+            // try again with the next record, the lease is still valid for a while
+            log.error("Error renewing lease of partition " + currentPartition + ".", e);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Creates the ids of the claimed partition. If the id column is numeric,
+     * the partition is selected by SQL, otherwise the ids of all records are
+     * selected and filtered.
+     */
+    private void createPartitionRecordIdsFromDatabase() {
+        List<String> ids = new ArrayList<>();
+        try (Connection conn = DatabaseConnectionUtils.getInstance().openConnection(internalDatabaseConnection)) {
+            loadHierarchyGraph(conn);
+            String sql = recordSql;
+            List<Long> params = new ArrayList<>();
+            String idColumn = partitionScheme.isNumeric() ? getNumericIdColumn(conn) : null;
+            if (idColumn != null) {
+                sql = createPartitionSql(idColumn, params);
+            }
             if (log.isDebugEnabled()) {
-                log.debug("SQL: " + recordSql);
+                log.debug("SQL: " + sql);
             }
-            try (Connection conn = DatabaseConnectionUtils.getInstance().openConnection(internalDatabaseConnection)) {
-                try (PreparedStatement ps = conn.prepareStatement(recordSql)) {
-                    try (ResultSet rs = ps.executeQuery()) {
-                        while (rs.next()) {
-                            String id = rs.getString(1);
-                            String uuid = rs.getString(2);
-                            String udkClass = rs.getString(3);
-                            boolean addValue = false;
-                            if(uuid != null && udkClass != null) {
-                                if(udkClass.equals("1000")) {
-                                    // Check if folder has published children documents
-                                    if(isFolderWithPublishDoc(uuid, conn)) {
-                                        if (log.isDebugEnabled()) {
-                                            log.debug("Index folder with UUID: " + uuid);
-                                        }
-                                        addValue = true;
-                                    }
-                                } else {
-                                    addValue = true;
-                                }
-                                if(addValue) { 
-                                    addValue = isParentPublishDoc(uuid, addValue, conn);
-                                }
-                            }
-                            if(addValue) {
-                                recordIds.add(id);
-                            }
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                for (int i = 0; i < params.size(); i++) {
+                    ps.setLong(i + 1, params.get(i));
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        String id = rs.getString(1);
+                        if ((idColumn != null || partitionScheme.partitionOf(id, partitionCount) == currentPartition)
+                                && isRecordToIndex(rs, conn)) {
+                            ids.add(id);
                         }
-                        recordIdIterator = recordIds.listIterator();
-                        numRecords = recordIds.size();
                     }
                 }
             }
         } catch (Exception e) {
-            log.error("Error creating record ids.", e);
+            log.error("Error creating record ids of partition " + currentPartition + ".", e);
+            return;
+        }
+        recordIdIterator = ids.listIterator();
+        numRecords = ids.size();
+        log.info("Partition " + currentPartition + ": " + numRecords + " of " + partitionScheme.recordCount + " records.");
+    }
+
+    /**
+     * @return the label of the id column of recordSql if it is numeric,
+     *         otherwise null
+     */
+    private String getNumericIdColumn(Connection conn) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(recordSql)) {
+            ResultSetMetaData metaData = ps.getMetaData();
+            if (metaData == null) {
+                return null;
+            }
+            switch (metaData.getColumnType(1)) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                return metaData.getColumnLabel(1);
+            default:
+                return null;
+            }
         }
     }
 
+    /**
+     * Restricts recordSql to the records of the claimed partition, like
+     * {@link IndexPartitionLeases.Scheme#partitionOf(String, int)}.
+     *
+     * @param idColumn label of the id column
+     * @param params receives the parameters of the statement
+     * @return the SQL selecting the records of the partition
+     */
+    private String createPartitionSql(String idColumn, List<Long> params) {
+        String column = "dsc_partition." + idColumn;
+        String sql = "SELECT * FROM (" + recordSql + ") dsc_partition WHERE ";
+        if (IndexPartitionLeases.STRATEGY_MOD.equals(partitionScheme.strategy)) {
+            params.add((long) partitionCount);
+            params.add((long) currentPartition);
+            return sql + "ABS(MOD(" + column + ", ?)) = ?";
+        }
+        List<String> conditions = new ArrayList<>();
+        if (currentPartition > 0) {
+            conditions.add(column + " >= ?");
+            params.add(partitionScheme.lowerBound(currentPartition, partitionCount));
+        }
+        if (currentPartition < partitionCount - 1) {
+            conditions.add(column + " < ?");
+            params.add(partitionScheme.lowerBound(currentPartition + 1, partitionCount));
+        }
+        return conditions.isEmpty() ? recordSql : sql + String.join(" AND ", conditions);
+    }
+
+    @Override
+    public void pause() {
+        synchronized (pauseLock) {
+            if (!paused) {
+                log.info("Delivery of records paused.");
+            }
+            paused = true;
+        }
+    }
+
+    @Override
+    public void resume() {
+        synchronized (pauseLock) {
+            if (paused) {
+                log.info("Delivery of records resumed.");
+            }
+            paused = false;
+            pauseLock.notifyAll();
+        }
+    }
+
+    @Override
+    public boolean isPaused() {
+        return paused;
+    }
+
+    private void awaitResume() {
+        if (!paused) {
+            return;
+        }
+        synchronized (pauseLock) {
+            while (paused) {
+                try {
+                    pauseLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private Set<String> selectChangedRecordIdsFromDatabase(long since) {
+        if (log.isDebugEnabled()) {
+            log.debug("SQL: " + recordChangedSinceSql);
+        }
+        try (Connection conn = DatabaseConnectionUtils.getInstance().openConnection(internalDatabaseConnection)) {
+            try (PreparedStatement ps = conn.prepareStatement(recordChangedSinceSql)) {
+                if (deltaTimestampFormat == null || deltaTimestampFormat.isEmpty()) {
+                    ps.setTimestamp(1, new Timestamp(since));
+                } else {
+                    ps.setString(1, new SimpleDateFormat(deltaTimestampFormat).format(new Date(since)));
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    Set<String> ids = new HashSet<>();
+                    while (rs.next()) {
+                        ids.add(rs.getString(1));
+                    }
+                    return ids;
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error selecting changed record ids.", e);
+        }
+        return null;
+    }
+
+    private RecordSetDeltaState completedDeltaState() {
+        if (pendingDeltaState != null && deliveredRecordIds != null) {
+            return new RecordSetDeltaState(pendingDeltaState.getWatermark(), deliveredRecordIds);
+        }
+        return pendingDeltaState;
+    }
+
+    private void saveDeltaState(RecordSetDeltaState state) {
+        if (state == null) {
+            return;
+        }
+        try {
+            state.save(new File(deltaStateFile));
+        } catch (IOException e) {
+            log.error("Error writing state of index run to '" + deltaStateFile + "'.", e);
+        }
+    }
+
+    @Override
+    public boolean isIncrementalRunSupported() {
+        return recordChangedSinceSql != null && !recordChangedSinceSql.isEmpty();
+    }
+
+    @Override
+    public void startIncrementalRun(boolean full) {
+        if (!isIncrementalRunSupported()) {
+            throw new UnsupportedOperationException("Property recordChangedSinceSql not set.");
+        }
+        if (recordIdIterator != null) {
+            throw new IllegalStateException("Another index run is in progress.");
+        }
+        incrementalRun = true;
+        incrementalFull = full;
+        exhausted = false;
+        deletedRecordIds = Collections.emptyList();
+        pendingDeltaState = null;
+    }
+
+    @Override
+    public List<String> getDeletedRecordIds() {
+        return deletedRecordIds;
+    }
+
+    @Override
+    public void finishIncrementalRun(boolean success) {
+        if (success) {
+            saveDeltaState(pendingDeltaState);
+            deleteCheckpoint();
+        }
+        incrementalRun = false;
+        incrementalRecordIds = null;
+        incrementalOffset = 0;
+        incrementalFull = false;
+        deletedRecordIds = Collections.emptyList();
+        pendingDeltaState = null;
+        reset();
+    }
+
+    @Override
+    public void finishRun(boolean success) {
+        if (success) {
+            saveDeltaState(completedRunState);
+        }
+        completedRunState = null;
+    }
+
+    private void openRecordIdCursor() {
+        Connection cursorConnection = null;
+        try {
+            if (log.isDebugEnabled()) {
+                log.debug("SQL (streaming): " + recordSql);
+            }
+            numRecords = -1;
+            if (isIncrementalRunSupported()) {
+                pendingDeltaState = new RecordSetDeltaState(System.currentTimeMillis(), Collections.emptyList());
+                deliveredRecordIds = new ArrayList<>();
+            }
+            cursorConnection = DatabaseConnectionUtils.getInstance().openConnection(internalDatabaseConnection);
+            final Connection checkConnection = DatabaseConnectionUtils.getInstance().openConnection(internalDatabaseConnection);
+            streamingCheckConnection = checkConnection;
+            loadHierarchyGraph(checkConnection);
+            recordIdIterator = new DatabaseRecordIdCursor(cursorConnection, recordSql, fetchSize,
+                    rs -> isRecordToIndex(rs, checkConnection));
+        } catch (Exception e) {
+            log.error("Error opening record id cursor.", e);
+            closeRecordIdCursor();
+            // cursor closes its connection itself if it could be created
+            if (cursorConnection != null && recordIdIterator == null) {
+                try {
+                    cursorConnection.close();
+                } catch (SQLException e1) {
+                    log.error("Error closing connection after failure.", e1);
+                }
+            }
+        }
+    }
+
+    private void loadHierarchyGraph(Connection conn) {
+        hierarchyGraph = null;
+        if (recordSqlHierarchy == null || recordSqlHierarchy.isEmpty()) {
+            return;
+        }
+        try {
+            hierarchyGraph = ObjectHierarchyGraph.load(conn, recordSqlHierarchy, hierarchyMemoryBudget);
+        } catch (SQLException e) {
+            log.error("Error loading object hierarchy, using SQL for the publication checks.", e);
+        }
+    }
+
+    private Connection leaseConnection() throws SQLException {
+        ConnectionLease lease = connectionLease.get();
+        if (lease == null || !lease.isReusable()) {
+            if (lease != null) {
+                lease.retire();
+                connectionLeases.remove(lease);
+            }
+            lease = new ConnectionLease(DatabaseConnectionUtils.getInstance().openConnection(internalDatabaseConnection),
+                    connectionReuseMaxRecords, connectionReuseMaxMillis);
+            connectionLease.set(lease);
+            connectionLeases.add(lease);
+        }
+        return lease.acquire();
+    }
+
+    /**
+     * Returns the connections kept by the threads to the pool. Connections
+     * still used by a record are returned when the record is closed.
+     */
+    private void retireConnectionLeases() {
+        for (ConnectionLease lease : connectionLeases) {
+            lease.retire();
+        }
+        connectionLeases.clear();
+    }
+
+    private void closeRecordIdCursor() {
+        if (recordIdIterator instanceof DatabaseRecordIdCursor) {
+            ((DatabaseRecordIdCursor) recordIdIterator).close();
+        }
+        if (streamingCheckConnection != null) {
+            try {
+                streamingCheckConnection.close();
+            } catch (SQLException e) {
+                log.error("Error closing connection.", e);
+            }
+            streamingCheckConnection = null;
+        }
+    }
+
+    /**
+     * Checks whether the record of the current row of the recordSql result
+     * set is indexed. The row contains the id, the uuid and the class of the
+     * record. If uuid and class are given, folders are only indexed if they
+     * contain published records and all records are only indexed if their
+     * parents are published. The checks use the object hierarchy graph if it
+     * is loaded.
+     *
+     * @param rs result set of recordSql positioned on the row to check
+     * @param conn connection for the publication checks
+     * @return true if the record is indexed
+     * @throws SQLException
+     */
+    private boolean isRecordToIndex(ResultSet rs, Connection conn) throws SQLException {
+        String uuid = rs.getString(2);
+        String udkClass = rs.getString(3);
+        boolean addValue = false;
+        if(uuid != null && udkClass != null) {
+            if(udkClass.equals("1000")) {
+                // Check if folder has published children documents
+                boolean folderWithPublishDoc = hierarchyGraph != null
+                        ? hierarchyGraph.isFolderWithPublishDoc(uuid)
+                        : isFolderWithPublishDoc(uuid, conn);
+                if(folderWithPublishDoc) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Index folder with UUID: " + uuid);
+                    }
+                    addValue = true;
+                }
+            } else {
+                addValue = true;
+            }
+            if(addValue) { 
+                addValue = hierarchyGraph != null
+                        ? hierarchyGraph.isParentPublishDoc(uuid)
+                        : isParentPublishDoc(uuid, addValue, conn);
+            }
+        }
+        return addValue;
+    }
+
+    private int countRecordsFromDatabase() {
+        String sql = recordCountSql;
+        if (sql == null || sql.isEmpty()) {
+            sql = "SELECT COUNT(*) FROM (" + recordSql + ") record_ids";
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("SQL: " + sql);
+        }
+        try (Connection conn = DatabaseConnectionUtils.getInstance().openConnection(internalDatabaseConnection)) {
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        return rs.getInt(1);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error counting records.", e);
+        }
+        return 0;
+    }
+
     @Override
     public boolean isParentPublishDoc(String uuid, boolean addValue, Connection conn) {
         boolean hasPublishDoc = false;
@@ -320,6 +1356,9 @@ public class PlugDescriptionConfiguredDatabaseRecordSetProducer implements
 
     @Override
     public int getDocCount() {
+        if (streaming && numRecords < 0) {
+            numRecords = countRecordsFromDatabase();
+        }
         return numRecords;
     }
 
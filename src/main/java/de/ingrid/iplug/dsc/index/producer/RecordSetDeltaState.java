@@ -0,0 +1,117 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.index.producer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * State of the last successful index run, used by incremental runs. Contains
+ * the start time of the run (high-water mark for the "changed since" query)
+ * and the ids of all records delivered by the run, to detect records that
+ * disappeared since then.
+ * <p/>
+ * The state is stored in a text file, the first line contains the high-water
+ * mark in milliseconds, every following line one record id.
+ */
+class RecordSetDeltaState {
+
+    private final long watermark;
+
+    private final Set<String> recordIds;
+
+    RecordSetDeltaState(long watermark, Collection<String> recordIds) {
+        this.watermark = watermark;
+        this.recordIds = new LinkedHashSet<>(recordIds);
+    }
+
+    long getWatermark() {
+        return watermark;
+    }
+
+    Set<String> getRecordIds() {
+        return recordIds;
+    }
+
+    /**
+     * Reads the state from a file.
+     *
+     * @param file the state file
+     * @return the state or null if the file does not exist
+     * @throws IOException
+     */
+    static RecordSetDeltaState load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line == null) {
+                return null;
+            }
+            long watermark = Long.parseLong(line.trim());
+            Set<String> ids = new LinkedHashSet<>();
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    ids.add(line);
+                }
+            }
+            return new RecordSetDeltaState(watermark, ids);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid state file: " + file, e);
+        }
+    }
+
+    /**
+     * Writes the state to a file. The file is replaced only after the state
+     * is written completely.
+     *
+     * @param file the state file
+     * @throws IOException
+     */
+    void save(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        Path tmp = new File(file.getAbsolutePath() + ".tmp").toPath();
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write(Long.toString(watermark));
+            writer.newLine();
+            for (String id : recordIds) {
+                writer.write(id);
+                writer.newLine();
+            }
+        }
+        Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
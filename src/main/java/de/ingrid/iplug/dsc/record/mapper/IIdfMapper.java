@@ -43,12 +43,10 @@ public interface IIdfMapper {
      * Map a {@link SourceRecord} to an InGrid Detail data Format (IDF). The
      * implementing class must take care that all required parameters are
      * present in the {@link SourceRecord}.<br>
-     * <b>NOTICE: With Java 1.8 and nashorn:mozilla_compat.js mapping engine is
-     * NOT THREAD SAFE ANYMORE !!! So make this method synchronized in
-     * implementation if Java 1.8 and nashorn:mozilla_compat.js is used
-     * (nashorn) !!!<br>
-     * see
-     * https://blogs.oracle.com/nashorn/entry/nashorn_multi_threading_and_mt</b>
+     * <b>NOTICE: A script engine instance is NOT THREAD SAFE !!! Scripted
+     * implementations must not share one engine between threads, use
+     * {@link de.ingrid.iplug.dsc.utils.ScriptEngine} which executes the
+     * scripts in one context per thread.</b>
      * 
      * @param record
      * @param doc
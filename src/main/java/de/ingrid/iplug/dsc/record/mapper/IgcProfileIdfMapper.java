@@ -27,27 +27,25 @@ package de.ingrid.iplug.dsc.record.mapper;
 
 import java.io.StringReader;
 import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
 
 import javax.script.Bindings;
+import javax.script.CompiledScript;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.apache.log4j.Logger;
 import org.springframework.core.annotation.Order;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 
 import de.ingrid.iplug.dsc.om.DatabaseSourceRecord;
 import de.ingrid.iplug.dsc.om.SourceRecord;
 import de.ingrid.iplug.dsc.utils.DOMUtils;
 import de.ingrid.iplug.dsc.utils.IdfUtils;
+import de.ingrid.iplug.dsc.utils.IgcProfileCache;
+import de.ingrid.iplug.dsc.utils.IgcProfileCache.IgcProfile;
 import de.ingrid.iplug.dsc.utils.SQLUtils;
 import de.ingrid.iplug.dsc.utils.TransformationUtils;
 import de.ingrid.utils.xml.ConfigurableNamespaceContext;
@@ -60,7 +58,15 @@ import de.ingrid.utils.xpath.XPathUtils;
  * scripted on a supplied InGrid Detail data Format (IDF).
  * <p />
  * A SQL string can be set to retrieve the IGC profile. The profile is expected
- * to be in a SQL record property named "igc_profile".
+ * to be in a SQL record property named "igc_profile". The parsed profile is
+ * shared by all mappers (see {@link IgcProfileCache}).
+ * <p/>
+ * The scripted CSW mappings of the profile are compiled into one unit per
+ * profile version, which calls every mapping with its control node in its
+ * own scope.
+ * <p/>
+ * The mapper is thread safe, every thread executes the mappings in its own
+ * script engine on its own copy of the profile.
  * <p/>
  * The mapper expects a base IDF format already present.
  * 
@@ -74,10 +80,13 @@ public class IgcProfileIdfMapper implements IIdfMapper {
 
     private String sql;
     
-    private ScriptEngine engine = null;
+    private static final ScriptEngineManager scriptEngineManager = new ScriptEngineManager();
+
+    /** One engine per thread, all of them share the polyglot engine of the manager's factory. */
+    private final ThreadLocal<ScriptEngine> engines = new ThreadLocal<ScriptEngine>();
 
     @Override
-    public synchronized void map(SourceRecord record, Document doc) throws Exception {
+    public void map(SourceRecord record, Document doc) throws Exception {
         if (!(record instanceof DatabaseSourceRecord)) {
             throw new IllegalArgumentException("Record is no DatabaseRecord!");
         }
@@ -90,60 +99,40 @@ public class IgcProfileIdfMapper implements IIdfMapper {
             throw new IllegalArgumentException("Document is no IDF!");
         }
         Connection connection = (Connection) record.get(DatabaseSourceRecord.CONNECTION);
-        PreparedStatement ps = null;
         try {
-            ps = connection.prepareStatement(sql);
-            ResultSet rs = ps.executeQuery();
-            rs.next();
-            String igcProfileStr = rs.getString("igc_profile");
-            if (log.isDebugEnabled()) {
-                log.debug("igc profile found: " + igcProfileStr);
-            }
-            ps.close();
-            if (igcProfileStr != null) {
-                DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-                dbf.setNamespaceAware(true);
-                DocumentBuilder db;
-                db = dbf.newDocumentBuilder();
-                Document igcProfile = db.parse(new InputSource(new StringReader(igcProfileStr)));
-                NodeList igcProfileCswMappings = xpathUtils.getNodeList(igcProfile, "//igcp:controls/*/igcp:scriptedCswMapping");
-                if (log.isDebugEnabled()) {
-                    log.debug("cswMappings found: " + igcProfileCswMappings.getLength());
-                }
-                for (int i=0; i<igcProfileCswMappings.getLength(); i++) {
-                    String igcProfileCswMapping = igcProfileCswMappings.item(i).getTextContent();
-                    if (log.isDebugEnabled()) {
-                        log.debug("Found Mapping Script: \n" + igcProfileCswMapping);
+            IgcProfile igcProfile = IgcProfileCache.getInstance().getProfile(connection, sql);
+            if (igcProfile != null && !igcProfile.getCswMappingScripts().isEmpty()) {
+                ScriptEngine engine = getEngine();
+                // create utils for script
+                SQLUtils sqlUtils = new SQLUtils(connection);
+                // get initialized XPathUtils (see above)
+                TransformationUtils trafoUtils = new TransformationUtils(sqlUtils);
+                DOMUtils domUtils = new DOMUtils(doc, xpathUtils);
+                domUtils.addNS("idf", "http://www.portalu.de/IDF/1.0");
+
+                IdfUtils idfUtils = new IdfUtils(sqlUtils, domUtils, xpathUtils);
+
+                List<Node> igcProfileControlNodes = igcProfile.getCswMappingControlNodes();
+                CompiledScript compiledCswMappings = igcProfile.getCompiledCswMappings(engine);
+                if (compiledCswMappings != null) {
+                    try {
+                        Bindings bindings = createBindings(engine, record, doc, sqlUtils, xpathUtils, trafoUtils, domUtils, idfUtils);
+                        bindings.put("igcProfileControlNodes", igcProfileControlNodes);
+                        compiledCswMappings.eval(bindings);
+                    } catch (Exception e) {
+                        log.error("Error mapping source record to idf document.", e);
+                        throw e;
                     }
-                    if (igcProfileCswMapping != null && igcProfileCswMapping.trim().length() > 0) {
-                        Node igcProfileNode = igcProfileCswMappings.item(i).getParentNode();
+                } else {
+                    List<String> igcProfileCswMappings = igcProfile.getCswMappingScripts();
+                    for (int i=0; i<igcProfileCswMappings.size(); i++) {
+                        String igcProfileCswMapping = igcProfileCswMappings.get(i);
+                        if (log.isDebugEnabled()) {
+                            log.debug("Found Mapping Script: \n" + igcProfileCswMapping);
+                        }
                         try {
-                            if (engine == null) {
-                                ScriptEngineManager mgr = new ScriptEngineManager();
-                                engine = mgr.getEngineByExtension("js");
-                            }
-    
-                            // create utils for script
-                            SQLUtils sqlUtils = new SQLUtils(connection);
-                            // get initialized XPathUtils (see above)
-                            TransformationUtils trafoUtils = new TransformationUtils(sqlUtils);
-                            DOMUtils domUtils = new DOMUtils(doc, xpathUtils);
-                            domUtils.addNS("idf", "http://www.portalu.de/IDF/1.0");
-                            
-                            IdfUtils idfUtils = new IdfUtils(sqlUtils, domUtils, xpathUtils);
-    
-                            Bindings bindings = engine.createBindings();
-                            bindings.put("polyglot.js.allowAllAccess", true);
-                            bindings.put("sourceRecord", record);
-                            bindings.put("idfDoc", doc);
-                            bindings.put("igcProfileControlNode", igcProfileNode);
-                            bindings.put("log", log);
-                            bindings.put("SQL", sqlUtils);
-                            bindings.put("XPATH", xpathUtils);
-                            bindings.put("TRANSF", trafoUtils);
-                            bindings.put("DOM", domUtils);
-                            bindings.put("IDF", idfUtils);
-                            
+                            Bindings bindings = createBindings(engine, record, doc, sqlUtils, xpathUtils, trafoUtils, domUtils, idfUtils);
+                            bindings.put("igcProfileControlNode", igcProfileControlNodes.get(i));
                             engine.eval(new StringReader(igcProfileCswMapping), bindings);
                         } catch (Exception e) {
                             log.error("Error mapping source record to idf document.", e);
@@ -151,19 +140,38 @@ public class IgcProfileIdfMapper implements IIdfMapper {
                         }
                     }
                 }
-                
             }
         } catch (SQLException e) {
             log.error("Error mapping IGC profile.", e);
             throw e;
-        } finally {
-        	// isClosed() CAUSES EXCEPTION ON ORACLE !!!
-            // if (ps != null && !ps.isClosed()) {
-        	if (ps != null) {
-                ps.close();
+        }
+
+    }
+
+    private ScriptEngine getEngine() {
+        ScriptEngine engine = engines.get();
+        if (engine == null) {
+            synchronized (scriptEngineManager) {
+                engine = scriptEngineManager.getEngineByExtension("js");
             }
+            engines.set(engine);
         }
+        return engine;
+    }
 
+    private Bindings createBindings(ScriptEngine engine, SourceRecord record, Document doc, SQLUtils sqlUtils, XPathUtils xpathUtils,
+            TransformationUtils trafoUtils, DOMUtils domUtils, IdfUtils idfUtils) {
+        Bindings bindings = engine.createBindings();
+        bindings.put("polyglot.js.allowAllAccess", true);
+        bindings.put("sourceRecord", record);
+        bindings.put("idfDoc", doc);
+        bindings.put("log", log);
+        bindings.put("SQL", sqlUtils);
+        bindings.put("XPATH", xpathUtils);
+        bindings.put("TRANSF", trafoUtils);
+        bindings.put("DOM", domUtils);
+        bindings.put("IDF", idfUtils);
+        return bindings;
     }
 
     public String getSql() {
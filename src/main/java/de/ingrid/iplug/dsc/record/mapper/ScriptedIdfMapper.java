@@ -23,7 +23,7 @@
 package de.ingrid.iplug.dsc.record.mapper;
 
 import java.sql.Connection;
-import java.util.Hashtable;
+import java.util.HashMap;
 import java.util.Map;
 
 import de.ingrid.iplug.dsc.utils.*;
@@ -48,6 +48,13 @@ import de.ingrid.utils.xpath.XPathUtils;
  * <p />
  * If the compile parameter is set to true, the script is compiled, if
  * the ScriptEngine supports compilation.
+ * <p />
+ * The mapper is thread safe, every thread executes the scripts in its own
+ * script context (see {@link ScriptEngine}). The utils passed to the scripts
+ * are created once per thread and rebound to every record.
+ * <p />
+ * Library scripts only define functions used by the mapping scripts. They are
+ * evaluated once per script context and not for every record.
  * <p/>
  * The mapper expects a base IDF format already present in doc. *
  * 
@@ -58,42 +65,36 @@ import de.ingrid.utils.xpath.XPathUtils;
 public class ScriptedIdfMapper implements IIdfMapper {
 
     private Resource[] mappingScripts;
+    private Resource[] libraryScripts;
     private boolean compile = false;
 
     private static final Logger log = Logger.getLogger(ScriptedIdfMapper.class);
 
+    /** The script utils are created once per thread and rebound to every record. */
+    private final ThreadLocal<ScriptUtils> scriptUtils = ThreadLocal.withInitial(ScriptUtils::new);
+
     @Override
-    public synchronized void map(SourceRecord record, Document doc) throws Exception {
+    public void map(SourceRecord record, Document doc) throws Exception {
         if (mappingScripts == null) {
             log.error("Mapping script(s) not set!");
             throw new IllegalArgumentException("Mapping script(s) not set!");
         }
+        ScriptUtils utils = scriptUtils.get();
         try {
-            // create utils for script
+            // rebind the utils of this thread to the record
             Connection connection = (Connection) record.get(DatabaseSourceRecord.CONNECTION);
-            SQLUtils sqlUtils = new SQLUtils(connection);
-            // initialize static XPathUtils (encapsulated static XPath
-            // instance))
-            XPathUtils xpathUtils = new XPathUtils(new IDFNamespaceContext());
-            TransformationUtils trafoUtils = new TransformationUtils(sqlUtils);
-            DOMUtils domUtils = new DOMUtils(doc, xpathUtils);
-            domUtils.addNS("idf", "http://www.portalu.de/IDF/1.0");
+            utils.bind(connection, doc);
+
+            Map<String, Object> parameters = utils.parameters;
+            parameters.put("sourceRecord", record);
+            parameters.put("idfDoc", doc);
 
-			Map<String, Object> parameters = new Hashtable<>();
-			parameters.put("sourceRecord", record);
-			parameters.put("idfDoc", doc);
-			parameters.put("log", log);
-			parameters.put("SQL", sqlUtils);
-			parameters.put("XPATH", xpathUtils);
-			parameters.put("TRANSF", trafoUtils);
-			parameters.put("DOM", domUtils);
-            parameters.put("IDF_UTIL", new IdfUtils(sqlUtils, domUtils, xpathUtils));
-            parameters.put("CAPABILITIES", new CapabilitiesUtils());
-
-			ScriptEngine.execute(this.mappingScripts, parameters, compile);
+            ScriptEngine.execute(this.libraryScripts, this.mappingScripts, parameters, compile);
         } catch (Exception e) {
             log.error("Error mapping source record to idf document.", e);
             throw e;
+        } finally {
+            utils.release();
         }
     }
 
@@ -105,6 +106,14 @@ public class ScriptedIdfMapper implements IIdfMapper {
 		this.mappingScripts = mappingScripts;
 	}
 
+    public Resource[] getLibraryScripts() {
+        return libraryScripts;
+    }
+
+    public void setLibraryScripts(Resource[] libraryScripts) {
+        this.libraryScripts = libraryScripts;
+    }
+
     public boolean isCompile() {
         return compile;
     }
@@ -113,4 +122,45 @@ public class ScriptedIdfMapper implements IIdfMapper {
         this.compile = compile;
     }
 
+    /**
+     * The utils passed to the mapping scripts of one thread. The utils only
+     * hold the connection and the document of the current record, they are
+     * rebound for every record instead of being created again.
+     */
+    private static class ScriptUtils {
+        final SQLUtils sqlUtils = new SQLUtils(null);
+        // initialize static XPathUtils (encapsulated static XPath
+        // instance))
+        final XPathUtils xpathUtils = new XPathUtils(new IDFNamespaceContext());
+        final TransformationUtils trafoUtils = new TransformationUtils(sqlUtils);
+        final DOMUtils domUtils = new DOMUtils(null, xpathUtils);
+        final IdfUtils idfUtils = new IdfUtils(sqlUtils, domUtils, xpathUtils);
+        final CapabilitiesUtils capabilitiesUtils = new CapabilitiesUtils();
+        final Map<String, Object> parameters = new HashMap<>();
+
+        ScriptUtils() {
+            domUtils.addNS("idf", "http://www.portalu.de/IDF/1.0");
+            parameters.put("log", log);
+            parameters.put("SQL", sqlUtils);
+            parameters.put("XPATH", xpathUtils);
+            parameters.put("TRANSF", trafoUtils);
+            parameters.put("DOM", domUtils);
+            parameters.put("IDF_UTIL", idfUtils);
+            parameters.put("CAPABILITIES", capabilitiesUtils);
+        }
+
+        void bind(Connection connection, Document doc) {
+            sqlUtils.setConnection(connection);
+            domUtils.setDocument(doc);
+        }
+
+        /** Do not keep the record alive until the next record of the thread. */
+        void release() {
+            sqlUtils.setConnection(null);
+            domUtils.setDocument(null);
+            parameters.remove("sourceRecord");
+            parameters.remove("idfDoc");
+        }
+    }
+
 }
@@ -0,0 +1,387 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.utils;
+
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+
+/**
+ * Local linear referencing index of the federal waterways used by
+ * {@link BwstrLocUtil} instead of the BWaStr. Locator for the waterways it
+ * contains.
+ * <p/>
+ * The geometries are loaded from a file in the format of a geocoding response
+ * of the BWaStr. Locator, with one result per waterway (e.g. exported by
+ * geocoding every waterway from km_von to km_bis):
+ * 
+ * <pre>
+ * { "result": [ { "bwastrid": "3901", "bwastr_name": "Rhein", "strecken_name": "Hauptstrecke",
+ *     "geometry": { "coordinates": [ [ [lon, lat], ... ], ... ], "measures": [ km, ... ] } }, ... ] }
+ * </pre>
+ * 
+ * The measures hold the km of every vertex. If they are missing, the km are
+ * computed from the length of the line starting at stationierung.km_von.
+ * Every waterway is kept as primitive arrays of coordinates and km, so a
+ * section is cut out without further parsing.
+ */
+public class BwstrGeometryIndex {
+
+    private static final Logger log = Logger.getLogger(BwstrGeometryIndex.class);
+
+    private static final double EARTH_RADIUS_KM = 6371.0088;
+
+    private static BwstrGeometryIndex myInstance;
+
+    private volatile Map<String, Waterway> waterways = Collections.emptyMap();
+
+    /** Get The Singleton. */
+    public static synchronized BwstrGeometryIndex getInstance() {
+        if (myInstance == null) {
+            myInstance = new BwstrGeometryIndex();
+        }
+        return myInstance;
+    }
+
+    BwstrGeometryIndex() {
+    }
+
+    /**
+     * Loads the waterway geometries from the file and replaces the current
+     * ones. If the file is null or empty the index is cleared. If the file
+     * cannot be read the current geometries are kept.
+     * 
+     * @param file the exported waterway geometries
+     */
+    public void load(String file) {
+        if (file == null || file.trim().isEmpty()) {
+            waterways = Collections.emptyMap();
+            return;
+        }
+        long start = System.currentTimeMillis();
+        File f = new File(file.trim());
+        try (Reader reader = new InputStreamReader(Files.newInputStream(f.toPath()), StandardCharsets.UTF_8)) {
+            JSONObject json = (JSONObject) new JSONParser().parse(reader);
+            Map<String, Waterway> loaded = new HashMap<String, Waterway>();
+            int vertices = 0;
+            for (Object o : (JSONArray) json.get("result")) {
+                Waterway waterway = createWaterway((JSONObject) o);
+                if (waterway != null) {
+                    loaded.put(waterway.id, waterway);
+                    vertices += waterway.km.length;
+                }
+            }
+            waterways = loaded;
+            if (log.isInfoEnabled()) {
+                log.info(loaded.size() + " waterways with " + vertices + " vertices loaded from " + f.getAbsolutePath() + " in "
+                        + (System.currentTimeMillis() - start) + " ms.");
+            }
+        } catch (Exception e) {
+            log.error("Error loading waterway geometries from " + f.getAbsolutePath() + ", the BWaStr. Locator is used instead.", e);
+        }
+    }
+
+    public int size() {
+        return waterways.size();
+    }
+
+    /**
+     * @param bwStrId
+     * @return true if the geometry of the waterway is in the index
+     */
+    public boolean contains(String bwStrId) {
+        return bwStrId != null && waterways.containsKey(bwStrId);
+    }
+
+    /**
+     * Get the names of a waterway.
+     * 
+     * @param bwStrId
+     * @return [bwastr_name, strecken_name] or null if the waterway is not in
+     *         the index
+     */
+    public String[] getLocationNames(String bwStrId) {
+        Waterway waterway = bwStrId == null ? null : waterways.get(bwStrId);
+        return waterway == null ? null : new String[] { waterway.name, waterway.stretchName };
+    }
+
+    /**
+     * Computes center, bounding box and names of a section of a waterway. The
+     * center is the middle vertex of the section like
+     * {@link BwstrLocUtil#getCenter(JSONObject)}.
+     * 
+     * @param bwStrId
+     * @param kmFrom start of the section, if km from and to are empty the whole waterway is used
+     * @param kmTo end of the section
+     * @return the section or null if the waterway is not in the index or the
+     *         km are invalid
+     */
+    public BwstrSection getSection(String bwStrId, String kmFrom, String kmTo) {
+        Waterway waterway = bwStrId == null ? null : waterways.get(bwStrId);
+        double[] range = waterway == null ? null : parseKmRange(waterway, kmFrom, kmTo);
+        if (range == null) {
+            return null;
+        }
+        double[][] parts = waterway.cut(range[0], range[1]);
+
+        int count = 0;
+        double[] bbox = null;
+        for (double[] part : parts) {
+            for (int i = 0; i < part.length; i += 2) {
+                if (bbox == null) {
+                    bbox = new double[] { part[i], part[i], part[i + 1], part[i + 1] };
+                } else {
+                    bbox[0] = Math.min(bbox[0], part[i]);
+                    bbox[1] = Math.max(bbox[1], part[i]);
+                    bbox[2] = Math.min(bbox[2], part[i + 1]);
+                    bbox[3] = Math.max(bbox[3], part[i + 1]);
+                }
+            }
+            count += part.length / 2;
+        }
+
+        double[] center = { Double.NaN, Double.NaN };
+        int centerIndex = count > 1 ? count / 2 - 1 : 0;
+        for (double[] part : parts) {
+            if (centerIndex < part.length / 2) {
+                center[0] = part[centerIndex * 2];
+                center[1] = part[centerIndex * 2 + 1];
+                break;
+            }
+            centerIndex -= part.length / 2;
+        }
+        return new BwstrSection(waterway.name, waterway.stretchName, center, bbox);
+    }
+
+    /**
+     * Get a section of a waterway in the format of a geocoding response of the
+     * BWaStr. Locator.
+     * 
+     * @param bwStrId
+     * @param kmFrom start of the section, if km from and to are empty the whole waterway is used
+     * @param kmTo end of the section
+     * @return the response or null if the waterway is not in the index or the
+     *         km are invalid
+     */
+    public String getResponse(String bwStrId, String kmFrom, String kmTo) {
+        Waterway waterway = bwStrId == null ? null : waterways.get(bwStrId);
+        double[] range = waterway == null ? null : parseKmRange(waterway, kmFrom, kmTo);
+        if (range == null) {
+            return null;
+        }
+        double[][] parts = waterway.cut(range[0], range[1]);
+
+        StringBuilder response = new StringBuilder(128 + parts.length * 64);
+        response.append("{\"result\":[{\"qid\":1,\"bwastrid\":\"").append(JSONValue.escape(waterway.id));
+        response.append("\",\"stationierung\":{\"km_von\":").append(range[0]).append(",\"km_bis\":").append(range[1]);
+        response.append(",\"offset\":0},\"spatialReference\":{\"wkid\":4326},\"bwastr_name\":");
+        response.append(waterway.name == null ? "null" : "\"" + JSONValue.escape(waterway.name) + "\"");
+        response.append(",\"strecken_name\":");
+        response.append(waterway.stretchName == null ? "null" : "\"" + JSONValue.escape(waterway.stretchName) + "\"");
+        response.append(",\"geometry\":{\"type\":\"MultiLineString\",\"coordinates\":[");
+        for (int p = 0; p < parts.length; p++) {
+            response.append(p == 0 ? "[" : ",[");
+            for (int i = 0; i < parts[p].length; i += 2) {
+                response.append(i == 0 ? "[" : ",[").append(parts[p][i]).append(',').append(parts[p][i + 1]).append(']');
+            }
+            response.append(']');
+        }
+        response.append("]}}]}");
+        return response.toString();
+    }
+
+    private static double[] parseKmRange(Waterway waterway, String kmFrom, String kmTo) {
+        if ((kmFrom == null || kmFrom.isEmpty()) && (kmTo == null || kmTo.isEmpty())) {
+            return new double[] { waterway.minKm, waterway.maxKm };
+        }
+        try {
+            double from = Double.parseDouble(kmFrom);
+            double to = Double.parseDouble(kmTo);
+            return from <= to ? new double[] { from, to } : new double[] { to, from };
+        } catch (Exception e) {
+            log.warn("Invalid km range of BWaStr. " + waterway.id + ": " + kmFrom + " - " + kmTo);
+            return null;
+        }
+    }
+
+    private static Waterway createWaterway(JSONObject entry) {
+        Object id = entry.get("bwastrid");
+        JSONObject geometry = (JSONObject) entry.get("geometry");
+        if (id == null || geometry == null || geometry.get("coordinates") == null) {
+            log.warn("Waterway without id or geometry ignored: " + entry.get("bwastrid"));
+            return null;
+        }
+        JSONArray coordinates = (JSONArray) geometry.get("coordinates");
+        int count = 0;
+        for (Object part : coordinates) {
+            count += ((JSONArray) part).size();
+        }
+
+        double[] lon = new double[count];
+        double[] lat = new double[count];
+        int[] partStart = new int[coordinates.size() + 1];
+        int i = 0;
+        for (int p = 0; p < coordinates.size(); p++) {
+            partStart[p] = i;
+            for (Object c : (JSONArray) coordinates.get(p)) {
+                JSONArray coordinate = (JSONArray) c;
+                lon[i] = ((Number) coordinate.get(0)).doubleValue();
+                lat[i] = ((Number) coordinate.get(1)).doubleValue();
+                i++;
+            }
+        }
+        partStart[coordinates.size()] = count;
+
+        double[] km = new double[count];
+        JSONArray measures = (JSONArray) geometry.get("measures");
+        if (measures != null && measures.size() == count) {
+            for (int m = 0; m < count; m++) {
+                km[m] = ((Number) measures.get(m)).doubleValue();
+            }
+        } else {
+            // no measures, compute the km along the line
+            JSONObject stationierung = (JSONObject) entry.get("stationierung");
+            double current = stationierung != null && stationierung.get("km_von") instanceof Number
+                    ? ((Number) stationierung.get("km_von")).doubleValue() : 0;
+            for (int p = 0; p < coordinates.size(); p++) {
+                for (int v = partStart[p]; v < partStart[p + 1]; v++) {
+                    if (v > partStart[p]) {
+                        current += distance(lon[v - 1], lat[v - 1], lon[v], lat[v]);
+                    }
+                    km[v] = current;
+                }
+            }
+        }
+        return new Waterway(id.toString(), (String) entry.get("bwastr_name"), (String) entry.get("strecken_name"), lon, lat, km, partStart);
+    }
+
+    /** Great circle distance in km. */
+    private static double distance(double lon1, double lat1, double lon2, double lat2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Geometry of a waterway, the vertices of all parts are stored one after
+     * another, part p consists of the vertices partStart[p] to partStart[p + 1] - 1.
+     */
+    private static final class Waterway {
+        private final String id;
+        private final String name;
+        private final String stretchName;
+        private final double[] lon;
+        private final double[] lat;
+        private final double[] km;
+        private final int[] partStart;
+        private final double minKm;
+        private final double maxKm;
+
+        private Waterway(String id, String name, String stretchName, double[] lon, double[] lat, double[] km, int[] partStart) {
+            this.id = id;
+            this.name = name;
+            this.stretchName = stretchName;
+            this.lon = lon;
+            this.lat = lat;
+            this.km = km;
+            this.partStart = partStart;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (double k : km) {
+                min = Math.min(min, k);
+                max = Math.max(max, k);
+            }
+            this.minKm = min;
+            this.maxKm = max;
+        }
+
+        /**
+         * Cuts the section from km from to km to out of every part. Vertices
+         * at the start and end of the section are interpolated.
+         * 
+         * @return the parts of the section with coordinates [lon, lat, lon, lat, ...]
+         */
+        private double[][] cut(double from, double to) {
+            List<double[]> parts = new ArrayList<double[]>();
+            double[] buffer = new double[64];
+            for (int p = 0; p < partStart.length - 1; p++) {
+                int size = 0;
+                for (int i = partStart[p]; i < partStart[p + 1]; i++) {
+                    if (i > partStart[p]) {
+                        boolean ascending = km[i - 1] <= km[i];
+                        double first = ascending ? from : to;
+                        double second = ascending ? to : from;
+                        if (isBetween(first, km[i - 1], km[i])) {
+                            buffer = interpolate(i, first, buffer, size++);
+                        }
+                        if (second != first && isBetween(second, km[i - 1], km[i])) {
+                            buffer = interpolate(i, second, buffer, size++);
+                        }
+                    }
+                    if (km[i] >= from && km[i] <= to) {
+                        buffer = add(buffer, size++, lon[i], lat[i]);
+                    }
+                }
+                if (size > 0) {
+                    parts.add(Arrays.copyOf(buffer, size * 2));
+                }
+            }
+            return parts.toArray(new double[parts.size()][]);
+        }
+
+        private static boolean isBetween(double value, double km1, double km2) {
+            return (km1 < value && value < km2) || (km2 < value && value < km1);
+        }
+
+        /** Adds the point at km between vertex i - 1 and i. */
+        private double[] interpolate(int i, double at, double[] buffer, int size) {
+            double t = (at - km[i - 1]) / (km[i] - km[i - 1]);
+            return add(buffer, size, lon[i - 1] + t * (lon[i] - lon[i - 1]), lat[i - 1] + t * (lat[i] - lat[i - 1]));
+        }
+
+        private static double[] add(double[] buffer, int size, double x, double y) {
+            if (buffer.length < size * 2 + 2) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            buffer[size * 2] = x;
+            buffer[size * 2 + 1] = y;
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Process wide cache of the responses of the BWaStr. Locator used by
+ * {@link BwstrLocUtil}. The responses are kept in an in-memory LRU map and,
+ * if a directory is set, in files in that directory, so they survive a restart
+ * of the iPlug. Entries expire after the time to live.
+ * <p/>
+ * Keys contain the request (URL and body), i.e. the BWaStr.-ID and km range
+ * of a geocoding query. Only successful responses are cached.
+ */
+public class BwstrLocCache {
+
+    private static final Logger log = Logger.getLogger(BwstrLocCache.class);
+
+    private static BwstrLocCache myInstance;
+
+    private int maxEntries = 10000;
+
+    private long timeToLive = 604800000;
+
+    private File directory = null;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    /** Get The Singleton. */
+    public static synchronized BwstrLocCache getInstance() {
+        if (myInstance == null) {
+            myInstance = new BwstrLocCache();
+        }
+        return myInstance;
+    }
+
+    private BwstrLocCache() {
+    }
+
+    /**
+     * Get a cached response.
+     * 
+     * @param key the request
+     * @return the response or null if not cached or expired
+     */
+    public String get(String key) {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (!isExpired(entry.created, now)) {
+                    return entry.response;
+                }
+                entries.remove(key);
+            }
+        }
+        Entry entry = read(key, now);
+        if (entry != null) {
+            putInMemory(key, entry);
+            return entry.response;
+        }
+        return null;
+    }
+
+    /**
+     * Add a response to the cache.
+     * 
+     * @param key the request
+     * @param response the response of the BWaStr. Locator
+     */
+    public void put(String key, String response) {
+        if (response == null || timeToLive <= 0) {
+            return;
+        }
+        Entry entry = new Entry(response, System.currentTimeMillis());
+        putInMemory(key, entry);
+        write(key, entry);
+    }
+
+    /**
+     * Removes all responses from the in-memory cache, the files in the cache
+     * directory are kept.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Sets the maximum number of responses kept in memory, 0 disables the
+     * in-memory cache.
+     * 
+     * @param maxEntries
+     */
+    public void setMaxEntries(int maxEntries) {
+        synchronized (entries) {
+            this.maxEntries = Math.max(0, maxEntries);
+            while (entries.size() > this.maxEntries) {
+                entries.remove(entries.keySet().iterator().next());
+            }
+        }
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Sets the time in milliseconds a response is used before the BWaStr.
+     * Locator is queried again, 0 or less disables the cache.
+     * 
+     * @param timeToLive
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Sets the directory the responses are stored in, null or an empty path
+     * keeps the responses in memory only.
+     * 
+     * @param directory
+     */
+    public void setDirectory(String directory) {
+        if (directory == null || directory.trim().isEmpty()) {
+            this.directory = null;
+            return;
+        }
+        File dir = new File(directory.trim());
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            log.error("BWaStr. Locator cache directory could not be created, responses are cached in memory only: " + dir.getAbsolutePath());
+            this.directory = null;
+            return;
+        }
+        this.directory = dir;
+    }
+
+    private boolean isExpired(long created, long now) {
+        return now - created >= timeToLive;
+    }
+
+    private void putInMemory(String key, Entry entry) {
+        synchronized (entries) {
+            if (maxEntries > 0) {
+                entries.put(key, entry);
+            }
+        }
+    }
+
+    private Entry read(String key, long now) {
+        File file = getFile(key);
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        try {
+            long created = file.lastModified();
+            if (isExpired(created, now)) {
+                return null;
+            }
+            String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            // the first line holds the key to detect collisions of the file names
+            int separator = content.indexOf('\n');
+            if (separator < 0 || !key.equals(content.substring(0, separator))) {
+                return null;
+            }
+            return new Entry(content.substring(separator + 1), created);
+        } catch (IOException e) {
+            log.warn("Error reading BWaStr. Locator response from cache file " + file + ": " + e);
+            return null;
+        }
+    }
+
+    private void write(String key, Entry entry) {
+        File file = getFile(key);
+        if (file == null) {
+            return;
+        }
+        try {
+            File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            Files.write(tmp.toPath(), (key + "\n" + entry.response).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Error writing BWaStr. Locator response to cache file " + file + ": " + e);
+        }
+    }
+
+    private File getFile(String key) {
+        File dir = directory;
+        if (dir == null || key.indexOf('\n') >= 0) {
+            return null;
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(hash.length * 2 + 5);
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(dir, name.append(".json").toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Entry {
+        private final String response;
+        private final long created;
+
+        private Entry(String response, long created) {
+            this.response = response;
+            this.created = created;
+        }
+    }
+}
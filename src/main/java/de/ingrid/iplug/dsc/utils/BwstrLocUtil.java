@@ -22,17 +22,16 @@
  */
 package de.ingrid.iplug.dsc.utils;
 
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
-import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.RequestEntity;
-import org.apache.commons.httpclient.methods.StringRequestEntity;
 import org.apache.log4j.Logger;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -40,32 +39,159 @@ import org.json.simple.parser.JSONParser;
 
 /**
  * Utility Class to communicate with the Bundeswasserstrassenlocator.
+ * <p/>
+ * Waterways in the {@link BwstrGeometryIndex} are geocoded locally, the
+ * BWaStr. Locator is only queried for the others. Responses are cached in the
+ * {@link BwstrLocCache}. The requests of all instances are executed by a
+ * shared {@link IBwstrLocHttpClient} and are limited by the maximum number of
+ * concurrent requests and the maximum number of requests per second.
  * 
  * @author jm
  *
  */
 public class BwstrLocUtil {
 
-    private HttpClient httpclient = null;
+    private IBwstrLocHttpClient httpClient = null;
 
     private String bwstrLocSearch = "https://via.bund.de/wsv/bwastr-locator/rest/bwastrinfo/query?limit=1&searchfield=bwastrid&searchterm=";
     private String bwstrLocEndpoint = "https://via.bund.de/wsv/bwastr-locator/rest/geokodierung/query";
 
     private static final Logger log = Logger.getLogger( BwstrLocUtil.class );
 
-    private HttpClient getHttpClient() {
-        if (httpclient == null) {
-            httpclient = createHttpClient();
+    private static int maxConcurrentRequests = 4;
+
+    private static volatile IBwstrLocHttpClient defaultHttpClient = null;
+
+    private static volatile Semaphore requestPermits = new Semaphore( maxConcurrentRequests );
+
+    /** Nanoseconds between two requests, 0 if not limited. Guarded by BwstrLocUtil.class. */
+    private static long requestInterval = 0;
+
+    /** Earliest System.nanoTime() of the next request. Guarded by BwstrLocUtil.class. */
+    private static long nextRequestTime = System.nanoTime();
+
+    private static int maxBatchSize = 50;
+
+    private static long batchWindow = 0;
+
+    /** Batches of concurrent geocoding calls collecting sections, by endpoint. */
+    private static final Map<String, GeocodingBatch> openBatches = new HashMap<String, GeocodingBatch>();
+
+    /**
+     * Sets the maximum number of requests to the BWaStr. Locator executed at
+     * the same time by all instances, 0 for no limit.
+     * 
+     * @param maxConcurrentRequests
+     */
+    public static synchronized void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        BwstrLocUtil.maxConcurrentRequests = Math.max( 0, maxConcurrentRequests );
+        requestPermits = new Semaphore( maxConcurrentRequests > 0 ? maxConcurrentRequests : Integer.MAX_VALUE );
+    }
+
+    public static synchronized int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * Sets the maximum number of requests to the BWaStr. Locator per second
+     * of all instances, 0 for no limit.
+     * 
+     * @param maxRequestsPerSecond
+     */
+    public static synchronized void setMaxRequestsPerSecond(int maxRequestsPerSecond) {
+        requestInterval = maxRequestsPerSecond > 0 ? TimeUnit.SECONDS.toNanos( 1 ) / maxRequestsPerSecond : 0;
+    }
+
+    /**
+     * Sets the maximum number of waterway sections geocoded by one request,
+     * 1 disables batched requests.
+     * 
+     * @param maxBatchSize
+     */
+    public static synchronized void setMaxBatchSize(int maxBatchSize) {
+        BwstrLocUtil.maxBatchSize = Math.max( 1, maxBatchSize );
+    }
+
+    public static synchronized int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Sets the time in milliseconds {@link #getResponse(String, String, String)}
+     * waits for concurrent calls (e.g. of other index workers) to geocode
+     * their sections with the same request, 0 disables collecting concurrent
+     * calls.
+     * 
+     * @param batchWindow
+     */
+    public static synchronized void setBatchWindow(long batchWindow) {
+        BwstrLocUtil.batchWindow = Math.max( 0, batchWindow );
+    }
+
+    public static synchronized long getBatchWindow() {
+        return batchWindow;
+    }
+
+    /**
+     * Sets the HTTP client used by all instances without an own client, the
+     * previous client is closed.
+     * 
+     * @param httpClient
+     */
+    public static synchronized void setDefaultHttpClient(IBwstrLocHttpClient httpClient) {
+        if (defaultHttpClient != null && defaultHttpClient != httpClient) {
+            defaultHttpClient.close();
         }
-        return httpclient;
+        defaultHttpClient = httpClient;
     }
-    
-    private HttpClient createHttpClient() {
-        HttpClient client = new HttpClient( new MultiThreadedHttpConnectionManager() );
-        if (System.getProperty("http.proxyHost") != null && System.getProperty("http.proxyPort") != null) {
-            client.getHostConfiguration().setProxy(System.getProperty("http.proxyHost"), Integer.parseInt(System.getProperty("http.proxyPort")));
+
+    /**
+     * Get the HTTP client used by all instances without an own client,
+     * defaults to a {@link CommonsBwstrLocHttpClient}.
+     * 
+     * @return the client
+     */
+    public static IBwstrLocHttpClient getDefaultHttpClient() {
+        IBwstrLocHttpClient client = defaultHttpClient;
+        if (client != null) {
+            return client;
         }
-        return client;
+        synchronized (BwstrLocUtil.class) {
+            if (defaultHttpClient == null) {
+                defaultHttpClient = createHttpClient( "commons", 10000, 30000 );
+            }
+            return defaultHttpClient;
+        }
+    }
+
+    /**
+     * Creates a HTTP client for the BWaStr. Locator, the number of connections
+     * is limited by the maximum number of concurrent requests.
+     * 
+     * @param type "jdk" for a {@link JdkBwstrLocHttpClient}, otherwise a {@link CommonsBwstrLocHttpClient}
+     * @param connectTimeout milliseconds to establish a connection, 0 for no timeout
+     * @param requestTimeout milliseconds to wait for the response, 0 for no timeout
+     * @return the client
+     */
+    public static IBwstrLocHttpClient createHttpClient(String type, int connectTimeout, int requestTimeout) {
+        if ("jdk".equalsIgnoreCase( type )) {
+            return new JdkBwstrLocHttpClient( connectTimeout, requestTimeout );
+        }
+        int maxConnections = getMaxConcurrentRequests();
+        return new CommonsBwstrLocHttpClient( maxConnections > 0 ? maxConnections : 20, connectTimeout, requestTimeout );
+    }
+
+    private IBwstrLocHttpClient getHttpClient() {
+        return httpClient != null ? httpClient : getDefaultHttpClient();
+    }
+
+    /**
+     * Sets the HTTP client of this instance, null to use the default client.
+     * 
+     * @param httpClient
+     */
+    public void setHttpClient(IBwstrLocHttpClient httpClient) {
+        this.httpClient = httpClient;
     }
 
     /**
@@ -77,53 +203,33 @@ public class BwstrLocUtil {
      * @return
      */
     public String getResponse(String bwStrId, String kmFrom, String kmTo) {
-        String response = null;
+        String response = BwstrGeometryIndex.getInstance().getResponse( bwStrId, kmFrom, kmTo );
+        if (response != null) {
+            return response;
+        }
 
         if((kmFrom == null || kmFrom.isEmpty()) && (kmTo == null || kmTo.isEmpty())) {
-            GetMethod get = new GetMethod( bwstrLocSearch + bwStrId );
-            int resp;
             try {
-                resp = getHttpClient().executeMethod( get );
-                if (resp != 200) {
-                    throw new Exception( "Invalid HTTP Response Code.: " + resp );
-                }
-                response = get.getResponseBodyAsString();
-                JSONObject questJson = parse( response );
-                if(questJson.containsKey("result")) {
-                    JSONArray questJsonArray = (JSONArray) questJson.get( "result" );
-                    for (int i = 0; i < questJsonArray.size(); i++) {
-                        JSONObject questJsonEntry = (JSONObject) questJsonArray.get( i );
-                        if(questJsonEntry.containsKey("km_von") && questJsonEntry.containsKey("km_bis")) {
-                            kmFrom = questJsonEntry.get( "km_von" ).toString();
-                            kmTo = questJsonEntry.get( "km_bis" ).toString();
-                            break;
-                        }
-                    }
+                response = executeGet( bwstrLocSearch + bwStrId );
+                String[] kmRange = parseKmRange( response );
+                if (kmRange != null) {
+                    kmFrom = kmRange[0];
+                    kmTo = kmRange[1];
                 }
             } catch (Exception e) {
-                log.error( "Error getting response from BwStrLocSearch at: " + bwstrLocEndpoint + bwStrId);
-            } finally {
-                get.releaseConnection();
+                log.error( "Error getting response from BwStrLocSearch at: " + bwstrLocSearch + bwStrId);
             }
         }
         if(kmFrom != null && !kmFrom.isEmpty() && kmTo != null && !kmTo.isEmpty()) {
-            PostMethod post = new PostMethod( bwstrLocEndpoint );
-            post.setParameter( "Content-Type", "application/json" );
-    
             try {
-                RequestEntity reqE = new StringRequestEntity( "{\"queries\":[{\"qid\":1,\"bwastrid\":\"" + bwStrId + "\",\"stationierung\":{\"km_von\":" + kmFrom + ",\"km_bis\":"
-                        + kmTo + ",\"offset\":0},\"spatialReference\":{\"wkid\":4326}}]}", "application/json", "UTF-8" );
-                post.setRequestEntity( reqE );
-                int resp = getHttpClient().executeMethod( post );
-                if (resp != 200) {
-                    throw new Exception( "Invalid HTTP Response Code.: " + resp );
+                if (getBatchWindow() > 0) {
+                    response = getBatchedResponse( new String[] { bwStrId, kmFrom, kmTo } );
+                } else {
+                    response = executePost( bwstrLocEndpoint, getGeocodingBody( bwStrId, kmFrom, kmTo ) );
                 }
-                response = post.getResponseBodyAsString();
                 log.debug(String.format("Geocoding response from BWaStr. Locator for BWaStr. ID: %s, start km: %s, end km: %s, is: %s", bwStrId, kmFrom, kmTo, response));
             } catch (Exception e) {
                 log.error( "Error getting response from BwStrLocator at: " + bwstrLocEndpoint );
-            } finally {
-                post.releaseConnection();
             }
         } else {
             log.error( "No BwStrLocator data found for ID: " + bwStrId );
@@ -131,6 +237,389 @@ public class BwstrLocUtil {
         return response;
     }
 
+    /**
+     * Get the response from BwStrLoc like
+     * {@link #getResponse(String, String, String)} without waiting for the
+     * geocoding request. The calling thread only waits for a free request
+     * slot, so many requests can be in flight with a
+     * {@link JdkBwstrLocHttpClient}.
+     * 
+     * @param bwStrId
+     * @param kmFrom
+     * @param kmTo
+     * @return the response, completed with null if the section could not be geocoded
+     */
+    public CompletableFuture<String> getResponseAsync(String bwStrId, String kmFrom, String kmTo) {
+        String response = BwstrGeometryIndex.getInstance().getResponse( bwStrId, kmFrom, kmTo );
+        if (response != null) {
+            return CompletableFuture.completedFuture( response );
+        }
+        if ((kmFrom == null || kmFrom.isEmpty()) && (kmTo == null || kmTo.isEmpty())) {
+            // the km range of the waterway is needed first, the info query is mostly cached
+            return CompletableFuture.completedFuture( getResponse( bwStrId, kmFrom, kmTo ) );
+        }
+
+        String body = getGeocodingBody( bwStrId, kmFrom, kmTo );
+        String key = getPostKey( bwstrLocEndpoint, body );
+        response = BwstrLocCache.getInstance().get( key );
+        if (response != null) {
+            return CompletableFuture.completedFuture( response );
+        }
+
+        Semaphore permits = requestPermits;
+        CompletableFuture<String> request;
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error( "Interrupted while waiting for a request to the BwStrLocator at: " + bwstrLocEndpoint );
+            return CompletableFuture.completedFuture( null );
+        }
+        try {
+            awaitRequestSlot();
+            request = getHttpClient().postAsync( bwstrLocEndpoint, body );
+        } catch (Exception e) {
+            permits.release();
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.error( "Error getting response from BwStrLocator at: " + bwstrLocEndpoint );
+            return CompletableFuture.completedFuture( null );
+        }
+        return request.handle( (result, error) -> {
+            permits.release();
+            if (error != null) {
+                log.error( "Error getting response from BwStrLocator at: " + bwstrLocEndpoint + ": " + error );
+                return null;
+            }
+            if (isCacheable( result, true )) {
+                BwstrLocCache.getInstance().put( key, result );
+            }
+            return result;
+        } );
+    }
+
+    /**
+     * Get center, bounding box and names of a waterway section. Waterways in
+     * the {@link BwstrGeometryIndex} are computed locally, all others are
+     * geocoded by {@link #getResponse(String, String, String)}.
+     * 
+     * @param bwStrId
+     * @param kmFrom
+     * @param kmTo
+     * @return the section or null if it could not be geocoded
+     */
+    public BwstrSection getSection(String bwStrId, String kmFrom, String kmTo) {
+        BwstrSection section = BwstrGeometryIndex.getInstance().getSection( bwStrId, kmFrom, kmTo );
+        if (section != null) {
+            return section;
+        }
+        String response = getResponse( bwStrId, kmFrom, kmTo );
+        return response == null ? null : parseSection( response );
+    }
+
+    /**
+     * Get the responses from BwStrLoc for several waterway sections using
+     * Referencesystem 4326 and distance 0. The sections not cached yet are
+     * geocoded by requests with up to {@link #getMaxBatchSize()} queries. If a
+     * batched request fails or misses the result of a section, the section is
+     * requested alone.
+     * <p/>
+     * Every response has the format of a response of
+     * {@link #getResponse(String, String, String)}, i.e. holds one result with
+     * qid 1.
+     * 
+     * @param sections the sections as arrays [bwStrId, kmFrom, kmTo], if km
+     *            from and to are empty the whole waterway is used
+     * @return the responses in the order of the sections, null for sections
+     *         that could not be geocoded
+     */
+    public String[] getResponses(String[][] sections) {
+        String[] responses = new String[sections.length];
+        String[][] resolved = new String[sections.length][];
+        List<Integer> uncached = new ArrayList<Integer>();
+        for (int i = 0; i < sections.length; i++) {
+            String bwStrId = sections[i][0];
+            String kmFrom = sections[i][1];
+            String kmTo = sections[i][2];
+            responses[i] = BwstrGeometryIndex.getInstance().getResponse( bwStrId, kmFrom, kmTo );
+            if (responses[i] != null) {
+                continue;
+            }
+            if ((kmFrom == null || kmFrom.isEmpty()) && (kmTo == null || kmTo.isEmpty())) {
+                try {
+                    String[] kmRange = parseKmRange( executeGet( bwstrLocSearch + bwStrId ) );
+                    if (kmRange != null) {
+                        kmFrom = kmRange[0];
+                        kmTo = kmRange[1];
+                    }
+                } catch (Exception e) {
+                    log.error( "Error getting response from BwStrLocSearch at: " + bwstrLocSearch + bwStrId);
+                }
+            }
+            if (kmFrom == null || kmFrom.isEmpty() || kmTo == null || kmTo.isEmpty()) {
+                log.error( "No BwStrLocator data found for ID: " + bwStrId );
+                continue;
+            }
+            resolved[i] = new String[] { bwStrId, kmFrom, kmTo };
+            responses[i] = BwstrLocCache.getInstance().get( getGeocodingKey( bwStrId, kmFrom, kmTo ) );
+            if (responses[i] == null) {
+                uncached.add( i );
+            }
+        }
+
+        int batchSize = getMaxBatchSize();
+        for (int start = 0; start < uncached.size(); start += batchSize) {
+            List<Integer> batch = uncached.subList( start, Math.min( start + batchSize, uncached.size() ) );
+            if (batch.size() > 1) {
+                executeBatch( resolved, batch, responses );
+            }
+            for (Integer i : batch) {
+                if (responses[i] == null) {
+                    try {
+                        responses[i] = executePost( bwstrLocEndpoint, getGeocodingBody( resolved[i][0], resolved[i][1], resolved[i][2] ) );
+                    } catch (Exception e) {
+                        log.error( "Error getting response from BwStrLocator at: " + bwstrLocEndpoint );
+                    }
+                }
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Geocodes the sections with one request and stores the result of every
+     * section as single response in the cache. Sections missing in the result
+     * are left null.
+     */
+    private void executeBatch(String[][] sections, List<Integer> batch, String[] responses) {
+        StringBuilder body = new StringBuilder( "{\"queries\":[" );
+        for (int qid = 1; qid <= batch.size(); qid++) {
+            String[] section = sections[batch.get( qid - 1 )];
+            if (qid > 1) {
+                body.append( ',' );
+            }
+            body.append( getGeocodingQuery( qid, section[0], section[1], section[2] ) );
+        }
+        body.append( "]}" );
+
+        try {
+            JSONObject responseJson = parse( execute( () -> getHttpClient().post( bwstrLocEndpoint, body.toString() ) ) );
+            JSONArray result = (JSONArray) responseJson.get( "result" );
+            for (Object o : result) {
+                // only valid entries are cached, the others are requested separately
+                if (!isValidEntry( o, true )) {
+                    continue;
+                }
+                JSONObject entry = (JSONObject) o;
+                Object qid = entry.get( "qid" );
+                if (!(qid instanceof Number)) {
+                    continue;
+                }
+                int index = ((Number) qid).intValue() - 1;
+                if (index < 0 || index >= batch.size()) {
+                    continue;
+                }
+                entry.put( "qid", 1L );
+                JSONArray singleResult = new JSONArray();
+                singleResult.add( entry );
+                JSONObject single = new JSONObject();
+                single.put( "result", singleResult );
+                String response = single.toJSONString();
+
+                String[] section = sections[batch.get( index )];
+                responses[batch.get( index )] = response;
+                BwstrLocCache.getInstance().put( getGeocodingKey( section[0], section[1], section[2] ), response );
+            }
+        } catch (Exception e) {
+            log.warn( "Error getting batched response from BwStrLocator at: " + bwstrLocEndpoint + ", sections are requested separately: " + e );
+        }
+    }
+
+    /**
+     * Adds the section to the open batch of concurrent calls or opens a new
+     * batch. The thread opening a batch waits up to the batch window for
+     * further sections and executes the batch.
+     */
+    private String getBatchedResponse(String[] section) throws Exception {
+        String response = BwstrLocCache.getInstance().get( getGeocodingKey( section[0], section[1], section[2] ) );
+        if (response != null) {
+            return response;
+        }
+
+        GeocodingBatch batch;
+        int index;
+        synchronized (openBatches) {
+            batch = openBatches.get( bwstrLocEndpoint );
+            if (batch == null) {
+                batch = new GeocodingBatch();
+                openBatches.put( bwstrLocEndpoint, batch );
+            }
+            index = batch.sections.size();
+            batch.sections.add( section );
+            if (batch.sections.size() >= getMaxBatchSize()) {
+                batch.closed = true;
+                openBatches.remove( bwstrLocEndpoint );
+                openBatches.notifyAll();
+            }
+
+            if (index > 0) {
+                while (!batch.done) {
+                    openBatches.wait();
+                }
+                return batch.responses == null ? null : batch.responses[index];
+            }
+
+            long deadline = System.currentTimeMillis() + getBatchWindow();
+            long remaining;
+            while (!batch.closed && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    openBatches.wait( remaining );
+                } catch (InterruptedException e) {
+                    // execute the batch for the waiting threads anyway
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (!batch.closed) {
+                batch.closed = true;
+                openBatches.remove( bwstrLocEndpoint );
+            }
+        }
+
+        String[] responses = null;
+        try {
+            responses = getResponses( batch.sections.toArray( new String[batch.sections.size()][] ) );
+        } finally {
+            synchronized (openBatches) {
+                batch.responses = responses;
+                batch.done = true;
+                openBatches.notifyAll();
+            }
+        }
+        return responses[0];
+    }
+
+    /**
+     * Get the km range [km_von, km_bis] of the first entry of a BWaStr. info
+     * query response.
+     */
+    private String[] parseKmRange(String infoResponse) {
+        JSONObject questJson = parse( infoResponse );
+        if(questJson.containsKey("result")) {
+            JSONArray questJsonArray = (JSONArray) questJson.get( "result" );
+            for (int i = 0; i < questJsonArray.size(); i++) {
+                JSONObject questJsonEntry = (JSONObject) questJsonArray.get( i );
+                if(questJsonEntry.containsKey("km_von") && questJsonEntry.containsKey("km_bis")) {
+                    return new String[] { questJsonEntry.get( "km_von" ).toString(), questJsonEntry.get( "km_bis" ).toString() };
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String getGeocodingQuery(int qid, String bwStrId, String kmFrom, String kmTo) {
+        return "{\"qid\":" + qid + ",\"bwastrid\":\"" + bwStrId + "\",\"stationierung\":{\"km_von\":" + kmFrom + ",\"km_bis\":"
+                + kmTo + ",\"offset\":0},\"spatialReference\":{\"wkid\":4326}}";
+    }
+
+    private static String getGeocodingBody(String bwStrId, String kmFrom, String kmTo) {
+        return "{\"queries\":[" + getGeocodingQuery( 1, bwStrId, kmFrom, kmTo ) + "]}";
+    }
+
+    private String getGeocodingKey(String bwStrId, String kmFrom, String kmTo) {
+        return getPostKey( bwstrLocEndpoint, getGeocodingBody( bwStrId, kmFrom, kmTo ) );
+    }
+
+    private static String getPostKey(String url, String body) {
+        return "POST " + url + " " + body;
+    }
+
+    private String executeGet(String url) throws Exception {
+        String key = "GET " + url;
+        String response = BwstrLocCache.getInstance().get( key );
+        if (response == null) {
+            response = execute( () -> getHttpClient().get( url ) );
+            if (isCacheable( response, false )) {
+                BwstrLocCache.getInstance().put( key, response );
+            }
+        }
+        return response;
+    }
+
+    private String executePost(String url, String body) throws Exception {
+        String key = getPostKey( url, body );
+        String response = BwstrLocCache.getInstance().get( key );
+        if (response == null) {
+            response = execute( () -> getHttpClient().post( url, body ) );
+            if (isCacheable( response, true )) {
+                BwstrLocCache.getInstance().put( key, response );
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Returns true if the response has a result and none of its entries is an
+     * error, only those responses are cached. Error replies (e.g. if the
+     * BwStrLocator is overloaded) are requested again next time.
+     * 
+     * @param response the response of the BwStrLocator
+     * @param geocoding true if the entries must contain a geometry
+     */
+    private static boolean isCacheable(String response, boolean geocoding) {
+        if (response == null) {
+            return false;
+        }
+        try {
+            Object json = new JSONParser().parse( response );
+            Object result = json instanceof JSONObject ? ((JSONObject) json).get( "result" ) : null;
+            if (!(result instanceof JSONArray) || ((JSONArray) result).isEmpty()) {
+                return false;
+            }
+            for (Object entry : (JSONArray) result) {
+                if (!isValidEntry( entry, geocoding )) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static boolean isValidEntry(Object entry, boolean geocoding) {
+        return entry instanceof JSONObject && !((JSONObject) entry).containsKey( "error" )
+                && (!geocoding || ((JSONObject) entry).containsKey( "geometry" ));
+    }
+
+    private String execute(Callable<String> request) throws Exception {
+        Semaphore permits = requestPermits;
+        permits.acquire();
+        try {
+            awaitRequestSlot();
+            return request.call();
+        } finally {
+            permits.release();
+        }
+    }
+
+    private static void awaitRequestSlot() throws InterruptedException {
+        long wait;
+        synchronized (BwstrLocUtil.class) {
+            if (requestInterval <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            long slot = nextRequestTime - now > 0 ? nextRequestTime : now;
+            nextRequestTime = slot + requestInterval;
+            wait = slot - now;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep( wait );
+        }
+    }
+
     /**
      * Parse a BwstrLoc response into a JSONObject.
      * 
@@ -148,6 +637,25 @@ public class BwstrLocUtil {
         return result;
     }
 
+    /**
+     * Parse center, bounding box and names of the first result of a BwstrLoc
+     * response in one pass over the response, without creating a
+     * {@link JSONObject}. Equivalent to {@link #getCenter(JSONObject)},
+     * {@link #getBBOX(JSONObject)} and {@link #getLocationNames(JSONObject)}
+     * of the parsed response, but much cheaper for long waterway sections.
+     * 
+     * @param response
+     * @return the section or null if the response has no result or is invalid
+     */
+    public BwstrSection parseSection(String response) {
+        try {
+            return new BwstrResponseParser( response ).parse();
+        } catch (Exception e) {
+            log.error( "Error parsing BwstrLoc response: " + response, e );
+            return null;
+        }
+    }
+
     /**
      * Get the center coordinate from the parsed response.
      * 
@@ -335,15 +843,18 @@ public class BwstrLocUtil {
         // BWaStr.-Locator database doesn't include collective "Haupt- und
         // Nebenstrecken" entries. Convert these to the ID for the "Hauptstrecke"
         String id = bwastrId.replaceAll("00$", "01");
-        GetMethod get = new GetMethod(bwstrLocSearch + id);
-        get.setRequestHeader("Content-Type", "application/json");
+
+        String[] names = BwstrGeometryIndex.getInstance().getLocationNames(id);
+        if (names != null) {
+            Map<String, String> result = new HashMap<>();
+            result.put("bwastrid", bwastrId);
+            result.put("bwastr_name", names[0]);
+            result.put("strecken_name", bwastrId.endsWith("00") ? "Haupt- und Nebenstrecken" : names[1]);
+            return result;
+        }
 
         try {
-            int responseCode = getHttpClient().executeMethod(get);
-            if (responseCode != 200) {
-                log.error("Invalid HTTP Response code from BWaStr.-Locator: " + responseCode);
-            }
-            String responseString = get.getResponseBodyAsString();
+            String responseString = executeGet(bwstrLocSearch + id);
             JSONObject responseJson = parse(responseString);
             JSONArray arr = (JSONArray) responseJson.get("result");
             JSONObject firstHit = (JSONObject) arr.get(0);
@@ -359,7 +870,7 @@ public class BwstrLocUtil {
             }
 
             return result;
-        } catch (IOException e) {
+        } catch (Exception e) {
             log.error( "Error getting response from BwStrLocator at: " + bwstrLocSearch, e );
         }
 
@@ -367,8 +878,7 @@ public class BwstrLocUtil {
     }
 
     /**
-     * Sets the endpoint of the Bundeswasserstrassenlocator. Updates the httpClient with 
-     * the new endpoint.
+     * Sets the endpoint of the Bundeswasserstrassenlocator.
      * 
      * Defaults to:
      * 
@@ -378,8 +888,35 @@ public class BwstrLocUtil {
      */
     public void setBwstrLocUrl(String bwstrLocUrl) {
         this.bwstrLocEndpoint = bwstrLocUrl;
-        httpclient = createHttpClient();
     }
 
+    public String getBwstrLocSearchUrl() {
+        return bwstrLocSearch;
+    }
+
+    /**
+     * Sets the URL of the BWaStr. info query of the Bundeswasserstrassenlocator,
+     * the BWaStr.-ID is appended to the URL.
+     * 
+     * Defaults to:
+     * 
+     * https://via.bund.de/wsv/bwastr-locator/rest/bwastrinfo/query?limit=1&searchfield=bwastrid&searchterm=
+     * 
+     * @param bwstrLocSearchUrl
+     */
+    public void setBwstrLocSearchUrl(String bwstrLocSearchUrl) {
+        this.bwstrLocSearch = bwstrLocSearchUrl;
+    }
+
+    /**
+     * Sections of concurrent geocoding calls executed with one request.
+     * Guarded by openBatches.
+     */
+    private static class GeocodingBatch {
+        private final List<String[]> sections = new ArrayList<String[]>();
+        private boolean closed = false;
+        private boolean done = false;
+        private String[] responses = null;
+    }
 
 }
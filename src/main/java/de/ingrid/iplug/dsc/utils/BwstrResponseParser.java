@@ -0,0 +1,344 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.utils;
+
+import java.util.Arrays;
+
+/**
+ * Single pass parser of BWaStr. Locator geocoding responses. It reads the
+ * names and the coordinates of the first result directly from the response
+ * text into a primitive array and skips all other values without creating
+ * objects, e.g. the measures. Used by {@link BwstrLocUtil#parseSection(String)}.
+ * <p/>
+ * Not thread safe, use one instance per response.
+ */
+class BwstrResponseParser {
+
+    private final String json;
+    private int pos = 0;
+
+    private String bwastrName = null;
+    private String streckenName = null;
+    private double[] coordinates = new double[256];
+    private int size = 0;
+    private boolean hasResult = false;
+
+    BwstrResponseParser(String json) {
+        this.json = json;
+    }
+
+    /**
+     * Parses the response.
+     * 
+     * @return the section of the first result or null if the response has no
+     *         result
+     * @throws IllegalArgumentException if the response is not valid JSON
+     */
+    BwstrSection parse() {
+        skipWhitespace();
+        expect('{');
+        if (!nextMember('}', true)) {
+            return null;
+        }
+        do {
+            String key = readString();
+            skipWhitespace();
+            expect(':');
+            if ("result".equals(key)) {
+                parseResult();
+            } else {
+                skipValue();
+            }
+        } while (nextMember('}', false));
+
+        if (!hasResult) {
+            return null;
+        }
+        double[] bbox = null;
+        for (int i = 0; i < size * 2; i += 2) {
+            if (bbox == null) {
+                bbox = new double[] { coordinates[i], coordinates[i], coordinates[i + 1], coordinates[i + 1] };
+            } else {
+                bbox[0] = Math.min(bbox[0], coordinates[i]);
+                bbox[1] = Math.max(bbox[1], coordinates[i]);
+                bbox[2] = Math.min(bbox[2], coordinates[i + 1]);
+                bbox[3] = Math.max(bbox[3], coordinates[i + 1]);
+            }
+        }
+        // the middle vertex like BwstrLocUtil.getCenter()
+        double[] center = { Double.NaN, Double.NaN };
+        if (size > 1) {
+            center[0] = coordinates[(size / 2 - 1) * 2];
+            center[1] = coordinates[(size / 2 - 1) * 2 + 1];
+        }
+        return new BwstrSection(bwastrName, streckenName, center, bbox);
+    }
+
+    /** Reads the first entry of the result array and skips the others. */
+    private void parseResult() {
+        skipWhitespace();
+        if (peek() != '[') {
+            skipValue();
+            return;
+        }
+        pos++;
+        if (!nextMember(']', true)) {
+            return;
+        }
+        hasResult = true;
+        parseEntry();
+        while (nextMember(']', false)) {
+            skipValue();
+        }
+    }
+
+    private void parseEntry() {
+        skipWhitespace();
+        expect('{');
+        if (!nextMember('}', true)) {
+            return;
+        }
+        do {
+            String key = readString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            if ("bwastr_name".equals(key) && peek() == '"') {
+                bwastrName = readString();
+            } else if ("strecken_name".equals(key) && peek() == '"') {
+                streckenName = readString();
+            } else if ("geometry".equals(key) && peek() == '{') {
+                parseGeometry();
+            } else {
+                skipValue();
+            }
+        } while (nextMember('}', false));
+    }
+
+    private void parseGeometry() {
+        expect('{');
+        if (!nextMember('}', true)) {
+            return;
+        }
+        do {
+            String key = readString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            if ("coordinates".equals(key) && peek() == '[') {
+                parseCoordinates();
+            } else {
+                skipValue();
+            }
+        } while (nextMember('}', false));
+    }
+
+    /**
+     * Reads the nested arrays of the coordinates, arrays starting with a
+     * number are points.
+     */
+    private void parseCoordinates() {
+        expect('[');
+        if (!nextMember(']', true)) {
+            return;
+        }
+        if (peek() != '[') {
+            double lon = readNumber();
+            expectMember();
+            double lat = readNumber();
+            while (nextMember(']', false)) {
+                skipValue();
+            }
+            add(lon, lat);
+            return;
+        }
+        do {
+            parseCoordinates();
+        } while (nextMember(']', false));
+    }
+
+    private void add(double lon, double lat) {
+        if (coordinates.length < size * 2 + 2) {
+            coordinates = Arrays.copyOf(coordinates, coordinates.length * 2);
+        }
+        coordinates[size * 2] = lon;
+        coordinates[size * 2 + 1] = lat;
+        size++;
+    }
+
+    /**
+     * Moves to the next member of an object or array.
+     * 
+     * @param end the closing bracket
+     * @param first true before the first member
+     * @return false if the closing bracket was reached
+     */
+    private boolean nextMember(char end, boolean first) {
+        skipWhitespace();
+        if (peek() == end) {
+            pos++;
+            return false;
+        }
+        if (!first) {
+            expect(',');
+            skipWhitespace();
+        }
+        return true;
+    }
+
+    private void expectMember() {
+        skipWhitespace();
+        expect(',');
+        skipWhitespace();
+    }
+
+    private void skipValue() {
+        skipWhitespace();
+        char c = peek();
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = peek();
+                if (c == '"') {
+                    skipString();
+                    continue;
+                }
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+                pos++;
+            } while (depth > 0);
+        } else {
+            // number, true, false or null
+            int start = pos;
+            while (pos < json.length() && ",}] \t\r\n".indexOf(json.charAt(pos)) < 0) {
+                pos++;
+            }
+            if (start == pos) {
+                throw error("value expected");
+            }
+        }
+    }
+
+    private double readNumber() {
+        int start = pos;
+        while (pos < json.length() && "+-0123456789.eE".indexOf(json.charAt(pos)) >= 0) {
+            pos++;
+        }
+        try {
+            return Double.parseDouble(json.substring(start, pos));
+        } catch (NumberFormatException e) {
+            throw error("number expected");
+        }
+    }
+
+    private void skipString() {
+        expect('"');
+        while (peek() != '"') {
+            if (json.charAt(pos) == '\\') {
+                pos++;
+            }
+            pos++;
+        }
+        pos++;
+    }
+
+    private String readString() {
+        expect('"');
+        int start = pos;
+        StringBuilder unescaped = null;
+        while (peek() != '"') {
+            char c = json.charAt(pos);
+            if (c != '\\') {
+                if (unescaped != null) {
+                    unescaped.append(c);
+                }
+                pos++;
+                continue;
+            }
+            if (unescaped == null) {
+                unescaped = new StringBuilder(json.substring(start, pos));
+            }
+            pos++;
+            char escaped = peek();
+            switch (escaped) {
+            case 'b':
+                unescaped.append('\b');
+                break;
+            case 'f':
+                unescaped.append('\f');
+                break;
+            case 'n':
+                unescaped.append('\n');
+                break;
+            case 'r':
+                unescaped.append('\r');
+                break;
+            case 't':
+                unescaped.append('\t');
+                break;
+            case 'u':
+                if (pos + 5 > json.length()) {
+                    throw error("invalid unicode escape");
+                }
+                unescaped.append((char) Integer.parseInt(json.substring(pos + 1, pos + 5), 16));
+                pos += 4;
+                break;
+            default:
+                unescaped.append(escaped);
+            }
+            pos++;
+        }
+        String result = unescaped == null ? json.substring(start, pos) : unescaped.toString();
+        pos++;
+        return result;
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private char peek() {
+        if (pos >= json.length()) {
+            throw error("unexpected end");
+        }
+        return json.charAt(pos);
+    }
+
+    private void expect(char c) {
+        if (peek() != c) {
+            throw error("'" + c + "' expected");
+        }
+        pos++;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("Invalid BWaStr. Locator response at position " + pos + ": " + message);
+    }
+}
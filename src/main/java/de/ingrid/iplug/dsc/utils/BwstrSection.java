@@ -0,0 +1,81 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.utils;
+
+/**
+ * Location of a section of a federal waterway as computed by
+ * {@link BwstrLocUtil}: the center, the bounding box and the names of the
+ * waterway and the waterway stretch.
+ */
+public class BwstrSection {
+
+    private final String bwastrName;
+    private final String streckenName;
+    private final double[] center;
+    private final double[] bbox;
+
+    /**
+     * @param bwastrName the name of the waterway
+     * @param streckenName the name of the waterway stretch
+     * @param center the center as [lon, lat]
+     * @param bbox the bounding box as [minLon, maxLon, minLat, maxLat]
+     */
+    public BwstrSection(String bwastrName, String streckenName, double[] center, double[] bbox) {
+        this.bwastrName = bwastrName;
+        this.streckenName = streckenName;
+        this.center = center;
+        this.bbox = bbox;
+    }
+
+    public String getBwastrName() {
+        return bwastrName;
+    }
+
+    public String getStreckenName() {
+        return streckenName;
+    }
+
+    /**
+     * @return String array containing [bwastr_name, strecken_name] like
+     *         {@link BwstrLocUtil#getLocationNames(org.json.simple.JSONObject)}.
+     */
+    public String[] getLocationNames() {
+        return new String[] { bwastrName, streckenName };
+    }
+
+    /**
+     * @return The center in [centerLon, centerLat], NaN if the section has no
+     *         coordinates.
+     */
+    public double[] getCenter() {
+        return center;
+    }
+
+    /**
+     * @return The bounding box [minLon, maxLon, minLat, maxLat] or null if the
+     *         section has no coordinates.
+     */
+    public double[] getBBOX() {
+        return bbox;
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Process wide cache of the IGC syslists (table "sys_list") and the catalog
+ * language used by {@link TransformationUtils}. All syslists are loaded at
+ * once and kept in an immutable {@link Codelists} snapshot, which is replaced
+ * after the refresh interval or after {@link #invalidate()}. Only one caller
+ * reloads the syslists, the others keep using the previous snapshot. Callers
+ * only wait if no snapshot exists yet.
+ * <p/>
+ * If the syslists cannot be loaded (e.g. no IGC database), the cache is
+ * unavailable until the next refresh and callers query the database.
+ */
+public class CodelistCache {
+
+    private static final Logger log = Logger.getLogger(CodelistCache.class);
+
+    private static CodelistCache myInstance;
+
+    private volatile Codelists codelists = null;
+
+    private volatile long loaded = 0;
+
+    private final AtomicBoolean reloading = new AtomicBoolean(false);
+
+    private long refreshInterval = 3600000;
+
+    /** Get The Singleton. */
+    public static synchronized CodelistCache getInstance() {
+        if (myInstance == null) {
+            myInstance = new CodelistCache();
+        }
+        return myInstance;
+    }
+
+    private CodelistCache() {
+    }
+
+    /**
+     * Get the current codelists, they are loaded if not loaded yet or the
+     * refresh interval is over.
+     * 
+     * @param sqlUtils used to load the codelists
+     * @return the codelists or null if the codelists are not available
+     */
+    public Codelists getCodelists(SQLUtils sqlUtils) {
+        Codelists current = codelists;
+        if (System.currentTimeMillis() - loaded >= refreshInterval) {
+            if (current == null) {
+                // nothing to return yet, wait for the first load
+                synchronized (this) {
+                    if (codelists == null) {
+                        codelists = load(sqlUtils);
+                        loaded = System.currentTimeMillis();
+                    }
+                }
+            } else if (reloading.compareAndSet(false, true)) {
+                try {
+                    codelists = load(sqlUtils);
+                    loaded = System.currentTimeMillis();
+                } finally {
+                    reloading.set(false);
+                }
+            }
+            current = codelists;
+        }
+        return current == Codelists.UNAVAILABLE ? null : current;
+    }
+
+    /**
+     * The codelists are loaded again on next access, e.g. after the syslists
+     * were changed in the catalog.
+     */
+    public void invalidate() {
+        loaded = 0;
+    }
+
+    public long getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    /**
+     * Sets the time in milliseconds the loaded codelists are used before they
+     * are loaded again.
+     * 
+     * @param refreshInterval
+     */
+    public void setRefreshInterval(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    private Codelists load(SQLUtils sqlUtils) {
+        long start = System.currentTimeMillis();
+        Codelists.Builder builder = new Codelists.Builder();
+        try {
+            sqlUtils.each("SELECT lst_id, entry_id, lang_id, name, data FROM sys_list ORDER BY lst_id, entry_id, lang_id", null, row -> {
+                builder.add(Integer.parseInt(row.get("lst_id")), Integer.parseInt(row.get("entry_id")), row.get("lang_id"),
+                        row.get("name"), row.get("data"));
+                return null;
+            });
+        } catch (Exception e) {
+            log.warn("Syslists could not be loaded, they are queried from the database: " + e);
+            return Codelists.UNAVAILABLE;
+        }
+        try {
+            Map<String, String> catalog = sqlUtils.first("SELECT language_key FROM t03_catalogue");
+            if (catalog != null && catalog.get("language_key") != null) {
+                builder.catalogLanguageKey = Integer.valueOf(catalog.get("language_key"));
+            }
+        } catch (Exception e) {
+            log.warn("Catalog language could not be loaded: " + e);
+        }
+        Codelists result = builder.build();
+        if (log.isInfoEnabled()) {
+            log.info(result.size() + " syslist entries loaded in " + (System.currentTimeMillis() - start) + " ms.");
+        }
+        return result;
+    }
+
+    private static long pack(int listId, int entryId) {
+        return ((long) listId << 32) | (entryId & 0xffffffffL);
+    }
+
+    /**
+     * Immutable snapshot of all syslists. The entries are stored in an open
+     * addressing hash table keyed by (list id, entry id) packed into a long,
+     * the values of an entry are stored by language index.
+     */
+    public static class Codelists {
+
+        static final Codelists UNAVAILABLE = new Codelists(new String[0], new long[0], new Entry[0], new HashMap<>(), new HashMap<>(), 0,
+                null);
+
+        /** language ids by language index */
+        private final String[] languages;
+
+        private final long[] keys;
+
+        private final Entry[] entries;
+
+        /** entries by lower case name (in any language) per list */
+        private final Map<Integer, Map<String, EntryName>> entriesByName;
+
+        /** entries ordered by entry id per list */
+        private final Map<Integer, Entry[]> entriesByList;
+
+        private final int size;
+
+        private final Integer catalogLanguageKey;
+
+        private Codelists(String[] languages, long[] keys, Entry[] entries, Map<Integer, Map<String, EntryName>> entriesByName,
+                Map<Integer, Entry[]> entriesByList, int size, Integer catalogLanguageKey) {
+            this.languages = languages;
+            this.keys = keys;
+            this.entries = entries;
+            this.entriesByName = entriesByName;
+            this.entriesByList = entriesByList;
+            this.size = size;
+            this.catalogLanguageKey = catalogLanguageKey;
+        }
+
+        /**
+         * @return the name of the entry in the given language or null if not
+         *         found
+         */
+        public String getName(int listId, int entryId, String langId) {
+            Entry entry = getEntry(listId, entryId);
+            int language = getLanguageIndex(langId);
+            return entry == null || language < 0 ? null : entry.names[language];
+        }
+
+        /**
+         * @return the id of the entry with the given name (in any language,
+         *         ignoring case like the database) or null if not found
+         */
+        public Integer getEntryId(int listId, String name) {
+            EntryName entryName = getEntryName(listId, name);
+            return entryName == null ? null : entryName.entry.entryId;
+        }
+
+        /**
+         * @return the data of the entry with the given name (in the language of
+         *         the name, ignoring case) or null if not found
+         */
+        public String getData(int listId, String name) {
+            EntryName entryName = getEntryName(listId, name);
+            return entryName == null ? null : entryName.entry.data[entryName.language];
+        }
+
+        /**
+         * @return the id of the entry with the lowest id whose data (in any
+         *         language) contains the filter ignoring case or null if not
+         *         found
+         */
+        public Integer getEntryIdByDataFilter(int listId, String dataFilter) {
+            Entry[] listEntries = entriesByList.get(listId);
+            if (listEntries == null || dataFilter == null) {
+                return null;
+            }
+            String filter = dataFilter.toLowerCase(Locale.ROOT);
+            for (Entry entry : listEntries) {
+                for (String data : entry.data) {
+                    if (data != null && data.toLowerCase(Locale.ROOT).contains(filter)) {
+                        return entry.entryId;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the entry id of the catalog language in the language syslist
+         */
+        public Integer getCatalogLanguageKey() {
+            return catalogLanguageKey;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private Entry getEntry(int listId, int entryId) {
+            if (keys.length == 0) {
+                return null;
+            }
+            long key = pack(listId, entryId);
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; entries[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return entries[i];
+                }
+            }
+            return null;
+        }
+
+        private EntryName getEntryName(int listId, String name) {
+            Map<String, EntryName> names = entriesByName.get(listId);
+            return names == null || name == null ? null : names.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        private int getLanguageIndex(String langId) {
+            for (int i = 0; i < languages.length; i++) {
+                if (languages[i].equals(langId)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        private static class Entry {
+            final int listId;
+            final int entryId;
+            String[] names;
+            String[] data;
+
+            Entry(int listId, int entryId, int languages) {
+                this.listId = listId;
+                this.entryId = entryId;
+                this.names = new String[languages];
+                this.data = new String[languages];
+            }
+        }
+
+        private static class EntryName {
+            final Entry entry;
+            final int language;
+
+            EntryName(Entry entry, int language) {
+                this.entry = entry;
+                this.language = language;
+            }
+        }
+
+        /**
+         * Collects the syslist rows, not thread safe.
+         */
+        static class Builder {
+
+            private final List<String> languages = new ArrayList<>();
+
+            private final Map<Long, Entry> entries = new HashMap<>();
+
+            private final Map<Integer, Map<String, EntryName>> entriesByName = new HashMap<>();
+
+            private final List<Object[]> names = new ArrayList<>();
+
+            Integer catalogLanguageKey = null;
+
+            void add(int listId, int entryId, String langId, String name, String data) {
+                int language = languages.indexOf(langId);
+                if (language < 0) {
+                    languages.add(langId);
+                    language = languages.size() - 1;
+                }
+                Entry entry = entries.get(pack(listId, entryId));
+                if (entry == null) {
+                    entry = new Entry(listId, entryId, 0);
+                    entries.put(pack(listId, entryId), entry);
+                }
+                if (entry.names.length <= language) {
+                    entry.names = Arrays.copyOf(entry.names, languages.size());
+                    entry.data = Arrays.copyOf(entry.data, languages.size());
+                }
+                entry.names[language] = name;
+                entry.data[language] = data;
+                if (name != null) {
+                    names.add(new Object[] { listId, name, entry, language });
+                }
+            }
+
+            Codelists build() {
+                int capacity = Integer.highestOneBit(Math.max(entries.size() * 2, 2) - 1) << 1;
+                long[] keys = new long[capacity];
+                Entry[] table = new Entry[capacity];
+                for (Map.Entry<Long, Entry> e : entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    // all entries get all languages
+                    entry.names = Arrays.copyOf(entry.names, languages.size());
+                    entry.data = Arrays.copyOf(entry.data, languages.size());
+                    long key = e.getKey();
+                    int i = hash(key) & (capacity - 1);
+                    while (table[i] != null) {
+                        i = (i + 1) & (capacity - 1);
+                    }
+                    keys[i] = key;
+                    table[i] = entry;
+                }
+                Map<Integer, List<Entry>> lists = new HashMap<>();
+                for (Entry entry : entries.values()) {
+                    lists.computeIfAbsent(entry.listId, id -> new ArrayList<>()).add(entry);
+                }
+                Map<Integer, Entry[]> entriesByList = new HashMap<>();
+                for (Map.Entry<Integer, List<Entry>> list : lists.entrySet()) {
+                    Entry[] listEntries = list.getValue().toArray(new Entry[0]);
+                    Arrays.sort(listEntries, Comparator.comparingInt(entry -> entry.entryId));
+                    entriesByList.put(list.getKey(), listEntries);
+                }
+                for (Object[] name : names) {
+                    // the first name wins like in a query for the name
+                    entriesByName.computeIfAbsent((Integer) name[0], id -> new HashMap<>())
+                            .putIfAbsent(((String) name[1]).toLowerCase(Locale.ROOT), new EntryName((Entry) name[2], (Integer) name[3]));
+                }
+                return new Codelists(languages.toArray(new String[0]), keys, table, entriesByName, entriesByList, entries.size(),
+                        catalogLanguageKey);
+            }
+        }
+    }
+}
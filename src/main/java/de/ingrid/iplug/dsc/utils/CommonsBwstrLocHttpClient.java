@@ -0,0 +1,122 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.utils;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+
+/**
+ * {@link IBwstrLocHttpClient} based on commons-httpclient. Every request
+ * blocks a thread, asynchronous requests are executed by a pool with one
+ * thread per connection.
+ */
+public class CommonsBwstrLocHttpClient implements IBwstrLocHttpClient {
+
+    private final MultiThreadedHttpConnectionManager connectionManager;
+
+    private final HttpClient client;
+
+    private final ExecutorService executor;
+
+    /**
+     * @param maxConnections maximum number of connections per host
+     * @param connectTimeout milliseconds to establish a connection, 0 for no timeout
+     * @param requestTimeout milliseconds to wait for data, 0 for no timeout
+     */
+    public CommonsBwstrLocHttpClient(int maxConnections, int connectTimeout, int requestTimeout) {
+        int connections = Math.max( 2, maxConnections );
+        connectionManager = new MultiThreadedHttpConnectionManager();
+        connectionManager.getParams().setDefaultMaxConnectionsPerHost( connections );
+        connectionManager.getParams().setMaxTotalConnections( Math.max( connections, 20 ) );
+        connectionManager.getParams().setConnectionTimeout( connectTimeout );
+        connectionManager.getParams().setSoTimeout( requestTimeout );
+        client = new HttpClient( connectionManager );
+        if (System.getProperty( "http.proxyHost" ) != null && System.getProperty( "http.proxyPort" ) != null) {
+            client.getHostConfiguration().setProxy( System.getProperty( "http.proxyHost" ), Integer.parseInt( System.getProperty( "http.proxyPort" ) ) );
+        }
+        AtomicInteger threads = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread( runnable, "BwstrLocHttpClient-" + threads.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        };
+        executor = Executors.newFixedThreadPool( connections, threadFactory );
+    }
+
+    @Override
+    public String get(String url) throws IOException {
+        GetMethod get = new GetMethod( url );
+        get.setRequestHeader( "Content-Type", "application/json" );
+        return execute( get );
+    }
+
+    @Override
+    public String post(String url, String body) throws IOException {
+        PostMethod post = new PostMethod( url );
+        post.setParameter( "Content-Type", "application/json" );
+        post.setRequestEntity( new StringRequestEntity( body, "application/json", "UTF-8" ) );
+        return execute( post );
+    }
+
+    @Override
+    public CompletableFuture<String> postAsync(String url, String body) {
+        CompletableFuture<String> result = new CompletableFuture<String>();
+        executor.execute( () -> {
+            try {
+                result.complete( post( url, body ) );
+            } catch (Exception e) {
+                result.completeExceptionally( e );
+            }
+        } );
+        return result;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        connectionManager.shutdown();
+    }
+
+    private String execute(HttpMethod method) throws IOException {
+        try {
+            int resp = client.executeMethod( method );
+            if (resp != 200) {
+                throw new IOException( "Invalid HTTP Response Code.: " + resp );
+            }
+            return method.getResponseBodyAsString();
+        } finally {
+            method.releaseConnection();
+        }
+    }
+}
@@ -58,6 +58,16 @@ public class DOMUtils {
         this.xPathUtils = xPathUtils;
     }
 
+    /**
+     * Rebind the instance to another document, e.g. to reuse it for the next
+     * record of a mapping thread. Added namespaces are kept.
+     * 
+     * @param doc
+     */
+    public void setDocument(Document doc) {
+        this.myDoc = doc;
+    }
+
     /** Add a namespace before creating an element of that NS ! */
     public void addNS(String prefix, String uri) {
         myNSMap.put(prefix, uri);
@@ -50,6 +50,8 @@ public class DatabaseConnectionUtils {
 
     private BasicDataSource dataSource;
 
+    private int maxPooledStatements = 0;
+
 	/** Get The Singleton. */
 	public static synchronized DatabaseConnectionUtils getInstance() {
 		if (myInstance == null) {
@@ -79,6 +81,13 @@ public class DatabaseConnectionUtils {
             //dataSource.setMaxActive(5);
             dataSource.setMaxIdle(2);
             dataSource.setInitialSize(2);
+            // the statement cache of SQLUtils is kept by the physical connection
+            dataSource.setAccessToUnderlyingConnectionAllowed(true);
+            if (maxPooledStatements > 0) {
+                // alternative to the statement cache of SQLUtils
+                dataSource.setPoolPreparedStatements(true);
+                dataSource.setMaxOpenPreparedStatements(maxPooledStatements);
+            }
             if (DatabaseConnectionUtils.isOracle(internalDatabaseConnection)) {
                 dataSource.setValidationQuery("select 1 from dual");
             } else if (DatabaseConnectionUtils.isHSQLDB(internalDatabaseConnection)) {
@@ -99,6 +108,15 @@ public class DatabaseConnectionUtils {
 	    return dataSource.getConnection();
     }
 
+    /**
+     * Set the maximum number of prepared statements pooled per connection by
+     * the connection pool, takes effect with the next data source. A value
+     * &lt;= 0 disables the statement pooling of the pool.
+     */
+    public void setMaxPooledStatements(int maxPooledStatements) {
+        this.maxPooledStatements = maxPooledStatements;
+    }
+
     public void closeDataSource() throws SQLException {
 	    if (dataSource != null) {
 	        dataSource.close();
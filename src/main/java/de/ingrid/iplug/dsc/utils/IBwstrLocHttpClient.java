@@ -0,0 +1,68 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.utils;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * HTTP client used by {@link BwstrLocUtil} to query the BWaStr. Locator.
+ * Implementations are shared by all threads and must be thread safe.
+ */
+public interface IBwstrLocHttpClient {
+
+    /**
+     * Executes a GET request.
+     * 
+     * @param url
+     * @return the response body
+     * @throws IOException if the request fails or the response code is not 200
+     */
+    String get(String url) throws IOException;
+
+    /**
+     * Executes a POST request with a JSON body.
+     * 
+     * @param url
+     * @param body the JSON request
+     * @return the response body
+     * @throws IOException if the request fails or the response code is not 200
+     */
+    String post(String url, String body) throws IOException;
+
+    /**
+     * Executes a POST request with a JSON body without blocking the calling
+     * thread.
+     * 
+     * @param url
+     * @param body the JSON request
+     * @return the response body, completed exceptionally if the request fails
+     *         or the response code is not 200
+     */
+    CompletableFuture<String> postAsync(String url, String body);
+
+    /**
+     * Releases the connections and threads of the client.
+     */
+    void close();
+}
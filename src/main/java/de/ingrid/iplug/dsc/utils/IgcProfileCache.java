@@ -0,0 +1,388 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.utils;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import de.ingrid.utils.xml.ConfigurableNamespaceContext;
+import de.ingrid.utils.xml.IDFNamespaceContext;
+import de.ingrid.utils.xml.IgcProfileNamespaceContext;
+import de.ingrid.utils.xpath.XPathUtils;
+
+/**
+ * Process wide cache of the parsed IGC profile and the structures derived
+ * from it, shared by the profile mappers. The profile is loaded by the SQL
+ * of the mapper, which has to deliver the profile in a column named
+ * "igc_profile".
+ * <p/>
+ * The profile is not loaded from the database again before the check
+ * interval is over. Then the profile is only parsed again if its content
+ * hash changed.
+ * <p/>
+ * The cached structures are shared between threads and must only be read.
+ * The DOM of the profile is not thread safe, not even for reads, so every
+ * thread works on its own copy of the profile document.
+ * 
+ */
+public class IgcProfileCache {
+
+    private static final Logger log = Logger.getLogger(IgcProfileCache.class);
+
+    private static IgcProfileCache myInstance;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private long checkInterval = 60000;
+
+    /** Get The Singleton. */
+    public static synchronized IgcProfileCache getInstance() {
+        if (myInstance == null) {
+            myInstance = new IgcProfileCache();
+        }
+        return myInstance;
+    }
+
+    private IgcProfileCache() {
+    }
+
+    /**
+     * Get the profile loaded by the given SQL. The profile is loaded and
+     * parsed only if it is not cached or it changed after the check interval.
+     * 
+     * @param connection connection to load the profile
+     * @param sql SQL delivering the profile in column "igc_profile"
+     * @return the profile or null if no profile is stored
+     * @throws Exception
+     */
+    public IgcProfile getProfile(Connection connection, String sql) throws Exception {
+        Entry entry = entries.get(sql);
+        if (entry != null && System.currentTimeMillis() - entry.checked < checkInterval) {
+            return entry.profile;
+        }
+        synchronized (this) {
+            entry = entries.get(sql);
+            long now = System.currentTimeMillis();
+            if (entry != null && now - entry.checked < checkInterval) {
+                return entry.profile;
+            }
+            String igcProfileStr = loadProfile(connection, sql);
+            String hash = igcProfileStr == null ? "" : hash(igcProfileStr);
+            if (entry != null && entry.hash.equals(hash)) {
+                entries.put(sql, new Entry(entry.profile, hash, now));
+                return entry.profile;
+            }
+            IgcProfile profile = null;
+            if (igcProfileStr != null) {
+                long start = System.currentTimeMillis();
+                profile = new IgcProfile(igcProfileStr, hash);
+                if (log.isInfoEnabled()) {
+                    log.info("IGC profile parsed in " + (System.currentTimeMillis() - start) + " ms.");
+                }
+            }
+            entries.put(sql, new Entry(profile, hash, now));
+            return profile;
+        }
+    }
+
+    /**
+     * Removes all profiles from the cache, they are loaded again on next
+     * access.
+     */
+    public void invalidate() {
+        entries.clear();
+    }
+
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+    /**
+     * Sets the time in milliseconds a cached profile is used without checking
+     * the database for changes.
+     * 
+     * @param checkInterval
+     */
+    public void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    private String loadProfile(Connection connection, String sql) throws Exception {
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                String igcProfileStr = rs.getString("igc_profile");
+                if (log.isDebugEnabled()) {
+                    log.debug("igc profile found: " + igcProfileStr);
+                }
+                return igcProfileStr;
+            }
+        }
+    }
+
+    private static String hash(String str) throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(str.getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static class Entry {
+        final IgcProfile profile;
+        final String hash;
+        final long checked;
+
+        Entry(IgcProfile profile, String hash, long checked) {
+            this.profile = profile;
+            this.hash = hash;
+            this.checked = checked;
+        }
+    }
+
+    /**
+     * A parsed IGC profile with the structures derived from it.
+     */
+    public static class IgcProfile {
+
+        /** parsed profile, only accessed to copy it for the threads */
+        private final Document document;
+
+        private final String hash;
+
+        private final Map<String, String> indexNames;
+
+        private final List<String> cswMappingScripts;
+
+        /** copy of the profile document and its control nodes for every thread */
+        private final ThreadLocal<ProfileCopy> copies = new ThreadLocal<ProfileCopy>();
+
+        /** compiled CSW mappings by engine, null value if compiling failed */
+        private final Map<ScriptEngine, CompiledScript> compiledCswMappings = new WeakHashMap<ScriptEngine, CompiledScript>();
+
+        IgcProfile(String igcProfileStr, String hash) throws Exception {
+            this.hash = hash;
+            XPathUtils xPathUtils = createXPathUtils();
+
+            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+            dbf.setNamespaceAware(true);
+            DocumentBuilder db = dbf.newDocumentBuilder();
+            document = db.parse(new InputSource(new StringReader(igcProfileStr)));
+
+            Map<String, String> names = new HashMap<String, String>();
+            NodeList igcProfileIndexNames = xPathUtils.getNodeList(document, "//igcp:controls/*//igcp:indexName");
+            for (int i = 0; i < igcProfileIndexNames.getLength(); i++) {
+                String igcProfileIndexName = igcProfileIndexNames.item(i).getTextContent();
+                if (igcProfileIndexName != null && igcProfileIndexName.trim().length() > 0) {
+                    Node igcProfileNode = igcProfileIndexNames.item(i).getParentNode();
+                    String igcProfileNodeId = xPathUtils.getString(igcProfileNode, "igcp:id");
+                    names.put(igcProfileNodeId, igcProfileIndexName);
+                }
+            }
+            indexNames = Collections.unmodifiableMap(names);
+
+            List<String> scripts = new ArrayList<String>();
+            NodeList igcProfileCswMappings = getCswMappingNodes(xPathUtils, document);
+            if (log.isDebugEnabled()) {
+                log.debug("cswMappings found: " + igcProfileCswMappings.getLength());
+            }
+            for (int i = 0; i < igcProfileCswMappings.getLength(); i++) {
+                String igcProfileCswMapping = igcProfileCswMappings.item(i).getTextContent();
+                if (isCswMapping(igcProfileCswMapping)) {
+                    scripts.add(igcProfileCswMapping);
+                }
+            }
+            cswMappingScripts = Collections.unmodifiableList(scripts);
+        }
+
+        /**
+         * @return the copy of the parsed profile of the calling thread, must
+         *         not be modified or passed to other threads
+         */
+        public Document getDocument() {
+            return getCopy().document;
+        }
+
+        /**
+         * @return content hash of the profile
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return the index field names of the additional fields by field id
+         */
+        public Map<String, String> getIndexNames() {
+            return indexNames;
+        }
+
+        /**
+         * @return the control nodes with a scripted CSW mapping, in the order
+         *         of the profile, from the copy of the calling thread (see
+         *         {@link #getDocument()})
+         */
+        public List<Node> getCswMappingControlNodes() {
+            return getCopy().cswMappingControlNodes;
+        }
+
+        /**
+         * @return the scripted CSW mappings, in the same order as
+         *         {@link #getCswMappingControlNodes()}
+         */
+        public List<String> getCswMappingScripts() {
+            return cswMappingScripts;
+        }
+
+        /**
+         * Get all scripted CSW mappings compiled into one unit. Every mapping
+         * is wrapped into a function with the parameter
+         * "igcProfileControlNode", the unit calls them in the order of the
+         * profile with the nodes of the binding "igcProfileControlNodes"
+         * (see {@link #getCswMappingControlNodes()}). Globals created by a
+         * mapping are removed before the next mapping is called. The unit is
+         * compiled once per engine.
+         * 
+         * @param engine the engine to compile the unit with
+         * @return the compiled unit or null if the engine cannot compile or
+         *         the unit does not compile, e.g. because of a syntax error in
+         *         a mapping
+         */
+        public CompiledScript getCompiledCswMappings(ScriptEngine engine) {
+            synchronized (compiledCswMappings) {
+                if (compiledCswMappings.containsKey(engine)) {
+                    return compiledCswMappings.get(engine);
+                }
+                CompiledScript compiled = null;
+                if (engine instanceof Compilable) {
+                    try {
+                        long start = System.currentTimeMillis();
+                        compiled = ((Compilable) engine).compile(createFusedCswMappingScript());
+                        if (log.isDebugEnabled()) {
+                            log.debug("Scripted CSW mappings compiled in " + (System.currentTimeMillis() - start) + " ms.");
+                        }
+                    } catch (ScriptException e) {
+                        log.warn("Scripted CSW mappings of the IGC profile could not be compiled, they are evaluated one by one.", e);
+                    }
+                }
+                compiledCswMappings.put(engine, compiled);
+                return compiled;
+            }
+        }
+
+        private String createFusedCswMappingScript() {
+            StringBuilder script = new StringBuilder("(function(global) {\nvar igcProfileCswMappings = [\n");
+            for (int i = 0; i < cswMappingScripts.size(); i++) {
+                script.append(i == 0 ? "" : ",\n");
+                script.append("function(igcProfileControlNode) {\n").append(cswMappingScripts.get(i)).append("\n}");
+            }
+            script.append("\n];\n");
+            // every mapping runs in its own scope like a separately evaluated
+            // script, so the globals it creates implicitly are removed after it
+            script.append("var igcProfileGlobals = {};\n");
+            script.append("Object.getOwnPropertyNames(global).forEach(function(name) { igcProfileGlobals[name] = true; });\n");
+            script.append("for (var i = 0; i < igcProfileCswMappings.length; i++) {\n");
+            script.append("    try {\n");
+            script.append("        igcProfileCswMappings[i](igcProfileControlNodes.get(i));\n");
+            script.append("    } finally {\n");
+            script.append("        Object.getOwnPropertyNames(global).forEach(function(name) {\n");
+            script.append("            if (!igcProfileGlobals.hasOwnProperty(name)) { delete global[name]; }\n");
+            script.append("        });\n");
+            script.append("    }\n");
+            script.append("}\n})(this);\n");
+            return script.toString();
+        }
+
+        private ProfileCopy getCopy() {
+            ProfileCopy copy = copies.get();
+            if (copy == null) {
+                Document documentCopy;
+                synchronized (document) {
+                    documentCopy = (Document) document.cloneNode(true);
+                }
+                List<Node> controlNodes = new ArrayList<Node>();
+                NodeList igcProfileCswMappings = getCswMappingNodes(createXPathUtils(), documentCopy);
+                for (int i = 0; i < igcProfileCswMappings.getLength(); i++) {
+                    if (isCswMapping(igcProfileCswMappings.item(i).getTextContent())) {
+                        controlNodes.add(igcProfileCswMappings.item(i).getParentNode());
+                    }
+                }
+                copy = new ProfileCopy(documentCopy, Collections.unmodifiableList(controlNodes));
+                copies.set(copy);
+            }
+            return copy;
+        }
+
+        private static NodeList getCswMappingNodes(XPathUtils xPathUtils, Document document) {
+            return xPathUtils.getNodeList(document, "//igcp:controls/*/igcp:scriptedCswMapping");
+        }
+
+        private static boolean isCswMapping(String igcProfileCswMapping) {
+            return igcProfileCswMapping != null && igcProfileCswMapping.trim().length() > 0;
+        }
+
+        private static XPathUtils createXPathUtils() {
+            ConfigurableNamespaceContext cnc = new ConfigurableNamespaceContext();
+            cnc.addNamespaceContext(new IDFNamespaceContext());
+            cnc.addNamespaceContext(new IgcProfileNamespaceContext());
+            return new XPathUtils(cnc);
+        }
+
+        private static class ProfileCopy {
+            final Document document;
+            final List<Node> cswMappingControlNodes;
+
+            ProfileCopy(Document document, List<Node> cswMappingControlNodes) {
+                this.document = document;
+                this.cswMappingControlNodes = cswMappingControlNodes;
+            }
+        }
+    }
+}
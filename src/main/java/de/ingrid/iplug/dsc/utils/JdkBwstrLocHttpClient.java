@@ -0,0 +1,120 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link IBwstrLocHttpClient} based on the JDK {@link HttpClient}. The
+ * connections are pooled and kept alive by the client, asynchronous requests
+ * do not occupy a thread while waiting for the response, so many requests can
+ * be in flight at the same time.
+ */
+public class JdkBwstrLocHttpClient implements IBwstrLocHttpClient {
+
+    private final HttpClient client;
+
+    private final Duration requestTimeout;
+
+    /**
+     * @param connectTimeout milliseconds to establish a connection, 0 for no timeout
+     * @param requestTimeout milliseconds to wait for the response, 0 for no timeout
+     */
+    public JdkBwstrLocHttpClient(int connectTimeout, int requestTimeout) {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .followRedirects( HttpClient.Redirect.NORMAL )
+                .proxy( ProxySelector.getDefault() );
+        if (connectTimeout > 0) {
+            builder.connectTimeout( Duration.ofMillis( connectTimeout ) );
+        }
+        client = builder.build();
+        this.requestTimeout = requestTimeout > 0 ? Duration.ofMillis( requestTimeout ) : null;
+    }
+
+    @Override
+    public String get(String url) throws IOException {
+        return send( newRequest( url ).header( "Content-Type", "application/json" ).GET().build() );
+    }
+
+    @Override
+    public String post(String url, String body) throws IOException {
+        return send( createPost( url, body ) );
+    }
+
+    @Override
+    public CompletableFuture<String> postAsync(String url, String body) {
+        HttpRequest request;
+        try {
+            request = createPost( url, body );
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture( e );
+        }
+        return client.sendAsync( request, HttpResponse.BodyHandlers.ofString( StandardCharsets.UTF_8 ) ).thenApply( response -> {
+            if (response.statusCode() != 200) {
+                throw new IllegalStateException( "Invalid HTTP Response Code.: " + response.statusCode() );
+            }
+            return response.body();
+        } );
+    }
+
+    @Override
+    public void close() {
+        // the connections of the JDK client are closed when the client is garbage collected
+    }
+
+    private HttpRequest createPost(String url, String body) {
+        return newRequest( url ).header( "Content-Type", "application/json" )
+                .POST( HttpRequest.BodyPublishers.ofString( body, StandardCharsets.UTF_8 ) ).build();
+    }
+
+    private HttpRequest.Builder newRequest(String url) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder( URI.create( url ) );
+        if (requestTimeout != null) {
+            builder.timeout( requestTimeout );
+        }
+        return builder;
+    }
+
+    private String send(HttpRequest request) throws IOException {
+        HttpResponse<String> response;
+        try {
+            response = client.send( request, HttpResponse.BodyHandlers.ofString( StandardCharsets.UTF_8 ) );
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Request to " + request.uri() + " interrupted." );
+        }
+        if (response.statusCode() != 200) {
+            throw new IOException( "Invalid HTTP Response Code.: " + response.statusCode() );
+        }
+        return response.body();
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.utils;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A record of a SQL result as returned by {@link SQLUtils}. The values are
+ * stored in an array, the column names (IN LOWER CASE) are shared by all rows
+ * of a result set (see {@link Header}). Integral columns are kept as numbers,
+ * they are only converted into strings when accessed via {@link #get(Object)}
+ * and can be accessed without conversion via {@link #getLong(String)}.
+ * <p/>
+ * Rows can be extended via put(), removing entries is not supported.
+ */
+public class ResultRow extends AbstractMap<String, String> {
+
+    private final Header header;
+
+    /** String or Long values by column index */
+    private final Object[] values;
+
+    /** Entries added via put() that are no columns of the result */
+    private Map<String, String> additionalEntries = null;
+
+    private Set<Map.Entry<String, String>> entrySet = null;
+
+    ResultRow(Header header, Object[] values) {
+        this.header = header;
+        this.values = values;
+    }
+
+    /**
+     * Read the current row of the result set. NOTICE: String values are
+     * trimmed.
+     */
+    static ResultRow read(ResultSet rs, Header header) throws SQLException {
+        Object[] values = new Object[header.columnCount];
+        for (int i = 0; i < header.columnCount; i++) {
+            if (header.integral[i]) {
+                long value = rs.getLong(i + 1);
+                values[i] = rs.wasNull() ? null : Long.valueOf(value);
+            } else {
+                String value = rs.getString(i + 1);
+                values[i] = value == null ? null : value.trim();
+            }
+        }
+        return new ResultRow(header, values);
+    }
+
+    @Override
+    public String get(Object key) {
+        Integer column = header.columns.get(key);
+        if (column != null) {
+            Object value = values[column];
+            return value == null ? null : value.toString();
+        }
+        return additionalEntries == null ? null : additionalEntries.get(key);
+    }
+
+    /**
+     * @param key the column name
+     * @return the value as number, null if the value is null or no number
+     */
+    public Long getLong(String key) {
+        Object value = getValue(key);
+        if (value instanceof Long) {
+            return (Long) value;
+        }
+        try {
+            return value == null ? null : Long.valueOf(value.toString());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param key the column name
+     * @return the value as number, null if the value is null or no number
+     */
+    public Double getDouble(String key) {
+        Object value = getValue(key);
+        if (value instanceof Long) {
+            return ((Long) value).doubleValue();
+        }
+        try {
+            return value == null ? null : Double.valueOf(value.toString());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private Object getValue(String key) {
+        Integer column = header.columns.get(key);
+        if (column != null) {
+            return values[column];
+        }
+        return additionalEntries == null ? null : additionalEntries.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return header.columns.containsKey(key) || (additionalEntries != null && additionalEntries.containsKey(key));
+    }
+
+    @Override
+    public int size() {
+        return header.names.length + (additionalEntries == null ? 0 : additionalEntries.size());
+    }
+
+    @Override
+    public String put(String key, String value) {
+        Integer column = header.columns.get(key);
+        if (column != null) {
+            String previous = get(key);
+            values[column] = value;
+            return previous;
+        }
+        if (additionalEntries == null) {
+            additionalEntries = new LinkedHashMap<>();
+        }
+        return additionalEntries.put(key, value);
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return ResultRow.this.size();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, String>> {
+
+        private int next = 0;
+
+        private final Iterator<Map.Entry<String, String>> additional = additionalEntries == null ? null
+                : additionalEntries.entrySet().iterator();
+
+        @Override
+        public boolean hasNext() {
+            return next < header.names.length || (additional != null && additional.hasNext());
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (next < header.names.length) {
+                String name = header.names[next++];
+                return new SimpleImmutableEntry<>(name, get(name));
+            }
+            if (additional == null) {
+                throw new NoSuchElementException();
+            }
+            return additional.next();
+        }
+    }
+
+    /**
+     * The column names of a result set and the index of their values, shared
+     * by all rows of the result set. Duplicate column names are mapped to the
+     * first column with that name.
+     */
+    static class Header {
+
+        final int columnCount;
+
+        /** distinct column names in lower case */
+        final String[] names;
+
+        final Map<String, Integer> columns;
+
+        final boolean[] integral;
+
+        Header(ResultSetMetaData meta) throws SQLException {
+            columnCount = meta.getColumnCount();
+            columns = new HashMap<>(columnCount * 2);
+            integral = new boolean[columnCount];
+            List<String> distinctNames = new ArrayList<>(columnCount);
+            for (int i = 0; i < columnCount; i++) {
+                String name = meta.getColumnName(i + 1).toLowerCase();
+                if (!columns.containsKey(name)) {
+                    columns.put(name, i);
+                    distinctNames.add(name);
+                }
+                integral[i] = isIntegral(meta, i + 1);
+            }
+            names = distinctNames.toArray(new String[0]);
+        }
+
+        private static boolean isIntegral(ResultSetMetaData meta, int column) throws SQLException {
+            switch (meta.getColumnType(column)) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                return true;
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                // e.g. NUMBER(10) ids in Oracle
+                int precision = meta.getPrecision(column);
+                return meta.getScale(column) == 0 && precision > 0 && precision <= 18;
+            default:
+                return false;
+            }
+        }
+    }
+}
@@ -25,19 +25,28 @@ package de.ingrid.iplug.dsc.utils;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.dbcp2.DelegatingConnection;
 import org.apache.log4j.Logger;
 
 /**
  * Helper class encapsulating SQL access via JDBC connection (e.g. used in
  * mapping script). Must be instantiated to be thread safe.
+ * <p/>
+ * Prepared statements are cached per physical connection (LRU, see
+ * {@link #setStatementCacheSize(int)}), so statements executed again on the
+ * same connection, e.g. by the following records of a leased connection, are
+ * not prepared again.
  * 
  * @author Martin
  */
@@ -45,6 +54,20 @@ public class SQLUtils {
 
     private static final Logger log = Logger.getLogger(SQLUtils.class);
 
+    /** Statement caches by physical connection */
+    private static final Map<Connection, StatementCache> statementCaches = new IdentityHashMap<>();
+
+    private static volatile int statementCacheSize = 50;
+
+    /** Maximum number of keys in one IN clause (Oracle) */
+    public static final int MAX_IN_LIST_SIZE = 1000;
+
+    private static final int[] IN_LIST_SIZES = { 10, 100, MAX_IN_LIST_SIZE };
+
+    private static final AtomicLong statementCacheHits = new AtomicLong();
+
+    private static final AtomicLong statementCacheMisses = new AtomicLong();
+
     private Connection connection;
 
     public SQLUtils(Connection connection) {
@@ -55,6 +78,16 @@ public class SQLUtils {
     	return connection;
     }
 
+    /**
+     * Rebind the instance to another connection, e.g. to reuse it for the
+     * next record of a mapping thread.
+     * 
+     * @param connection
+     */
+    public void setConnection(Connection connection) {
+        this.connection = connection;
+    }
+
     /**
      * Executes a SQL and returns the first record result.
      * 
@@ -65,12 +98,7 @@ public class SQLUtils {
      * @throws SQLException
      */
     public Map<String, String> first(String sqlStr) throws SQLException {
-        List<Map<String, String>> results = all(sqlStr);
-        if (results.size() > 0) {
-            return results.get(0);
-        } else {
-            return null;
-        }
+        return first(sqlStr, null);
     }
 
     /**
@@ -85,11 +113,14 @@ public class SQLUtils {
      * @throws SQLException
      */
     public Map<String, String> first(String sqlStr, Object[] sqlParams) throws SQLException {
-        List<Map<String, String>> results = all(sqlStr, sqlParams);
-        if (results.size() > 0) {
-            return results.get(0);
-        } else {
-            return null;
+        // only the first row is read
+        try (RowIterator rows = iterate(sqlStr, sqlParams)) {
+            return rows.hasNext() ? rows.next() : null;
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw e;
         }
     }
 
@@ -121,7 +152,222 @@ public class SQLUtils {
         if (log.isDebugEnabled()) {
             log.debug("Execute sql: '" + sqlStr + "' with parameters: " + Arrays.toString(sqlParams));
         }
-        try (PreparedStatement ps = connection.prepareStatement(sqlStr)) {
+        StatementCache statementCache = getStatementCache();
+        PreparedStatement ps = null;
+        boolean failed = false;
+        try {
+            ps = prepare(statementCache, sqlStr, sqlParams);
+            try (ResultSet rs = ps.executeQuery()) {
+                return toList(rs);
+            }
+
+        } catch (SQLException ex) {
+            failed = true;
+            log.error("Error fetching all records from SQL. Sql: " + sqlStr + ", sqlParams: " + Arrays.toString(sqlParams)
+                    + ", Exception: " + ex);
+            throw ex;
+        } finally {
+            release(statementCache, sqlStr, ps, failed);
+        }
+    }
+
+    /**
+     * Executes a SQL for many keys at once instead of once per key. The SQL
+     * contains a single placeholder for the keys in an IN clause, e.g.
+     * 
+     * <pre>
+     * SQL.allByKeys("SELECT * FROM t02_address WHERE adr_uuid IN (?)", "adr_uuid", adrUuids);
+     * </pre>
+     * 
+     * The keys are queried in chunks of at most {@value #MAX_IN_LIST_SIZE}
+     * (Oracle limit). The chunks are padded to a few fixed sizes, so only a
+     * few different statements are prepared (see
+     * {@link #setStatementCacheSize(int)}).
+     * 
+     * @param sqlStr
+     *            the sql to execute with a single placeholder for the keys
+     * @param keyColumn
+     *            the column of the result (IN LOWER CASE) holding the key
+     * @param keys
+     *            the keys, duplicates and null values are ignored
+     * @return map with the keys (as String) in the order of the given keys and
+     *         the rows of each key, keys without rows are mapped to an empty
+     *         list
+     * @throws SQLException
+     */
+    public Map<String, List<Map<String, String>>> allByKeys(String sqlStr, String keyColumn, Object[] keys) throws SQLException {
+        int placeholder = sqlStr.indexOf('?');
+        if (placeholder < 0 || sqlStr.indexOf('?', placeholder + 1) >= 0) {
+            throw new IllegalArgumentException("SQL must contain exactly one placeholder for the keys: " + sqlStr);
+        }
+        Map<String, List<Map<String, String>>> result = new LinkedHashMap<>();
+        List<Object> distinctKeys = new ArrayList<>();
+        for (Object key : keys) {
+            if (key != null && result.putIfAbsent(toKeyString(key), new ArrayList<>()) == null) {
+                distinctKeys.add(key);
+            }
+        }
+
+        for (int start = 0; start < distinctKeys.size(); start += MAX_IN_LIST_SIZE) {
+            List<Object> chunk = distinctKeys.subList(start, Math.min(start + MAX_IN_LIST_SIZE, distinctKeys.size()));
+            Object[] sqlParams = new Object[getInListSize(chunk.size())];
+            for (int i = 0; i < sqlParams.length; i++) {
+                // pad with the last key, does not change the result
+                sqlParams[i] = chunk.get(Math.min(i, chunk.size() - 1));
+            }
+            StringBuilder chunkSql = new StringBuilder(sqlStr.length() + 2 * sqlParams.length);
+            chunkSql.append(sqlStr, 0, placeholder).append('?');
+            for (int i = 1; i < sqlParams.length; i++) {
+                chunkSql.append(",?");
+            }
+            chunkSql.append(sqlStr, placeholder + 1, sqlStr.length());
+
+            for (Map<String, String> row : all(chunkSql.toString(), sqlParams)) {
+                List<Map<String, String>> keyRows = result.get(row.get(keyColumn));
+                if (keyRows != null) {
+                    keyRows.add(row);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #allByKeys(String, String, Object[])} but only returns
+     * the first row of every key.
+     * 
+     * @return map with the keys (as String) and the first row of each key,
+     *         keys without rows are not contained
+     * @throws SQLException
+     */
+    public Map<String, Map<String, String>> firstByKeys(String sqlStr, String keyColumn, Object[] keys) throws SQLException {
+        Map<String, Map<String, String>> result = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Map<String, String>>> entry : allByKeys(sqlStr, keyColumn, keys).entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                result.put(entry.getKey(), entry.getValue().get(0));
+            }
+        }
+        return result;
+    }
+
+    /** Numbers (e.g. from JavaScript) are keys like the integral column values. */
+    private static String toKeyString(Object key) {
+        if (key instanceof Number) {
+            return String.valueOf(((Number) key).longValue());
+        }
+        return key.toString();
+    }
+
+    private static int getInListSize(int keys) {
+        if (keys <= 1) {
+            return 1;
+        }
+        for (int size : IN_LIST_SIZES) {
+            if (keys <= size) {
+                return size;
+            }
+        }
+        return MAX_IN_LIST_SIZE;
+    }
+
+    /**
+     * Executes a SQL and hands the records to the callback one by one without
+     * keeping them all in memory. The iteration stops if the callback returns
+     * false, e.g. in a mapping script:
+     * 
+     * <pre>
+     * SQL.each("SELECT * FROM t012_obj_adr WHERE obj_id=?", [objId], function(row) {
+     *     ...
+     *     return false; // only the first row is needed
+     * });
+     * </pre>
+     * 
+     * @param sqlStr
+     *            the sql to execute
+     * @param sqlParams
+     *            the params to be set on SQL string. NOTICE: NO null params !
+     * @param callback
+     *            gets every row with column names IN LOWER CASE (!!!) as keys
+     *            and column values as String (can be null)
+     * @return the number of rows handed to the callback
+     * @throws Exception
+     *             if the SQL or the callback fails
+     */
+    public int each(String sqlStr, Object[] sqlParams, RowCallback callback) throws Exception {
+        if (log.isDebugEnabled()) {
+            log.debug("Execute sql: '" + sqlStr + "' with parameters: " + Arrays.toString(sqlParams));
+        }
+        StatementCache statementCache = getStatementCache();
+        PreparedStatement ps = null;
+        boolean failed = false;
+        try {
+            ps = prepare(statementCache, sqlStr, sqlParams);
+            try (ResultSet rs = ps.executeQuery()) {
+                ResultRow.Header header = new ResultRow.Header(rs.getMetaData());
+                int rows = 0;
+                while (rs.next()) {
+                    rows++;
+                    if (Boolean.FALSE.equals(callback.row(ResultRow.read(rs, header)))) {
+                        break;
+                    }
+                }
+                return rows;
+            }
+
+        } catch (SQLException ex) {
+            failed = true;
+            log.error("Error fetching records from SQL. Sql: " + sqlStr + ", sqlParams: " + Arrays.toString(sqlParams)
+                    + ", Exception: " + ex);
+            throw ex;
+        } finally {
+            release(statementCache, sqlStr, ps, failed);
+        }
+    }
+
+    /**
+     * Executes a SQL and returns an iterator over the records, which are read
+     * one by one. The iterator closes its result set when the last record was
+     * read. If the iteration is stopped earlier, the iterator MUST be closed.
+     * 
+     * @param sqlStr
+     *            the sql to execute
+     * @param sqlParams
+     *            the params to be set on SQL string. NOTICE: NO null params !
+     * @return iterator over the rows with column names IN LOWER CASE (!!!) as
+     *         keys and column values as String (can be null)
+     * @throws SQLException
+     */
+    public RowIterator iterate(String sqlStr, Object[] sqlParams) throws SQLException {
+        if (log.isDebugEnabled()) {
+            log.debug("Execute sql: '" + sqlStr + "' with parameters: " + Arrays.toString(sqlParams));
+        }
+        StatementCache statementCache = getStatementCache();
+        PreparedStatement ps = null;
+        try {
+            ps = prepare(statementCache, sqlStr, sqlParams);
+            return new RowIterator(statementCache, sqlStr, ps, ps.executeQuery());
+        } catch (SQLException ex) {
+            release(statementCache, sqlStr, ps, true);
+            log.error("Error fetching records from SQL. Sql: " + sqlStr + ", sqlParams: " + Arrays.toString(sqlParams)
+                    + ", Exception: " + ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Get a prepared statement with the given parameters set. Cached
+     * statements are checked out of the cache, so nested queries with the
+     * same SQL (e.g. in a callback) get their own statement.
+     */
+    private PreparedStatement prepare(StatementCache statementCache, String sqlStr, Object[] sqlParams) throws SQLException {
+        PreparedStatement ps;
+        if (statementCache != null) {
+            ps = statementCache.checkOut(sqlStr);
+            ps.clearParameters();
+        } else {
+            ps = connection.prepareStatement(sqlStr);
+        }
+        try {
             if (sqlParams != null) {
                 for (int i = 0; i < sqlParams.length; i++) {
                     Object sqlParam = sqlParams[i]; 
@@ -140,85 +386,300 @@ public class SQLUtils {
                     }
                 }
             }
-
-            ResultSet rs = ps.executeQuery();
-            return toList(rs);
-
         } catch (SQLException ex) {
-            log.error("Error fetching all records from SQL. Sql: " + sqlStr + ", sqlParams: " + Arrays.toString(sqlParams)
-                    + ", Exception: " + ex);
+            StatementCache.close(ps);
             throw ex;
         }
+        return ps;
     }
 
     /**
-     * Helper method that converts a ResultSet into a list of maps, one per row
+     * Return a statement to the cache or close it if it is not cached or
+     * failed (a statement in an unknown state is not reused).
+     */
+    private static void release(StatementCache statementCache, String sqlStr, PreparedStatement ps, boolean failed) {
+        if (ps == null) {
+            return;
+        }
+        if (statementCache != null && !failed) {
+            statementCache.checkIn(sqlStr, ps);
+        } else {
+            StatementCache.close(ps);
+        }
+    }
+
+    /**
+     * Set the maximum number of prepared statements cached per physical
+     * connection. A size &lt;= 0 disables the cache, e.g. if the statements
+     * are pooled by the connection pool instead.
      * 
-     * @param rs
-     *            ResultSet
-     * @return list of maps, one per column row, with column names as keys and
-     *         column values as String (can be null)
-     * @throws SQLException
-     *             if the connection fails
+     * @param size
      */
-    private List<Map<String, String>> toList(ResultSet rs) throws SQLException {
-        List<String> wantedColumnNames = getColumnNames(rs);
+    public static void setStatementCacheSize(int size) {
+        statementCacheSize = size;
+    }
+
+    public static long getStatementCacheHits() {
+        return statementCacheHits.get();
+    }
+
+    public static long getStatementCacheMisses() {
+        return statementCacheMisses.get();
+    }
+
+    /**
+     * @return the number of physical connections with a statement cache and
+     *         the number of cached statements
+     */
+    public static String getStatementCacheStatistics() {
+        int connections;
+        int statements = 0;
+        synchronized (statementCaches) {
+            connections = statementCaches.size();
+            for (StatementCache cache : statementCaches.values()) {
+                statements += cache.size();
+            }
+        }
+        long hits = statementCacheHits.get();
+        long misses = statementCacheMisses.get();
+        return "Statement cache: " + statements + " statements on " + connections + " connections, " + hits + " hits, "
+                + misses + " misses (hit rate " + (hits + misses == 0 ? 0 : hits * 100 / (hits + misses)) + "%).";
+    }
+
+    /**
+     * Get the statement cache of the physical connection of the current
+     * connection. Caches of closed connections are dropped on the way.
+     */
+    private StatementCache getStatementCache() throws SQLException {
+        if (statementCacheSize <= 0) {
+            return null;
+        }
+        Connection physicalConnection = getPhysicalConnection(connection);
+        synchronized (statementCaches) {
+            StatementCache cache = statementCaches.get(physicalConnection);
+            if (cache == null) {
+                Iterator<StatementCache> it = statementCaches.values().iterator();
+                while (it.hasNext()) {
+                    StatementCache closedCache = it.next();
+                    if (closedCache.isConnectionClosed()) {
+                        it.remove();
+                        closedCache.clear();
+                    }
+                }
+                cache = new StatementCache(physicalConnection);
+                statementCaches.put(physicalConnection, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * A connection wrapper (e.g. of a connection lease) passes unwrap() to
+     * the wrapped connection. A connection of the pool is a new wrapper on
+     * every borrow, so its innermost delegate is used (needs access to the
+     * underlying connection, see {@link DatabaseConnectionUtils}).
+     */
+    private static Connection getPhysicalConnection(Connection connection) {
+        Connection physicalConnection;
+        try {
+            physicalConnection = connection.unwrap(Connection.class);
+        } catch (SQLException e) {
+            physicalConnection = connection;
+        }
+        if (physicalConnection instanceof DelegatingConnection) {
+            Connection innermost = ((DelegatingConnection<?>) physicalConnection).getInnermostDelegate();
+            if (innermost != null) {
+                physicalConnection = innermost;
+            }
+        }
+        return physicalConnection;
+    }
+
+    /**
+     * LRU cache of the prepared statements of one physical connection. The
+     * statements are prepared with the physical connection, because the pool
+     * closes the statements of a borrowed connection when it is returned.
+     */
+    private static class StatementCache {
+
+        private final Connection physicalConnection;
+
+        private final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > statementCacheSize) {
+                    close(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
 
-        return toList(rs, wantedColumnNames);
+        StatementCache(Connection physicalConnection) {
+            this.physicalConnection = physicalConnection;
+        }
+
+        synchronized PreparedStatement checkOut(String sqlStr) throws SQLException {
+            PreparedStatement ps = statements.remove(sqlStr);
+            if (ps != null && !ps.isClosed()) {
+                statementCacheHits.incrementAndGet();
+                return ps;
+            }
+            statementCacheMisses.incrementAndGet();
+            return physicalConnection.prepareStatement(sqlStr);
+        }
+
+        synchronized void checkIn(String sqlStr, PreparedStatement ps) {
+            PreparedStatement previous = statements.put(sqlStr, ps);
+            if (previous != null && previous != ps) {
+                // a nested query with the same SQL was released before
+                close(previous);
+            }
+        }
+
+        synchronized int size() {
+            return statements.size();
+        }
+
+        synchronized void clear() {
+            for (PreparedStatement ps : statements.values()) {
+                close(ps);
+            }
+            statements.clear();
+        }
+
+        boolean isConnectionClosed() {
+            try {
+                return physicalConnection.isClosed();
+            } catch (SQLException e) {
+                return true;
+            }
+        }
+
+        static void close(PreparedStatement ps) {
+            if (ps != null) {
+                try {
+                    ps.close();
+                } catch (SQLException e) {
+                    log.debug("Error closing cached statement.", e);
+                }
+            }
+        }
     }
 
     /**
-     * Helper method that maps a ResultSet into a list of maps, one per row.
+     * Helper method that converts a ResultSet into a list of maps, one per row.
      * NOTICE: Calls trim() to remove whitespaces from values
      * 
      * @param rs
      *            ResultSet
-     * @param wantedColumnNames
-     *            of columns names to include in the result map
-     * @return list of maps, one per column row, with column names as keys and
-     *         column values as String (can be null)
+     * @return list of maps ({@link ResultRow}), one per column row, with
+     *         column names as keys and column values as String (can be null)
      * @throws SQLException
      *             if the connection fails
      */
-    private List<Map<String, String>> toList(ResultSet rs, List<String> wantedColumnNames) throws SQLException {
+    private List<Map<String, String>> toList(ResultSet rs) throws SQLException {
+        ResultRow.Header header = new ResultRow.Header(rs.getMetaData());
         List<Map<String, String>> rows = new ArrayList<>();
 
         while (rs.next()) {
-            Map<String, String> row = new LinkedHashMap<>();
-
-            for (String columnName : wantedColumnNames) {
-                String value = rs.getString(columnName);
-                if (value != null) {
-                    value = value.trim();
-                }
-                row.put(columnName.toLowerCase(), value);
-            }
-
-            rows.add(row);
+            rows.add(ResultRow.read(rs, header));
         }
 
         return rows;
     }
 
     /**
-     * Return all column names as a list of strings
-     * 
-     * @param rs
-     *            query result set
-     * @return list of column name strings
-     * @throws SQLException
-     *             if the query fails
+     * Gets the rows of {@link SQLUtils#each(String, Object[], RowCallback)}
+     * one by one. A JavaScript function can be passed as callback.
      */
-    private List<String> getColumnNames(ResultSet rs) throws SQLException {
-        List<String> columnNames = new ArrayList<>();
+    @FunctionalInterface
+    public interface RowCallback {
+
+        /**
+         * @param row
+         *            the row with column names IN LOWER CASE (!!!) as keys
+         * @return false to stop the iteration, everything else (e.g. nothing)
+         *         continues
+         * @throws Exception
+         */
+        Object row(Map<String, String> row) throws Exception;
+    }
+
+    /**
+     * Iterator over the rows of a query, see
+     * {@link SQLUtils#iterate(String, Object[])}.
+     */
+    public class RowIterator implements Iterator<Map<String, String>>, AutoCloseable {
+
+        private final StatementCache statementCache;
+
+        private final String sqlStr;
+
+        private final PreparedStatement ps;
+
+        private final ResultSet rs;
+
+        private final ResultRow.Header header;
+
+        private Map<String, String> nextRow = null;
+
+        private boolean failed = false;
 
-        ResultSetMetaData meta = rs.getMetaData();
-        int numColumns = meta.getColumnCount();
-        for (int i = 1; i <= numColumns; ++i) {
-            columnNames.add(meta.getColumnName(i));
+        private boolean closed = false;
+
+        RowIterator(StatementCache statementCache, String sqlStr, PreparedStatement ps, ResultSet rs) throws SQLException {
+            this.statementCache = statementCache;
+            this.sqlStr = sqlStr;
+            this.ps = ps;
+            this.rs = rs;
+            this.header = new ResultRow.Header(rs.getMetaData());
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (nextRow == null && !closed) {
+                try {
+                    if (rs.next()) {
+                        nextRow = ResultRow.read(rs, header);
+                    } else {
+                        close();
+                    }
+                } catch (SQLException e) {
+                    failed = true;
+                    close();
+                    throw new IllegalStateException("Error reading record from SQL: " + sqlStr, e);
+                }
+            }
+            return nextRow != null;
         }
 
-        return columnNames;
+        @Override
+        public Map<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map<String, String> row = nextRow;
+            nextRow = null;
+            return row;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            nextRow = null;
+            try {
+                rs.close();
+            } catch (SQLException e) {
+                failed = true;
+            }
+            release(statementCache, sqlStr, ps, failed);
+        }
     }
 
 }
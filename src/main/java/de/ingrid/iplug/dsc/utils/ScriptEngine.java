@@ -23,9 +23,24 @@
 package de.ingrid.iplug.dsc.utils;
 
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.script.Bindings;
 import javax.script.Compilable;
@@ -33,17 +48,47 @@ import javax.script.CompiledScript;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 
+import org.apache.log4j.Logger;
 import org.springframework.core.io.Resource;
+import org.springframework.util.StreamUtils;
 
 /**
  * This class allows to execute scripts
+ * <p/>
+ * Every thread executes the scripts in its own script engines, so scripts of
+ * different threads run in isolated contexts and need no synchronization.
+ * All engines are created by the same {@link ScriptEngineManager}, the
+ * engines of one extension therefore share the underlying (polyglot) engine
+ * of their factory and with it the parsed and optimized code.
+ * <p/>
+ * The content of a script is read once and identified by the URI of the
+ * script resource and the checksum of its content. If a reload interval is
+ * set (see {@link #setReloadInterval(long)}), a background thread checks the
+ * scripts for changes. A changed script is compiled in the background and
+ * only replaces the current version if it compiles, running executions
+ * finish with the version they started with.
+ * <p/>
+ * Library scripts (see {@link #execute(Resource[], Resource[], Map, boolean)})
+ * are evaluated once per thread into a persistent context. Only the globals
+ * they define stay bound, the parameters and the globals defined by the
+ * scripts executed in the context are removed after every execution.
  * @author ingo@wemove.com
  */
 public class ScriptEngine {
 
+	private static final Logger log = Logger.getLogger(ScriptEngine.class);
+
 	protected static ScriptEngineManager scriptEngineManager = new ScriptEngineManager();
-	protected static Map<String, javax.script.ScriptEngine> engines = new Hashtable<>();
-	protected static Map<String, CompiledScript> compiledScripts = new Hashtable<>();
+	protected static ThreadLocal<Map<String, javax.script.ScriptEngine>> engines = ThreadLocal.withInitial(HashMap::new);
+	/** Compiled scripts of the current thread by script URI, the version is identified by the key of the script source */
+	protected static ThreadLocal<Map<String, CompiledScriptVersion>> compiledScripts = ThreadLocal.withInitial(HashMap::new);
+	/** Persistent contexts of the current thread with evaluated library scripts by library URIs */
+	protected static ThreadLocal<Map<String, LibraryContext>> libraryContexts = ThreadLocal.withInitial(HashMap::new);
+	/** Current script sources by script URI */
+	protected static Map<String, ScriptSource> scriptSources = new ConcurrentHashMap<>();
+
+	private static ScheduledExecutorService reloadExecutor = null;
+	private static ScheduledFuture<?> reloadTask = null;
 
 	/**
 	 * Execute the given scripts with the given parameters
@@ -72,12 +117,13 @@ public class ScriptEngine {
 			Bindings curBindings = bindings.get(engine.hashCode());
 
 			// execute the script
+			ScriptSource source = getScriptSource(script);
 			CompiledScript compiledScript = null;
 			Object result = null;
-			if (compile && (compiledScript = getCompiledScript(script)) != null) {
+			if (compile && (compiledScript = getCompiledScript(engine, source)) != null) {
 				result = compiledScript.eval(curBindings);
 			} else {
-				result = engine.eval(new InputStreamReader(script.getInputStream()), curBindings);
+				result = engine.eval(new StringReader(source.content), curBindings);
 			}
 			if (result != null) {
 				results.put(script.getFilename(), result);
@@ -87,38 +133,331 @@ public class ScriptEngine {
 	}
 
 	/**
-	 * Get the compiled version of the given script
+	 * Execute the given scripts with the given parameters in a context in
+	 * which the given library scripts are already evaluated. The libraries are
+	 * evaluated once per thread and again only if one of them changes (see
+	 * {@link #setReloadInterval(long)}). Libraries are used by scripts with the
+	 * same extension only.
+	 * <p/>
+	 * Every execution starts with the globals of the libraries only. Globals
+	 * defined by the scripts are removed afterwards, those that cannot be
+	 * removed (e.g. declared with var) are set to null.
+	 * @param libraries The library script files, may be null
+	 * @param scripts The script files
+	 * @param parameters The parameters
+	 * @param compile Boolean indicating whether to compile the scripts or not
+	 * @return Map with the absolute paths of the scripts as keys and the execution results as values
+	 * If an execution returns null, the result will not be added
+	 * @throws Exception
+	 */
+	public static Map<String, Object> execute(Resource[] libraries, Resource[] scripts, Map<String, Object> parameters, boolean compile) throws Exception {
+		if (libraries == null || libraries.length == 0) {
+			return execute(scripts, parameters, compile);
+		}
+
+		Map<String, LibraryContext> contexts = new HashMap<>();
+		Map<String, Object> results = new Hashtable<>();
+
+		try {
+			for (Resource script : scripts) {
+				// get the engine for the script
+				javax.script.ScriptEngine engine = getEngine(script);
+
+				// get the library context and bind the parameters
+				String extension = getExtension(script);
+				LibraryContext context = contexts.get(extension);
+				if (context == null) {
+					context = getLibraryContext(engine, extension, libraries, compile);
+					context.bindings.putAll(parameters);
+					contexts.put(extension, context);
+				}
+				Bindings curBindings = context.bindings;
+
+				// execute the script
+				ScriptSource source = getScriptSource(script);
+				CompiledScript compiledScript = null;
+				Object result = null;
+				if (compile && (compiledScript = getCompiledScript(engine, source)) != null) {
+					result = compiledScript.eval(curBindings);
+				} else {
+					result = engine.eval(new StringReader(source.content), curBindings);
+				}
+				if (result != null) {
+					results.put(script.getFilename(), result);
+				}
+			}
+		} finally {
+			// do not leak the record into the next execution
+			for (LibraryContext context : contexts.values()) {
+				context.restore();
+			}
+		}
+		return results;
+	}
+
+	private static LibraryContext getLibraryContext(javax.script.ScriptEngine engine, String extension, Resource[] libraries, boolean compile) throws Exception {
+		StringBuilder contextKey = new StringBuilder(extension);
+		StringBuilder versionKey = new StringBuilder();
+		Map<Resource, ScriptSource> sources = new LinkedHashMap<>();
+		for (Resource library : libraries) {
+			if (extension.equals(getExtension(library))) {
+				ScriptSource source = getScriptSource(library);
+				sources.put(library, source);
+				contextKey.append('|').append(source.uri);
+				versionKey.append('|').append(source.key);
+			}
+		}
+
+		Map<String, LibraryContext> threadContexts = libraryContexts.get();
+		LibraryContext context = threadContexts.get(contextKey.toString());
+		if (context == null || !context.versionKey.equals(versionKey.toString())) {
+			Bindings libraryBindings = engine.createBindings();
+			for (Entry<Resource, ScriptSource> entry : sources.entrySet()) {
+				CompiledScript compiledScript = null;
+				if (compile && (compiledScript = getCompiledScript(engine, entry.getValue())) != null) {
+					compiledScript.eval(libraryBindings);
+				} else {
+					engine.eval(new StringReader(entry.getValue().content), libraryBindings);
+				}
+			}
+			context = new LibraryContext(versionKey.toString(), libraryBindings, new HashSet<>(libraryBindings.keySet()));
+			threadContexts.put(contextKey.toString(), context);
+			if (log.isDebugEnabled()) {
+				log.debug("Evaluated library scripts " + contextKey + " for thread " + Thread.currentThread().getName() + ".");
+			}
+		}
+		return context;
+	}
+
+	/**
+	 * Get the compiled version of the given script for the current thread
 	 * @param script The script file
 	 * @return CompiledScript
 	 * @throws ScriptException
 	 * @throws IOException 
 	 */
 	protected static CompiledScript getCompiledScript(Resource script) throws ScriptException, IOException {
-		String filename = script.getFilename();
-		if (!compiledScripts.containsKey(filename)) {
-			javax.script.ScriptEngine engine = getEngine(script);
-			if (engine instanceof Compilable) {
-				Compilable compilable = (Compilable)engine;
-				CompiledScript compiledScript = compilable.compile(new InputStreamReader(script.getInputStream()));
-				compiledScripts.put(filename, compiledScript);
-			}
+		return getCompiledScript(getEngine(script), getScriptSource(script));
+	}
+
+	private static CompiledScript getCompiledScript(javax.script.ScriptEngine engine, ScriptSource source) throws ScriptException {
+		if (!(engine instanceof Compilable)) {
+			return null;
+		}
+		Map<String, CompiledScriptVersion> threadCompiledScripts = compiledScripts.get();
+		CompiledScriptVersion compiledScript = threadCompiledScripts.get(source.uri);
+		if (compiledScript == null || !compiledScript.key.equals(source.key)) {
+			// replaces a previous version of the script
+			compiledScript = new CompiledScriptVersion(source.key, ((Compilable) engine).compile(source.content));
+			threadCompiledScripts.put(source.uri, compiledScript);
 		}
-		return compiledScripts.get(filename);
+		return compiledScript.compiledScript;
 	}
 
 	/**
-	 * Get the scripting engine for the given script file
+	 * Get the scripting engine of the current thread for the given script file
 	 * @param script The script file
 	 * @return javax.script.ScriptEngine
 	 */
 	protected static javax.script.ScriptEngine getEngine(Resource script) {
-        String scriptName = script.getFilename();
-        String extension = scriptName.substring(scriptName.lastIndexOf('.') + 1, scriptName.length());
-		if (!engines.containsKey(extension)) {
-			javax.script.ScriptEngine engine = scriptEngineManager.getEngineByExtension(extension);
-			engine.createBindings().put("polyglot.js.allowAllAccess", true);
-			engines.put(extension, engine);
-		}
-		return engines.get(extension);
+		Map<String, javax.script.ScriptEngine> threadEngines = engines.get();
+		String extension = getExtension(script);
+		if (!threadEngines.containsKey(extension)) {
+			threadEngines.put(extension, createEngine(extension));
+		}
+		return threadEngines.get(extension);
+	}
+
+	private static javax.script.ScriptEngine createEngine(String extension) {
+		javax.script.ScriptEngine engine;
+		synchronized (scriptEngineManager) {
+			engine = scriptEngineManager.getEngineByExtension(extension);
+		}
+		engine.createBindings().put("polyglot.js.allowAllAccess", true);
+		return engine;
+	}
+
+	private static String getExtension(Resource script) {
+		String scriptName = script.getFilename();
+		return scriptName.substring(scriptName.lastIndexOf('.') + 1, scriptName.length());
+	}
+
+	/**
+	 * Get the current source of the given script, the script is read on first
+	 * access.
+	 * @param script The script file
+	 * @return ScriptSource
+	 * @throws IOException
+	 */
+	protected static ScriptSource getScriptSource(Resource script) throws IOException {
+		String uri = getUri(script);
+		ScriptSource source = scriptSources.get(uri);
+		if (source == null) {
+			source = ScriptSource.read(script, uri);
+			ScriptSource concurrentSource = scriptSources.putIfAbsent(uri, source);
+			if (concurrentSource != null) {
+				source = concurrentSource;
+			}
+		}
+		return source;
+	}
+
+	private static String getUri(Resource script) {
+		try {
+			return script.getURI().toString();
+		} catch (IOException e) {
+			return script.getDescription();
+		}
+	}
+
+	/**
+	 * Set the interval in which the scripts are checked for changes. Changed
+	 * scripts are compiled and replaced in the background.
+	 * @param reloadInterval interval in milliseconds, a value &lt;= 0 disables
+	 *        reloading
+	 */
+	public static synchronized void setReloadInterval(long reloadInterval) {
+		if (reloadTask != null) {
+			reloadTask.cancel(false);
+			reloadTask = null;
+		}
+		if (reloadInterval > 0) {
+			if (reloadExecutor == null) {
+				reloadExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+					Thread t = new Thread(r, "ScriptEngine-reload");
+					t.setDaemon(true);
+					return t;
+				});
+			}
+			reloadTask = reloadExecutor.scheduleWithFixedDelay(ScriptEngine::reloadChangedScripts, reloadInterval, reloadInterval,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Check all scripts read so far for changes and replace the changed ones
+	 * that compile.
+	 */
+	protected static void reloadChangedScripts() {
+		Map<String, javax.script.ScriptEngine> checkEngines = new HashMap<>();
+		for (ScriptSource source : scriptSources.values()) {
+			try {
+				if (!source.isModified()) {
+					continue;
+				}
+				ScriptSource changedSource = ScriptSource.read(source.resource, source.uri);
+				if (changedSource.key.equals(source.key)) {
+					// only touched, remember the modification date
+					scriptSources.replace(source.uri, source, changedSource);
+					continue;
+				}
+				javax.script.ScriptEngine engine = checkEngines.computeIfAbsent(getExtension(source.resource), ScriptEngine::createEngine);
+				if (engine instanceof Compilable) {
+					((Compilable) engine).compile(changedSource.content);
+				}
+				if (scriptSources.replace(source.uri, source, changedSource)) {
+					log.info("Reloaded changed script " + source.uri + ".");
+				}
+			} catch (ScriptException e) {
+				log.error("Changed script " + source.uri + " does not compile, keep using the previous version.", e);
+			} catch (Exception e) {
+				log.error("Error checking script " + source.uri + " for changes.", e);
+			}
+		}
+	}
+
+	/**
+	 * The content of a script, identified by the URI of the script and the
+	 * checksum of the content.
+	 */
+	protected static final class ScriptSource {
+		final Resource resource;
+		final String uri;
+		final String content;
+		final String key;
+		final long lastModified;
+
+		private ScriptSource(Resource resource, String uri, String content, String checksum, long lastModified) {
+			this.resource = resource;
+			this.uri = uri;
+			this.content = content;
+			this.key = uri + "#" + checksum;
+			this.lastModified = lastModified;
+		}
+
+		static ScriptSource read(Resource resource, String uri) throws IOException {
+			long lastModified = lastModified(resource);
+			byte[] bytes;
+			try (InputStream in = resource.getInputStream()) {
+				bytes = StreamUtils.copyToByteArray(in);
+			}
+			return new ScriptSource(resource, uri, new String(bytes, StandardCharsets.UTF_8), checksum(bytes), lastModified);
+		}
+
+		/**
+		 * Resources without modification date (e.g. in archives) are compared
+		 * by content.
+		 */
+		boolean isModified() {
+			return lastModified < 0 || lastModified(resource) != lastModified;
+		}
+
+		private static long lastModified(Resource resource) {
+			try {
+				return resource.lastModified();
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+
+		private static String checksum(byte[] bytes) {
+			try {
+				StringBuilder checksum = new StringBuilder();
+				for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+					checksum.append(String.format("%02x", b));
+				}
+				return checksum.toString();
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	private static final class LibraryContext {
+		final String versionKey;
+		final Bindings bindings;
+		/** globals defined after the evaluation of the libraries */
+		final Set<String> libraryNames;
+
+		LibraryContext(String versionKey, Bindings bindings, Set<String> libraryNames) {
+			this.versionKey = versionKey;
+			this.bindings = bindings;
+			this.libraryNames = libraryNames;
+		}
+
+		/**
+		 * Removes all globals not defined by the libraries.
+		 */
+		void restore() {
+			for (String name : new ArrayList<>(bindings.keySet())) {
+				if (!libraryNames.contains(name)) {
+					bindings.remove(name);
+					if (bindings.containsKey(name)) {
+						// e.g. variables declared with var cannot be deleted
+						bindings.put(name, null);
+					}
+				}
+			}
+		}
+	}
+
+	private static final class CompiledScriptVersion {
+		final String key;
+		final CompiledScript compiledScript;
+
+		CompiledScriptVersion(String key, CompiledScript compiledScript) {
+			this.key = key;
+			this.compiledScript = compiledScript;
+		}
 	}
 }
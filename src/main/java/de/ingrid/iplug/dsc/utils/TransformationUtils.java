@@ -30,6 +30,7 @@ import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -38,6 +39,7 @@ import org.apache.log4j.Logger;
 
 import de.ingrid.geo.utils.transformation.CoordTransformUtil;
 import de.ingrid.geo.utils.transformation.CoordTransformUtil.CoordType;
+import de.ingrid.iplug.dsc.utils.CodelistCache.Codelists;
 import de.ingrid.utils.udk.UtilsCSWDate;
 import de.ingrid.utils.udk.UtilsCountryCodelist;
 import de.ingrid.utils.udk.UtilsLanguageCodelist;
@@ -46,6 +48,7 @@ import de.ingrid.utils.udk.UtilsUDKCodeLists;
 
 /**
  * Helper class encapsulating functionality for transforming or processing values (e.g. used in mapping script). Must be instantiated to be thread safe.
+ * Syslist lookups are answered from the {@link CodelistCache} if available.
  *  
  * @author Martin
  */
@@ -62,43 +65,25 @@ public class TransformationUtils {
 
 	public static String LANG_ID_INGRID_QUERY_VALUE = UtilsUDKCodeLists.LANG_ID_INGRID_QUERY_VALUE;
 
+	/** Maximum number of transformed points remembered per instance */
+	private static final int TRANSFORMED_POINTS_MEMO_SIZE = 1024;
+
+	/** Memo of the last transformed points (LRU), an instance is used by one thread only */
+	private final Map<TransformedPointKey, double[]> transformedPoints = new LinkedHashMap<TransformedPointKey, double[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<TransformedPointKey, double[]> eldest) {
+			return size() > TRANSFORMED_POINTS_MEMO_SIZE;
+		}
+	};
+
+	/** Parameterized, so the statement is prepared once per connection (see {@link SQLUtils}) */
+	private static final String SQL_SYSLIST_ENTRY_NAME = "SELECT name FROM sys_list WHERE lst_id=? AND lang_id=? AND entry_id=?";
+
 	public TransformationUtils(SQLUtils sqlUtils) {
 	    this.SQL = sqlUtils;
-	    //initCodelists();
 	}
-	
-	/**
-	 * Transform the codelists from the database into a hierarchical hashmap to
-	 * access each codelist entry easily.
-	 * 
-	 * Now there are separate SQL-queries for each syslist transformation!
-	 */
-//	private void initCodelists() {
-//	    this.codelists = new HashMap();
-//	    try {
-//            List<Map<String,String>> allSyslists = SQL.all("SELECT * FROM sys_list");
-//            for (Map<String, String> syslist : allSyslists) {
-//                // check if list already was added
-//                Map<String, Map<String, String>> cl = (Map<String, Map<String, String>>) codelists.get(syslist.get("lst_id"));
-//                if (cl == null) {
-//                    cl = new HashMap<String, Map<String, String>>();
-//                    codelists.put(syslist.get("lst_id"), cl);
-//                }
-//                
-//                Map<String, String> clEntry = (Map<String, String>) cl.get(syslist.get("entry_id"));
-//                if (clEntry == null) {
-//                    clEntry = new HashMap<String, String>();
-//                    cl.put(syslist.get("entry_id"), clEntry);
-//                }
-//                
-//                clEntry.put(syslist.get("lang_id"), syslist.get("name"));
-//                
-//            }
-//        } catch (SQLException e) {
-//            // TODO Auto-generated catch block
-//            e.printStackTrace();
-//        }
-//	}
 
 	/** Get the name of the given entry in the given syslist IN THE LANGUAGE OF THE CATALOG.
 	 * @param listId id of syslist
@@ -124,6 +109,11 @@ public class TransformationUtils {
 	 */
 	public String getIGCSyslistEntryName(int listId, int entryId, String langShortcut)
 	throws SQLException {
+		Codelists codelists = CodelistCache.getInstance().getCodelists(SQL);
+		if (codelists != null) {
+			return codelists.getName(listId, entryId, langShortcut);
+		}
+
 		String retValue = null;
 
 		List<Map<String, String>> rows =
@@ -142,6 +132,11 @@ public class TransformationUtils {
 	 * @throws SQLException
 	 */
 	private Integer getIGCCatalogLanguageKey() throws SQLException {
+		Codelists codelists = CodelistCache.getInstance().getCodelists(SQL);
+		if (codelists != null && codelists.getCatalogLanguageKey() != null) {
+			return codelists.getCatalogLanguageKey();
+		}
+
 		Integer languageKey = null;
 
 		List<Map<String, String>> rows = SQL.all("SELECT language_key FROM t03_catalogue");
@@ -230,16 +225,51 @@ public class TransformationUtils {
 	public String[] transformPointToWGS84(String x, String y, CoordType givenCoordType) {
         String[] coord = {x, y};
         try {
-            double[] coordDouble =
-            	CoordTransformUtil.getInstance().transformToWGS84(new Double(x), new Double(y), givenCoordType);
-            coord[0] = new Double(coordDouble[0]).toString();
-            coord[1] = new Double(coordDouble[1]).toString();
+            double[] coordDouble = transformPointToWGS84(Double.parseDouble(x), Double.parseDouble(y), givenCoordType);
+            coord[0] = Double.toString(coordDouble[0]);
+            coord[1] = Double.toString(coordDouble[1]);
         } catch (final Exception e) {
         	log.warn("Could not transform Coord to WGS84, we do NOT transform ! -> x: " + x + ", y: " + y + ", type: " + givenCoordType);
         }
         return coord;
     }
 
+	/** Transform many points into WGS84 at once, e.g. all points of a record.
+	 * Points which cannot be transformed are unchanged (logged).
+	 * @param coords coordinates in givenCoordType, x and y of the points alternating (x1, y1, x2, y2 ...)
+	 * @param givenCoordType coordination system of coordinates, e.g. Gauss Krueger ...), use Enumeration !
+	 * @return new array with the transformed coordinates in the same order
+	 */
+	public double[] transformPointsToWGS84(double[] coords, CoordType givenCoordType) {
+		if (coords.length % 2 != 0) {
+			throw new IllegalArgumentException("Odd number of coordinates: " + coords.length);
+		}
+		double[] result = new double[coords.length];
+		for (int i = 0; i < coords.length; i += 2) {
+			try {
+				double[] coordDouble = transformPointToWGS84(coords[i], coords[i + 1], givenCoordType);
+				result[i] = coordDouble[0];
+				result[i + 1] = coordDouble[1];
+			} catch (final Exception e) {
+				log.warn("Could not transform Coord to WGS84, we do NOT transform ! -> x: " + coords[i] + ", y: " + coords[i + 1] + ", type: " + givenCoordType);
+				result[i] = coords[i];
+				result[i + 1] = coords[i + 1];
+			}
+		}
+		return result;
+	}
+
+	/** Transform a point, repeated points (e.g. shared by several geometries of a record) are taken from the memo. */
+	private double[] transformPointToWGS84(double x, double y, CoordType givenCoordType) throws Exception {
+		TransformedPointKey key = new TransformedPointKey(x, y, givenCoordType);
+		double[] coord = transformedPoints.get(key);
+		if (coord == null) {
+			coord = CoordTransformUtil.getInstance().transformToWGS84(x, y, givenCoordType);
+			transformedPoints.put(key, coord);
+		}
+		return coord;
+	}
+
 	/**
 	 * Get ISO 639-2 language shortcut (e.g. "ger, "eng" ...") from IGC language code. 
 	 * @param igcLangCode IGC code of language. e.g. "150"
@@ -275,14 +305,33 @@ public class TransformationUtils {
 			return null;
 		}
 
+		Integer entryId = parseSyslistEntryId(igcEntryId);
+		if (entryId == null) {
+			return null;
+		}
+
+		Codelists codelists = CodelistCache.getInstance().getCodelists(SQL);
+		if (codelists != null && igcCodeListId != null) {
+			String retValue = codelists.getName(igcCodeListId.intValue(), entryId, String.valueOf(UtilsUDKCodeLists.LANG_ID_ISO_ENTRY));
+			if (retValue == null) {
+				// fallback to english entry
+				retValue = codelists.getName(igcCodeListId.intValue(), entryId, "en");
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("Transform IGC syslist entry -> listId '" + igcCodeListId +
+						"', entryId '" + igcEntryId + "' to ISO CodeList entry '" + retValue + "'.");
+			}
+			return retValue;
+		}
+
 		String retValue = null;
 		try {
-			retValue = SQL.first("SELECT name FROM sys_list WHERE lst_id="+igcCodeListId+" AND lang_id='"+UtilsUDKCodeLists.LANG_ID_ISO_ENTRY+"' AND entry_id="+igcEntryId).get("name");
+			retValue = SQL.first(SQL_SYSLIST_ENTRY_NAME, new Object[] { igcCodeListId, String.valueOf(UtilsUDKCodeLists.LANG_ID_ISO_ENTRY), entryId }).get("name");
 		} catch (Exception ex) {
 		    // fallback and search for english entry
             if (retValue == null) {
                 try {
-                    retValue = SQL.first("SELECT name FROM sys_list WHERE lst_id="+igcCodeListId+" AND lang_id='en' AND entry_id="+igcEntryId).get("name");
+                    retValue = SQL.first(SQL_SYSLIST_ENTRY_NAME, new Object[] { igcCodeListId, "en", entryId }).get("name");
                 } catch (SQLException e) {
                     log.debug("Cannot transform IGC syslist entry -> listId '" + igcCodeListId +
                             "', entryId '" + igcEntryId + "' to ISO CodeList entry.");
@@ -300,6 +349,19 @@ public class TransformationUtils {
 		return retValue;
 	}
 
+	/**
+	 * The syslist entry ids are passed as strings from the mapping scripts.
+	 * @return the numeric entry id or null if the id is no number
+	 */
+	private Integer parseSyslistEntryId(String igcEntryId) {
+		try {
+			return Integer.valueOf(igcEntryId.trim());
+		} catch (NumberFormatException e) {
+			log.debug("Invalid IGC syslist entry id '" + igcEntryId + "'.");
+			return null;
+		}
+	}
+
 	/**
 	 * Returns a codeList entry based on an IGC code list domain id and a specific "language" code.
 	 * NOTICE: "language" code can also be just a code for fetching a ingrid specific representation
@@ -310,10 +372,19 @@ public class TransformationUtils {
 		if (igcEntryId == null) {
 			return null;
 		}
+		Integer entryId = parseSyslistEntryId(igcEntryId);
+		if (entryId == null || langIdInCodelist == null) {
+			return null;
+		}
+
+		Codelists codelists = CodelistCache.getInstance().getCodelists(SQL);
+		if (codelists != null && igcCodeListId != null) {
+			return codelists.getName(igcCodeListId.intValue(), entryId, langIdInCodelist);
+		}
 
 		String retValue = null;
 		try {
-			retValue = SQL.first("SELECT name FROM sys_list WHERE lst_id="+igcCodeListId+" AND lang_id='"+langIdInCodelist+"' AND entry_id="+igcEntryId).get("name");
+			retValue = SQL.first(SQL_SYSLIST_ENTRY_NAME, new Object[] { igcCodeListId, langIdInCodelist, entryId }).get("name");
 		} catch (Exception ex) {
             log.debug("Cannot transform IGC syslist entry -> listId '" + igcCodeListId +
             	"', entryId '" + igcEntryId + "', langId '" + langIdInCodelist + "' to entry of CodeList.");
@@ -336,9 +407,15 @@ public class TransformationUtils {
 			return null;
 		}
 
+		Codelists codelists = CodelistCache.getInstance().getCodelists(SQL);
+		if (codelists != null && codeListId != null) {
+			Integer entryId = codelists.getEntryId(codeListId.intValue(), entryValue);
+			return entryId == null ? null : entryId.toString();
+		}
+
 		String retValue = null;
 		try {
-			retValue = SQL.first("SELECT entry_id FROM sys_list WHERE lst_id="+codeListId+" AND name=?", new Object[] { entryValue }).get("entry_id");
+			retValue = SQL.first("SELECT entry_id FROM sys_list WHERE lst_id=? AND name=?", new Object[] { codeListId, entryValue }).get("entry_id");
 		} catch (Exception ex) {
             log.debug("Problems checking entryValue '" + entryValue + "' on ISO Code List '" + codeListId + "'.");
 		}
@@ -355,9 +432,14 @@ public class TransformationUtils {
 			return null;
 		}
 
+		Codelists codelists = CodelistCache.getInstance().getCodelists(SQL);
+		if (codelists != null && codeListId != null) {
+			return codelists.getData(codeListId.intValue(), entryValue);
+		}
+
 		String retValue = null;
 		try {
-			retValue = SQL.first("SELECT data FROM sys_list WHERE lst_id="+codeListId+" AND name=?", new Object[] { entryValue }).get("data");
+			retValue = SQL.first("SELECT data FROM sys_list WHERE lst_id=? AND name=?", new Object[] { codeListId, entryValue }).get("data");
 		} catch (Exception ex) {
             log.debug("Problems checking entryValue '" + entryValue + "' on ISO Code List '" + codeListId + "'.");
 		}
@@ -373,9 +455,15 @@ public class TransformationUtils {
 			return null;
 		}
 
+		Codelists codelists = CodelistCache.getInstance().getCodelists(SQL);
+		if (codelists != null && codeListId != null) {
+			Integer entryId = codelists.getEntryIdByDataFilter(codeListId.intValue(), dataFilter);
+			return entryId == null ? null : entryId.toString();
+		}
+
 		String retValue = null;
 		try {
-			retValue = SQL.first("SELECT entry_id FROM sys_list WHERE lst_id=" + codeListId + " AND data LIKE '%" + dataFilter + "%'").get("entry_id");
+			retValue = SQL.first("SELECT entry_id FROM sys_list WHERE lst_id=? AND data LIKE ? ORDER BY entry_id", new Object[] { codeListId, "%" + dataFilter + "%" }).get("entry_id");
 		} catch (Exception ex) {
 			log.debug("Problems checking data for '" + dataFilter + "' on ISO Code List '" + codeListId + "'.");
 		}
@@ -506,4 +594,30 @@ public class TransformationUtils {
 	public UUID getRandomUUID() {
 		return UUID.randomUUID();
     }
+
+	private static final class TransformedPointKey {
+		private final double x;
+		private final double y;
+		private final CoordType coordType;
+
+		TransformedPointKey(double x, double y, CoordType coordType) {
+			this.x = x;
+			this.y = y;
+			this.coordType = coordType;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof TransformedPointKey)) {
+				return false;
+			}
+			TransformedPointKey other = (TransformedPointKey) o;
+			return Double.compare(x, other.x) == 0 && Double.compare(y, other.y) == 0 && coordType == other.coordType;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * Double.hashCode(x) + Double.hashCode(y)) + (coordType == null ? 0 : coordType.hashCode());
+		}
+	}
 }
@@ -26,6 +26,8 @@ import de.ingrid.admin.Config;
 import de.ingrid.iplug.dsc.index.mapper.IRecordMapper;
 import de.ingrid.iplug.dsc.index.mapper.ScriptedDocumentMapper;
 import de.ingrid.iplug.dsc.index.producer.PlugDescriptionConfiguredDatabaseRecordSetProducer;
+import de.ingrid.iplug.dsc.om.DatabaseSourceRecord;
+import de.ingrid.iplug.dsc.om.SourceRecord;
 import de.ingrid.iplug.dsc.utils.IgcDbUnitEnabledTestCase;
 import de.ingrid.utils.ElasticDocument;
 import de.ingrid.utils.PlugDescription;
@@ -35,6 +37,10 @@ import org.mockito.MockitoAnnotations;
 import org.springframework.core.io.ClassPathResource;
 
 import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.*;
 
 public class ScriptedDatabaseDocumentProducerTest extends IgcDbUnitEnabledTestCase {
@@ -88,6 +94,368 @@ public class ScriptedDatabaseDocumentProducerTest extends IgcDbUnitEnabledTestCa
         }
     }
 
+    public void testScriptedDatabaseDocumentProducerParallel() throws Exception {
+        this.setDatasourceFileName("src/test/resources/dataset.xml");
+
+        File plugDescriptionFile = new File(
+                "src/test/resources/plugdescription_db_test.xml");
+        PlugDescription pd = new PlugdescriptionSerializer()
+                .deSerialize(plugDescriptionFile);
+
+        PlugDescriptionConfiguredDatabaseRecordSetProducer p = new PlugDescriptionConfiguredDatabaseRecordSetProducer();
+        p.setStatusProviderService(statusProviderService);
+        p.setRecordSql("SELECT * FROM TEST_TABLE ORDER BY ID");
+        p.configure(pd);
+
+        ScriptedDocumentMapper m = new ScriptedDocumentMapper();
+        ClassPathResource[] mappingScripts = {
+                new ClassPathResource("scripts/record2index_database_test.js")
+        };
+        m.setMappingScripts(mappingScripts);
+        m.setCompile(false);
+
+        List<IRecordMapper> mList = new ArrayList<>();
+        mList.add(m);
+
+        DscDocumentProducer dp = new DscDocumentProducer();
+        dp.setConfig(new Config());
+        dp.setRecordSetProducer(p);
+        dp.setRecordMapperList(mList);
+        dp.setWorkers(3);
+        dp.setQueueSize(2);
+        dp.setOrdered(true);
+
+        List<String> ids = new ArrayList<>();
+        while (dp.hasNext()) {
+            Map<String, Object> doc = dp.next();
+            assertNotNull(doc);
+            ids.add((String) doc.get("ID"));
+        }
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5", "6", "7", "8", "9"), ids);
+
+        // unordered output delivers all documents as well
+        dp.setOrdered(false);
+        Set<String> unorderedIds = new HashSet<>();
+        while (dp.hasNext()) {
+            unorderedIds.add((String) dp.next().get("ID"));
+        }
+        assertEquals(new HashSet<>(ids), unorderedIds);
+    }
+
+    public void testScriptedDatabaseDocumentProducerStreaming() throws Exception {
+        this.setDatasourceFileName("src/test/resources/dataset.xml");
+
+        File plugDescriptionFile = new File(
+                "src/test/resources/plugdescription_db_test.xml");
+        PlugDescription pd = new PlugdescriptionSerializer()
+                .deSerialize(plugDescriptionFile);
+
+        PlugDescriptionConfiguredDatabaseRecordSetProducer p = new PlugDescriptionConfiguredDatabaseRecordSetProducer();
+        p.setStatusProviderService(statusProviderService);
+        p.setRecordSql("SELECT * FROM TEST_TABLE ORDER BY ID");
+        p.setStreaming(true);
+        p.setFetchSize(2);
+        p.configure(pd);
+
+        ScriptedDocumentMapper m = new ScriptedDocumentMapper();
+        ClassPathResource[] mappingScripts = {
+                new ClassPathResource("scripts/record2index_database_test.js")
+        };
+        m.setMappingScripts(mappingScripts);
+        m.setCompile(false);
+
+        List<IRecordMapper> mList = new ArrayList<>();
+        mList.add(m);
+
+        DscDocumentProducer dp = new DscDocumentProducer();
+        dp.setConfig(new Config());
+        dp.setRecordSetProducer(p);
+        dp.setRecordMapperList(mList);
+
+        assertEquals(Integer.valueOf(9), dp.getDocumentCount());
+        List<String> ids = new ArrayList<>();
+        while (dp.hasNext()) {
+            Map<String, Object> doc = dp.next();
+            assertNotNull(doc);
+            ids.add((String) doc.get("ID"));
+        }
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5", "6", "7", "8", "9"), ids);
+    }
+
+    public void testIncrementalRun() throws Exception {
+        this.setDatasourceFileName("src/test/resources/dataset.xml");
+
+        File plugDescriptionFile = new File(
+                "src/test/resources/plugdescription_db_test.xml");
+        PlugDescription pd = new PlugdescriptionSerializer()
+                .deSerialize(plugDescriptionFile);
+
+        File stateFile = File.createTempFile("index-delta", ".state");
+        stateFile.delete();
+        stateFile.deleteOnExit();
+
+        PlugDescriptionConfiguredDatabaseRecordSetProducer p = new PlugDescriptionConfiguredDatabaseRecordSetProducer();
+        p.setStatusProviderService(statusProviderService);
+        p.setRecordSql("SELECT * FROM TEST_TABLE ORDER BY ID");
+        // records 3 and 5 are "changed", the timestamp never matches
+        p.setRecordChangedSinceSql("SELECT ID FROM TEST_TABLE WHERE ID IN (3, 5) OR COL1 = ?");
+        p.setDeltaStateFile(stateFile.getAbsolutePath());
+        p.configure(pd);
+
+        // no state of a previous run, all records are delivered
+        p.startIncrementalRun(false);
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5", "6", "7", "8", "9"), readRecordIds(p));
+        assertTrue(p.getDeletedRecordIds().isEmpty());
+        p.finishIncrementalRun(true);
+        assertTrue(stateFile.exists());
+
+        // record 9 disappeared
+        p.setRecordSql("SELECT * FROM TEST_TABLE WHERE ID <> 9 ORDER BY ID");
+        p.startIncrementalRun(false);
+        assertEquals(Arrays.asList("3", "5"), readRecordIds(p));
+        assertEquals(Arrays.asList("9"), p.getDeletedRecordIds());
+        p.finishIncrementalRun(false);
+
+        // failed run does not change the state, forced full run delivers all records
+        p.startIncrementalRun(true);
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5", "6", "7", "8"), readRecordIds(p));
+        assertEquals(Arrays.asList("9"), p.getDeletedRecordIds());
+        p.finishIncrementalRun(true);
+
+        p.startIncrementalRun(false);
+        assertEquals(Arrays.asList("3", "5"), readRecordIds(p));
+        assertTrue(p.getDeletedRecordIds().isEmpty());
+        p.finishIncrementalRun(true);
+    }
+
+    public void testFullRunState() throws Exception {
+        this.setDatasourceFileName("src/test/resources/dataset.xml");
+
+        File plugDescriptionFile = new File(
+                "src/test/resources/plugdescription_db_test.xml");
+        PlugDescription pd = new PlugdescriptionSerializer()
+                .deSerialize(plugDescriptionFile);
+
+        File stateFile = File.createTempFile("index-delta", ".state");
+        stateFile.delete();
+        stateFile.deleteOnExit();
+
+        PlugDescriptionConfiguredDatabaseRecordSetProducer p = new PlugDescriptionConfiguredDatabaseRecordSetProducer();
+        p.setStatusProviderService(statusProviderService);
+        p.setRecordSql("SELECT * FROM TEST_TABLE ORDER BY ID");
+        p.setRecordChangedSinceSql("SELECT ID FROM TEST_TABLE WHERE ID IN (3, 5) OR COL1 = ?");
+        p.setDeltaStateFile(stateFile.getAbsolutePath());
+        p.configure(pd);
+
+        // the state of a run is only stored after the index was written
+        assertEquals(9, readRecordIds(p).size());
+        assertFalse(stateFile.exists());
+        p.finishRun(false);
+        assertFalse(stateFile.exists());
+
+        assertEquals(9, readRecordIds(p).size());
+        p.finishRun(true);
+        assertTrue(stateFile.exists());
+
+        p.startIncrementalRun(false);
+        assertEquals(Arrays.asList("3", "5"), readRecordIds(p));
+        p.finishIncrementalRun(true);
+    }
+
+    public void testResumeIncrementalRun() throws Exception {
+        this.setDatasourceFileName("src/test/resources/dataset.xml");
+
+        File plugDescriptionFile = new File(
+                "src/test/resources/plugdescription_db_test.xml");
+        PlugDescription pd = new PlugdescriptionSerializer()
+                .deSerialize(plugDescriptionFile);
+
+        File stateFile = File.createTempFile("index-delta", ".state");
+        stateFile.delete();
+        stateFile.deleteOnExit();
+        File checkpointFile = File.createTempFile("index-checkpoint", ".state");
+        checkpointFile.delete();
+        checkpointFile.deleteOnExit();
+
+        PlugDescriptionConfiguredDatabaseRecordSetProducer p = new PlugDescriptionConfiguredDatabaseRecordSetProducer();
+        p.setStatusProviderService(statusProviderService);
+        p.setRecordSql("SELECT * FROM TEST_TABLE ORDER BY ID");
+        p.setRecordChangedSinceSql("SELECT ID FROM TEST_TABLE WHERE COL1 = ?");
+        p.setDeltaStateFile(stateFile.getAbsolutePath());
+        p.setCheckpointFile(checkpointFile.getAbsolutePath());
+        p.configure(pd);
+
+        // interrupted after 4 records
+        p.startIncrementalRun(true);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(p.hasNext());
+            p.next().close();
+        }
+        p.checkpoint(4);
+        p.finishIncrementalRun(false);
+        assertTrue(checkpointFile.exists());
+
+        // incremental run of another kind starts from the beginning
+        p.startIncrementalRun(false);
+        assertEquals(9, readRecordIds(p).size());
+        p.finishIncrementalRun(false);
+
+        p.startIncrementalRun(true);
+        assertEquals(Arrays.asList("5", "6", "7", "8", "9"), readRecordIds(p));
+        p.finishIncrementalRun(true);
+        assertFalse(checkpointFile.exists());
+    }
+
+    public void testPauseRecordDelivery() throws Exception {
+        this.setDatasourceFileName("src/test/resources/dataset.xml");
+
+        File plugDescriptionFile = new File(
+                "src/test/resources/plugdescription_db_test.xml");
+        PlugDescription pd = new PlugdescriptionSerializer()
+                .deSerialize(plugDescriptionFile);
+
+        final PlugDescriptionConfiguredDatabaseRecordSetProducer p = new PlugDescriptionConfiguredDatabaseRecordSetProducer();
+        p.setStatusProviderService(statusProviderService);
+        p.setRecordSql("SELECT * FROM TEST_TABLE ORDER BY ID");
+        p.configure(pd);
+
+        p.pause();
+        assertTrue(p.isPaused());
+        final List<String> ids = Collections.synchronizedList(new ArrayList<>());
+        Thread t = new Thread(() -> {
+            try {
+                ids.addAll(readRecordIds(p));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        t.start();
+        t.join(500);
+        assertTrue(t.isAlive());
+        assertTrue(ids.isEmpty());
+
+        p.resume();
+        t.join(10000);
+        assertFalse(t.isAlive());
+        assertEquals(9, ids.size());
+    }
+
+    public void testConnectionReuse() throws Exception {
+        this.setDatasourceFileName("src/test/resources/dataset.xml");
+
+        File plugDescriptionFile = new File(
+                "src/test/resources/plugdescription_db_test.xml");
+        PlugDescription pd = new PlugdescriptionSerializer()
+                .deSerialize(plugDescriptionFile);
+
+        PlugDescriptionConfiguredDatabaseRecordSetProducer p = new PlugDescriptionConfiguredDatabaseRecordSetProducer();
+        p.setStatusProviderService(statusProviderService);
+        p.setRecordSql("SELECT * FROM TEST_TABLE ORDER BY ID");
+        p.setConnectionReuseMaxRecords(4);
+        p.configure(pd);
+
+        List<String> ids = new ArrayList<>();
+        while (p.hasNext()) {
+            try (SourceRecord record = p.next()) {
+                Connection connection = (Connection) record.get(DatabaseSourceRecord.CONNECTION);
+                if ("2".equals(record.get(SourceRecord.ID))) {
+                    // connection with error is not used for the next record
+                    try (PreparedStatement ps = connection.prepareStatement("SELECT * FROM NO_TABLE")) {
+                        ps.executeQuery();
+                        fail("Table should not exist");
+                    } catch (SQLException e) {
+                        // expected
+                    }
+                } else {
+                    try (PreparedStatement ps = connection.prepareStatement("SELECT COL1 FROM TEST_TABLE WHERE ID = ?")) {
+                        ps.setString(1, (String) record.get(SourceRecord.ID));
+                        try (ResultSet rs = ps.executeQuery()) {
+                            assertTrue(rs.next());
+                        }
+                    }
+                }
+                ids.add((String) record.get(SourceRecord.ID));
+                connection.close();
+                assertTrue(connection.isClosed());
+            }
+        }
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5", "6", "7", "8", "9"), ids);
+    }
+
+    public void testPartitionedRun() throws Exception {
+        this.setDatasourceFileName("src/test/resources/dataset.xml");
+
+        File plugDescriptionFile = new File(
+                "src/test/resources/plugdescription_db_test.xml");
+        PlugDescription pd = new PlugdescriptionSerializer()
+                .deSerialize(plugDescriptionFile);
+
+        try (PreparedStatement ps = this.getConnection().getConnection().prepareStatement(
+                "CREATE TABLE dsc_index_partition (run_id VARCHAR(64) NOT NULL, partition_no INTEGER NOT NULL, "
+                        + "node_id VARCHAR(255), lease_until BIGINT, state VARCHAR(16) NOT NULL, doc_count INTEGER, "
+                        + "strategy VARCHAR(16), range_min BIGINT, range_max BIGINT, record_count INTEGER, "
+                        + "PRIMARY KEY (run_id, partition_no))")) {
+            ps.executeUpdate();
+        }
+
+        for (String strategy : Arrays.asList(PlugDescriptionConfiguredDatabaseRecordSetProducer.PARTITION_HASH,
+                PlugDescriptionConfiguredDatabaseRecordSetProducer.PARTITION_RANGE)) {
+            List<PlugDescriptionConfiguredDatabaseRecordSetProducer> nodes = new ArrayList<>();
+            for (String nodeId : Arrays.asList("node1", "node2")) {
+                PlugDescriptionConfiguredDatabaseRecordSetProducer p = new PlugDescriptionConfiguredDatabaseRecordSetProducer();
+                p.setStatusProviderService(statusProviderService);
+                p.setRecordSql("SELECT * FROM TEST_TABLE ORDER BY ID");
+                p.setPartitionCount(3);
+                p.setPartitionStrategy(strategy);
+                p.setNodeId(nodeId);
+                p.configure(pd);
+                nodes.add(p);
+            }
+
+            // node1 crashes after claiming a partition, the lease expires
+            nodes.get(0).setPartitionLeaseMillis(-1);
+            assertTrue(nodes.get(0).startPartitionedRun(strategy));
+            nodes.get(0).setPartitionLeaseMillis(600000);
+
+            List<String> ids = new ArrayList<>();
+            int partitions = 0;
+            while (nodes.get(1).startPartitionedRun(strategy)) {
+                List<String> partitionIds = readRecordIds(nodes.get(1));
+                if (partitions == 0) {
+                    // numeric ids are split by modulo or by range of the ids
+                    assertEquals(strategy.equals(PlugDescriptionConfiguredDatabaseRecordSetProducer.PARTITION_RANGE)
+                            ? Arrays.asList("1", "2", "3") : Arrays.asList("3", "6", "9"), partitionIds);
+                }
+                assertEquals(partitionIds.size(), nodes.get(1).getDocCount());
+                assertEquals(9, nodes.get(1).getTotalDocCount());
+                ids.addAll(partitionIds);
+                nodes.get(1).finishPartitionedRun(true);
+                partitions++;
+            }
+            assertEquals(3, partitions);
+            Collections.sort(ids);
+            assertEquals(Arrays.asList("1", "2", "3", "4", "5", "6", "7", "8", "9"), ids);
+
+            Map<Integer, Integer> counts = nodes.get(1).getPartitionDocCounts(strategy);
+            assertEquals(3, counts.size());
+            int total = 0;
+            for (Integer count : counts.values()) {
+                total += count;
+            }
+            assertEquals(9, total);
+        }
+    }
+
+    private List<String> readRecordIds(PlugDescriptionConfiguredDatabaseRecordSetProducer p) throws Exception {
+        List<String> ids = new ArrayList<>();
+        while (p.hasNext()) {
+            try (SourceRecord record = p.next()) {
+                ids.add((String) record.get(SourceRecord.ID));
+            }
+        }
+        return ids;
+    }
+
     public void testScriptedDatabaseDocumentByIdProducer() throws Exception {
         this.setDatasourceFileName("src/test/resources/dataset.xml");
 
@@ -0,0 +1,90 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.index.producer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ObjectHierarchyGraphTest {
+
+    @Test
+    public void publicationChecks() {
+        ObjectHierarchyGraph graph = new ObjectHierarchyGraph(Long.MAX_VALUE);
+        // children are added before their parents on purpose
+        graph.addNode("doc1", "folder2", true);
+        graph.addNode("folder2", "folder1", false);
+        graph.addNode("folder1", null, false);
+        graph.addNode("emptyFolder", "folder1", false);
+        graph.addNode("doc2", null, true);
+        graph.addNode("doc3", "doc2", true);
+        graph.addNode("doc4", "doc3", false);
+        graph.addNode("doc5", "doc4", true);
+        graph.addNode("orphan", "missing", true);
+        graph.addNode("cycle1", "cycle2", true);
+        graph.addNode("cycle2", "cycle1", true);
+        graph.build();
+
+        assertTrue(graph.isFolderWithPublishDoc("folder1"));
+        assertTrue(graph.isFolderWithPublishDoc("folder2"));
+        assertFalse(graph.isFolderWithPublishDoc("emptyFolder"));
+        assertFalse(graph.isFolderWithPublishDoc("doc1"));
+        assertFalse(graph.isFolderWithPublishDoc("unknown"));
+
+        assertTrue(graph.isParentPublishDoc("doc2"));
+        assertTrue(graph.isParentPublishDoc("doc3"));
+        assertFalse(graph.isParentPublishDoc("doc4"));
+        assertFalse(graph.isParentPublishDoc("doc5"));
+        // parents of doc1 are folders without own publication
+        assertFalse(graph.isParentPublishDoc("doc1"));
+        assertFalse(graph.isParentPublishDoc("orphan"));
+        assertFalse(graph.isParentPublishDoc("cycle1"));
+        assertFalse(graph.isParentPublishDoc("unknown"));
+    }
+
+    @Test
+    public void deepHierarchy() {
+        ObjectHierarchyGraph graph = new ObjectHierarchyGraph(Long.MAX_VALUE);
+        int depth = 100000;
+        graph.addNode("n0", null, true);
+        for (int i = 1; i < depth; i++) {
+            graph.addNode("n" + i, "n" + (i - 1), true);
+        }
+        graph.build();
+
+        assertTrue(graph.isParentPublishDoc("n" + (depth - 1)));
+        assertTrue(graph.isFolderWithPublishDoc("n0"));
+        assertFalse(graph.isFolderWithPublishDoc("n" + (depth - 1)));
+    }
+
+    @Test
+    public void memoryBudgetExceeded() {
+        ObjectHierarchyGraph graph = new ObjectHierarchyGraph(1000);
+        boolean added = true;
+        for (int i = 0; i < 100 && added; i++) {
+            added = graph.addNode("uuid" + i, null, true);
+        }
+        assertFalse(added);
+    }
+}
@@ -27,12 +27,17 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
+import javax.xml.parsers.DocumentBuilderFactory;
+
 import org.springframework.core.io.ClassPathResource;
 
+import de.ingrid.iplug.dsc.index.mapper.ScriptedDocumentMapper;
+import de.ingrid.iplug.dsc.om.SourceRecord;
 import de.ingrid.iplug.dsc.record.mapper.CreateIdfMapper;
 import de.ingrid.iplug.dsc.record.mapper.IIdfMapper;
 import de.ingrid.iplug.dsc.record.mapper.ScriptedIdfMapper;
@@ -98,6 +103,49 @@ public class ThreadedScriptedDatabaseDscRecordCreatorTest extends IgcDbUnitEnabl
         
     }
     
+    public void testConcurrentMapping() throws Exception {
+        ClassPathResource[] mappingScripts = {
+            new ClassPathResource("scripts/record2any_barrier_test.js")
+        };
+        ScriptedIdfMapper idfMapper = new ScriptedIdfMapper();
+        idfMapper.setMappingScripts(mappingScripts);
+        ScriptedDocumentMapper documentMapper = new ScriptedDocumentMapper();
+        documentMapper.setMappingScripts(mappingScripts);
+
+        // the script waits until all threads are in it, so it times out if
+        // the mappings are executed one after the other
+        mapConcurrently(record -> idfMapper.map(record,
+                DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument()));
+        mapConcurrently(record -> documentMapper.map(record, new ElasticDocument()));
+    }
+
+    private void mapConcurrently(RecordMapping mapping) throws Exception {
+        int threadCount = 5;
+        CyclicBarrier barrier = new CyclicBarrier(threadCount);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < threadCount; i++) {
+            tasks.add(() -> {
+                SourceRecord record = new SourceRecord("1");
+                record.put("barrier", barrier);
+                mapping.map(record);
+                return null;
+            });
+        }
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        try {
+            for (Future<Void> future : executorService.invokeAll(tasks)) {
+                // Throws an exception if the barrier was broken.
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    private interface RecordMapping {
+        void map(SourceRecord record) throws Exception;
+    }
+
     private class CallableRecordCreator implements Callable<Record> {
         
         private DscRecordCreator drc;
@@ -0,0 +1,98 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.utils;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+public class BwstrGeometryIndexTest {
+
+    private BwstrGeometryIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        index = new BwstrGeometryIndex();
+        index.load( getGeometryFile() );
+    }
+
+    static String getGeometryFile() throws Exception {
+        return new File( BwstrGeometryIndexTest.class.getResource( "/bwstrloc/geometries.json" ).toURI() ).getAbsolutePath();
+    }
+
+    @Test
+    public void testLoad() {
+        Assert.assertEquals( 2, index.size() );
+        Assert.assertTrue( index.contains( "3901" ) );
+        Assert.assertFalse( index.contains( "3902" ) );
+        Assert.assertFalse( index.contains( null ) );
+        Assert.assertArrayEquals( new String[] { "Rhein", "Hauptstrecke" }, index.getLocationNames( "3901" ) );
+        Assert.assertNull( index.getLocationNames( "3902" ) );
+
+        // a file that cannot be read keeps the loaded waterways
+        index.load( "does-not-exist.json" );
+        Assert.assertEquals( 2, index.size() );
+        index.load( null );
+        Assert.assertEquals( 0, index.size() );
+    }
+
+    @Test
+    public void testGetSection() {
+        BwstrSection section = index.getSection( "3901", "0.5", "2.5" );
+        Assert.assertArrayEquals( new String[] { "Rhein", "Hauptstrecke" }, section.getLocationNames() );
+        // 51.05 and 51.25 are interpolated, the second of the four vertices is the center
+        Assert.assertArrayEquals( new double[] { 6.0, 51.1 }, section.getCenter(), 0.000001 );
+        Assert.assertArrayEquals( new double[] { 6.0, 6.0, 51.05, 51.25 }, section.getBBOX(), 0.000001 );
+
+        // km in reverse order and the whole waterway
+        Assert.assertArrayEquals( section.getBBOX(), index.getSection( "3901", "2.5", "0.5" ).getBBOX(), 0.000001 );
+        section = index.getSection( "3901", "", "" );
+        Assert.assertArrayEquals( new double[] { 6.0, 51.2 }, section.getCenter(), 0.000001 );
+        Assert.assertArrayEquals( new double[] { 6.0, 7.1, 51.0, 52.0 }, section.getBBOX(), 0.000001 );
+
+        Assert.assertNull( index.getSection( "3902", "1", "2" ) );
+        Assert.assertNull( index.getSection( "3901", "1", "x" ) );
+    }
+
+    @Test
+    public void testGetSectionWithoutMeasures() {
+        // the km are computed from the length of the line starting at km_von
+        BwstrSection section = index.getSection( "0701", "10", "10.5" );
+        Assert.assertArrayEquals( new double[] { 8.0, 8.0, 50.0, 50.0045 }, section.getBBOX(), 0.0001 );
+    }
+
+    @Test
+    public void testGetResponse() {
+        BwstrLocUtil blo = new BwstrLocUtil();
+        String response = index.getResponse( "3901", "0.5", "2.5" );
+        Assert.assertNotNull( response );
+        Assert.assertArrayEquals( new String[] { "Rhein", "Hauptstrecke" }, blo.getLocationNames( blo.parse( response ) ) );
+        Assert.assertArrayEquals( index.getSection( "3901", "0.5", "2.5" ).getCenter(), blo.getCenter( blo.parse( response ) ), 0.000001 );
+
+        Double[] bbox = blo.getBBOX( blo.parse( index.getResponse( "3901", "", "" ) ) );
+        Assert.assertArrayEquals( new Double[] { 6.0, 7.1, 51.0, 52.0 }, bbox );
+        Assert.assertNull( index.getResponse( "3902", "1", "2" ) );
+    }
+}
@@ -22,14 +22,135 @@
  */
 package de.ingrid.iplug.dsc.utils;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import org.json.simple.JSONObject;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class BwstrLocUtilTest {
 
+    @After
+    public void resetCache() {
+        BwstrLocCache cache = BwstrLocCache.getInstance();
+        cache.clear();
+        cache.setDirectory( null );
+        cache.setTimeToLive( 604800000 );
+        BwstrLocUtil.setMaxRequestsPerSecond( 0 );
+        BwstrLocUtil.setBatchWindow( 0 );
+        BwstrGeometryIndex.getInstance().load( null );
+    }
+
+    @Test
+    public void testGetResponseCached() throws IOException {
+        BwstrLocStub stub = new BwstrLocStub();
+        try {
+            BwstrLocUtil blo = stub.createBwstrLocUtil();
+            String response = blo.getResponse( "3901", "", "" );
+            Assert.assertNotNull( response );
+            Assert.assertArrayEquals( new String[] { "Rhein", "Hauptstrecke" }, blo.getLocationNames( blo.parse( response ) ) );
+            Assert.assertEquals( 2, stub.requests.get() );
+
+            Assert.assertEquals( response, stub.createBwstrLocUtil().getResponse( "3901", "", "" ) );
+            Map<String, String> info = blo.doBWaStrInfoQuery( "3901" );
+            Assert.assertEquals( "Rhein", info.get( "bwastr_name" ) );
+            Assert.assertEquals( 2, stub.requests.get() );
+
+            Assert.assertEquals( response, blo.getResponse( "3901", "729", "730.5" ) );
+            Assert.assertEquals( 3, stub.requests.get() );
+        } finally {
+            stub.stop();
+        }
+    }
+
+    @Test
+    public void testGetResponseFromCacheDirectory() throws IOException {
+        File dir = Files.createTempDirectory( "bwstrloc-cache" ).toFile();
+        BwstrLocCache.getInstance().setDirectory( dir.getAbsolutePath() );
+        BwstrLocStub stub = new BwstrLocStub();
+        BwstrLocUtil blo = stub.createBwstrLocUtil();
+        String response;
+        try {
+            response = blo.getResponse( "3901", "729", "730" );
+            Assert.assertNotNull( response );
+            Assert.assertEquals( 1, stub.requests.get() );
+        } finally {
+            stub.stop();
+        }
+
+        // the locator is not available anymore, the response is read from the cache directory
+        BwstrLocCache.getInstance().clear();
+        Assert.assertEquals( response, blo.getResponse( "3901", "729", "730" ) );
+        Assert.assertEquals( 1, BwstrLocCache.getInstance().size() );
+
+        BwstrLocCache.getInstance().setTimeToLive( 0 );
+        BwstrLocCache.getInstance().clear();
+        Assert.assertNull( blo.getResponse( "3901", "729", "730" ) );
+
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testGetResponseErrorNotCached() throws IOException {
+        BwstrLocStub stub = new BwstrLocStub();
+        stub.failing.add( "3902" );
+        try {
+            BwstrLocUtil blo = stub.createBwstrLocUtil();
+            Assert.assertTrue( blo.getResponse( "3902", "1", "2" ).contains( "\"error\"" ) );
+            Assert.assertEquals( 0, BwstrLocCache.getInstance().size() );
+
+            // the locator is requested again
+            stub.failing.clear();
+            Assert.assertFalse( blo.getResponse( "3902", "1", "2" ).contains( "\"error\"" ) );
+            Assert.assertEquals( 2, stub.requests.get() );
+            Assert.assertEquals( 1, BwstrLocCache.getInstance().size() );
+        } finally {
+            stub.stop();
+        }
+    }
+
+    @Test
+    public void testMaxRequestsPerSecond() throws IOException {
+        BwstrLocCache.getInstance().setTimeToLive( 0 );
+        BwstrLocUtil.setMaxRequestsPerSecond( 10 );
+        BwstrLocStub stub = new BwstrLocStub();
+        try {
+            BwstrLocUtil blo = stub.createBwstrLocUtil();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < 4; i++) {
+                Assert.assertNotNull( blo.getResponse( "3901", "729", "730" ) );
+            }
+            Assert.assertEquals( 4, stub.requests.get() );
+            Assert.assertTrue( System.currentTimeMillis() - start >= 250 );
+        } finally {
+            stub.stop();
+        }
+    }
+
     @Test
     public void testParse() {
         BwstrLocUtil blo = new BwstrLocUtil();
@@ -74,6 +195,58 @@ public class BwstrLocUtilTest {
     }
     
 
+    @Test
+    public void testParseSection() throws IOException {
+        BwstrLocUtil blo = new BwstrLocUtil();
+        String response;
+        try (InputStream in = BwstrLocUtilTest.class.getResourceAsStream( "/bwstrloc/geokodierung_3901.json" )) {
+            response = new String( in.readAllBytes(), StandardCharsets.UTF_8 );
+        }
+        BwstrSection section = blo.parseSection( response );
+        JSONObject parsedResponse = blo.parse( response );
+        Assert.assertArrayEquals( blo.getLocationNames( parsedResponse ), section.getLocationNames() );
+        Assert.assertArrayEquals( blo.getCenter( parsedResponse ), section.getCenter(), 0 );
+        Double[] bbox = blo.getBBOX( parsedResponse );
+        Assert.assertArrayEquals( new double[] { bbox[0], bbox[1], bbox[2], bbox[3] }, section.getBBOX(), 0 );
+
+        // escaped names, unknown values before the names, 3D coordinates and a second result
+        section = blo.parseSection( "{\"info\": {\"a\": [1, {\"b\": \"]}\\\"\"}], \"c\": null}, \"result\": [ { \"x\": [[1, 2]], \"bwastr_name\": \"M\\u00fchlarm \\\"Nackenheim\\\"\", "
+                + "\"strecken_name\": null, \"geometry\": { \"type\": \"MultiLineString\", \"coordinates\": [ [ [ 1.5, 2.5, 0 ], [ -1, 3e1 ] ], [ [ 2, 4 ] ] ], \"measures\": [ 1, 2, 3 ] } }, "
+                + "{ \"bwastr_name\": \"other\", \"geometry\": { \"coordinates\": [ [ [ 100, 100 ] ] ] } } ] }" );
+        Assert.assertArrayEquals( new String[] { "M\u00fchlarm \"Nackenheim\"", null }, section.getLocationNames() );
+        Assert.assertArrayEquals( new double[] { 1.5, 2.5 }, section.getCenter(), 0 );
+        Assert.assertArrayEquals( new double[] { -1, 2, 2.5, 30 }, section.getBBOX(), 0 );
+
+        Assert.assertNull( blo.parseSection( "{ \"result\": [] }" ) );
+        Assert.assertNull( blo.parseSection( "{ \"result\": [ { \"geometry\": { \"coordinates\": [ [ [ 1, " ) );
+        Assert.assertNull( blo.parseSection( "" ) );
+    }
+
+    @Test
+    public void testParseSectionLongSection() {
+        BwstrLocUtil blo = new BwstrLocUtil();
+        StringBuilder response = new StringBuilder( "{ \"result\": [ { \"qid\": 1, \"bwastr_name\": \"Rhein\", \"strecken_name\": \"Hauptstrecke\", \"geometry\": { \"type\": \"MultiLineString\", \"coordinates\": [ " );
+        for (int p = 0; p < 3; p++) {
+            response.append( p == 0 ? "[ " : ", [ " );
+            for (int i = 0; i < 5000; i++) {
+                response.append( i == 0 ? "" : ", " ).append( "[ " ).append( 6 + Math.sin( p * 5000 + i ) ).append( ", " ).append( 51 + Math.cos( p * 5000 + i ) / 3 ).append( " ]" );
+            }
+            response.append( " ]" );
+        }
+        response.append( " ] } } ] }" );
+
+        JSONObject parsedResponse = blo.parse( response.toString() );
+        double[] center = blo.getCenter( parsedResponse );
+        Double[] bbox = blo.getBBOX( parsedResponse );
+        String[] names = blo.getLocationNames( parsedResponse );
+
+        BwstrSection section = blo.parseSection( response.toString() );
+
+        Assert.assertArrayEquals( center, section.getCenter(), 0 );
+        Assert.assertArrayEquals( new double[] { bbox[0], bbox[1], bbox[2], bbox[3] }, section.getBBOX(), 0 );
+        Assert.assertArrayEquals( names, section.getLocationNames() );
+    }
+
     @Test
     public void testIsBwstrIdAndKm() {
         BwstrLocUtil blo = new BwstrLocUtil();
@@ -127,4 +300,276 @@ public class BwstrLocUtilTest {
         Assert.assertEquals("Nebenarm Mühlarm Nackenheim", result.get("strecken_name"));
     }
 
+    @Test
+    public void testGetResponses() throws IOException {
+        BwstrLocStub stub = new BwstrLocStub();
+        try {
+            BwstrLocUtil blo = stub.createBwstrLocUtil();
+            String[] responses = blo.getResponses( new String[][] { { "3901", "729", "730" }, { "3902", "1", "2" }, { "3901", "", "" }, { "3903", "5", "6.5" } } );
+            Assert.assertEquals( 4, responses.length );
+            // one info query and one batched geocoding request
+            Assert.assertEquals( 2, stub.requests.get() );
+            for (String response : responses) {
+                Assert.assertNotNull( response );
+            }
+            JSONObject second = blo.parse( responses[1] );
+            JSONObject secondResult = (JSONObject) ((List<?>) second.get( "result" )).get( 0 );
+            Assert.assertEquals( 1L, secondResult.get( "qid" ) );
+            Assert.assertEquals( "3902", secondResult.get( "bwastrid" ) );
+            Assert.assertEquals( 6.79733428546954, blo.getCenter( second )[0], 0.0001 );
+
+            // the results of the batch are cached as single responses
+            Assert.assertEquals( responses[3], blo.getResponse( "3903", "5", "6.5" ) );
+            Assert.assertEquals( responses[2], blo.getResponse( "3901", "", "" ) );
+            Assert.assertEquals( 2, stub.requests.get() );
+        } finally {
+            stub.stop();
+        }
+    }
+
+    @Test
+    public void testGetResponsesPartialFailure() throws IOException {
+        BwstrLocStub stub = new BwstrLocStub();
+        stub.failingInBatch.add( "3902" );
+        try {
+            BwstrLocUtil blo = stub.createBwstrLocUtil();
+            String[] responses = blo.getResponses( new String[][] { { "3901", "729", "730" }, { "3902", "1", "2" }, { "3903", "5", "6" } } );
+            // the missing section is requested separately
+            Assert.assertEquals( 2, stub.requests.get() );
+            JSONObject second = (JSONObject) ((List<?>) blo.parse( responses[1] ).get( "result" )).get( 0 );
+            Assert.assertEquals( "3902", second.get( "bwastrid" ) );
+            Assert.assertNotNull( responses[0] );
+            Assert.assertNotNull( responses[2] );
+        } finally {
+            stub.stop();
+        }
+    }
+
+    @Test
+    public void testGetResponsesErrorNotCached() throws IOException {
+        BwstrLocStub stub = new BwstrLocStub();
+        stub.failing.add( "3902" );
+        try {
+            BwstrLocUtil blo = stub.createBwstrLocUtil();
+            String[] responses = blo.getResponses( new String[][] { { "3901", "729", "730" }, { "3902", "1", "2" }, { "3903", "5", "6" } } );
+            // the failed section is requested separately
+            Assert.assertEquals( 2, stub.requests.get() );
+            Assert.assertTrue( responses[1].contains( "\"error\"" ) );
+            Assert.assertEquals( 2, BwstrLocCache.getInstance().size() );
+        } finally {
+            stub.stop();
+        }
+    }
+
+    @Test
+    public void testBatchWindow() throws Exception {
+        BwstrLocUtil.setBatchWindow( 1000 );
+        BwstrLocStub stub = new BwstrLocStub();
+        try {
+            int threads = 4;
+            String[] responses = new String[threads];
+            CountDownLatch start = new CountDownLatch( 1 );
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                int index = i;
+                BwstrLocUtil blo = stub.createBwstrLocUtil();
+                Thread worker = new Thread( () -> {
+                    try {
+                        start.await();
+                        responses[index] = blo.getResponse( "3901", String.valueOf( index ), String.valueOf( index + 1 ) );
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } );
+                worker.start();
+                workers.add( worker );
+            }
+            long started = System.currentTimeMillis();
+            start.countDown();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            Assert.assertEquals( 1, stub.requests.get() );
+            for (String response : responses) {
+                Assert.assertNotNull( response );
+            }
+            Assert.assertTrue( System.currentTimeMillis() - started < 5000 );
+        } finally {
+            stub.stop();
+        }
+    }
+
+    @Test
+    public void testGetResponseFromGeometryIndex() throws Exception {
+        BwstrGeometryIndex.getInstance().load( BwstrGeometryIndexTest.getGeometryFile() );
+        BwstrLocStub stub = new BwstrLocStub();
+        try {
+            BwstrLocUtil blo = stub.createBwstrLocUtil();
+            Assert.assertEquals( BwstrGeometryIndex.getInstance().getResponse( "3901", "0.5", "2.5" ), blo.getResponse( "3901", "0.5", "2.5" ) );
+            Assert.assertArrayEquals( new double[] { 6.0, 51.1 }, blo.getSection( "3901", "0.5", "2.5" ).getCenter(), 0.000001 );
+            Assert.assertEquals( "Rhein", blo.doBWaStrInfoQuery( "3900" ).get( "bwastr_name" ) );
+            Assert.assertEquals( 0, stub.requests.get() );
+
+            // waterways not in the index are geocoded by the BWaStr. Locator
+            BwstrSection section = blo.getSection( "3902", "1", "2" );
+            Assert.assertEquals( 1, stub.requests.get() );
+            Assert.assertArrayEquals( new String[] { "Rhein", "Hauptstrecke" }, section.getLocationNames() );
+            Assert.assertEquals( 6.79733428546954, section.getCenter()[0], 0.0001 );
+            Assert.assertEquals( 6.72597939023267, section.getBBOX()[0], 0.0001 );
+        } finally {
+            stub.stop();
+        }
+    }
+
+    @Test
+    public void testJdkHttpClient() throws Exception {
+        BwstrLocStub stub = new BwstrLocStub();
+        JdkBwstrLocHttpClient client = new JdkBwstrLocHttpClient( 1000, 5000 );
+        try {
+            BwstrLocUtil blo = stub.createBwstrLocUtil();
+            blo.setHttpClient( client );
+            String response = blo.getResponse( "3901", "", "" );
+            Assert.assertArrayEquals( new String[] { "Rhein", "Hauptstrecke" }, blo.parseSection( response ).getLocationNames() );
+            Assert.assertEquals( 2, stub.requests.get() );
+
+            String[] responses = blo.getResponses( new String[][] { { "3902", "1", "2" }, { "3903", "1", "2" } } );
+            Assert.assertEquals( 3, stub.requests.get() );
+            Assert.assertNotNull( responses[0] );
+            Assert.assertNotNull( responses[1] );
+
+            // more requests in flight than concurrent requests allowed
+            List<CompletableFuture<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                futures.add( blo.getResponseAsync( "3904", String.valueOf( i ), String.valueOf( i + 1 ) ) );
+            }
+            for (CompletableFuture<String> future : futures) {
+                Assert.assertNotNull( blo.parseSection( future.get() ) );
+            }
+            Assert.assertEquals( 13, stub.requests.get() );
+            // cached
+            Assert.assertEquals( futures.get( 0 ).get(), blo.getResponseAsync( "3904", "0", "1" ).get() );
+            Assert.assertEquals( 13, stub.requests.get() );
+
+            // invalid response code
+            blo.setBwstrLocUrl( stub.getUrl() + "/unknown" );
+            Assert.assertNull( blo.getResponse( "3901", "729", "730" ) );
+            Assert.assertNull( blo.getResponseAsync( "3901", "729", "730" ).get() );
+        } finally {
+            client.close();
+            stub.stop();
+        }
+    }
+
+    @Test
+    public void testJdkHttpClientTimeout() throws Exception {
+        BwstrLocStub stub = new BwstrLocStub();
+        try {
+            BwstrLocUtil blo = stub.createBwstrLocUtil();
+            blo.setHttpClient( new JdkBwstrLocHttpClient( 1000, 200 ) );
+            blo.setBwstrLocUrl( stub.getUrl() + "/slow/query" );
+            long start = System.currentTimeMillis();
+            Assert.assertNull( blo.getResponseAsync( "3901", "729", "730" ).get() );
+            Assert.assertNull( blo.getResponse( "3901", "729", "730" ) );
+            Assert.assertTrue( System.currentTimeMillis() - start < 2000 );
+        } finally {
+            stub.stop();
+        }
+    }
+
+    /**
+     * Local HTTP server replaying recorded responses of the BWaStr. Locator.
+     */
+    static class BwstrLocStub {
+        private static final Pattern QUERY_PATTERN = Pattern.compile( "\\{\"qid\":([0-9]+),\"bwastrid\":\"([0-9]+)\"" );
+
+        final HttpServer server;
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final AtomicInteger requests = new AtomicInteger();
+        final Set<String> failingInBatch = ConcurrentHashMap.newKeySet();
+        final Set<String> failing = ConcurrentHashMap.newKeySet();
+
+        BwstrLocStub() throws IOException {
+            server = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+            server.createContext( "/bwastrinfo/query", exchange -> replay( exchange, "/bwstrloc/bwastrinfo_3901.json" ) );
+            server.createContext( "/geokodierung/query", this::geocode );
+            server.createContext( "/slow/query", exchange -> {
+                try {
+                    Thread.sleep( 2000 );
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                geocode( exchange );
+            } );
+            server.setExecutor( executor );
+            server.start();
+        }
+
+        private void replay(HttpExchange exchange, String resource) throws IOException {
+            requests.incrementAndGet();
+            reply( exchange, read( resource ) );
+        }
+
+        /**
+         * Answers every query with the recorded geocoding result, the qid and
+         * BWaStr.-ID are replaced. In requests with more than one query the
+         * BWaStr.-IDs in failingInBatch are missing in the result, the
+         * BWaStr.-IDs in failing are always answered with an error.
+         */
+        private void geocode(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            String request;
+            try (InputStream in = exchange.getRequestBody()) {
+                request = new String( in.readAllBytes(), StandardCharsets.UTF_8 );
+            }
+            String recorded = new String( read( "/bwstrloc/geokodierung_3901.json" ), StandardCharsets.UTF_8 );
+            String entry = recorded.substring( recorded.indexOf( '[' ) + 1, recorded.lastIndexOf( ']' ) ).trim();
+            Matcher queries = QUERY_PATTERN.matcher( request );
+            List<String> entries = new ArrayList<>();
+            while (queries.find()) {
+                if (failing.contains( queries.group( 2 ) )) {
+                    entries.add( "{ \"qid\": " + queries.group( 1 ) + ", \"error\": { \"message\": \"Service unavailable\" } }" );
+                    continue;
+                }
+                entries.add( entry.replace( "\"qid\": 1,", "\"qid\": " + queries.group( 1 ) + "," ).replace( "\"3901\"", "\"" + queries.group( 2 ) + "\"" ) );
+            }
+            List<String> result = new ArrayList<>();
+            for (String e : entries) {
+                if (entries.size() == 1 || failingInBatch.stream().noneMatch( id -> e.contains( "\"" + id + "\"" ) )) {
+                    result.add( e );
+                }
+            }
+            reply( exchange, ("{ \"result\": [ " + String.join( ", ", result ) + " ] }").getBytes( StandardCharsets.UTF_8 ) );
+        }
+
+        private byte[] read(String resource) throws IOException {
+            try (InputStream in = BwstrLocUtilTest.class.getResourceAsStream( resource )) {
+                return in.readAllBytes();
+            }
+        }
+
+        private void reply(HttpExchange exchange, byte[] body) throws IOException {
+            exchange.getResponseHeaders().add( "Content-Type", "application/json; charset=UTF-8" );
+            exchange.sendResponseHeaders( 200, body.length );
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write( body );
+            }
+        }
+
+        String getUrl() {
+            return "http://localhost:" + server.getAddress().getPort();
+        }
+
+        BwstrLocUtil createBwstrLocUtil() {
+            BwstrLocUtil blo = new BwstrLocUtil();
+            blo.setBwstrLocUrl( getUrl() + "/geokodierung/query" );
+            blo.setBwstrLocSearchUrl( getUrl() + "/bwastrinfo/query?limit=1&searchfield=bwastrid&searchterm=" );
+            return blo;
+        }
+
+        void stop() {
+            server.stop( 0 );
+            executor.shutdownNow();
+        }
+    }
+
 }
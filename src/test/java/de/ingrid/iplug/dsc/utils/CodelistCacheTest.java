@@ -0,0 +1,99 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+
+import org.junit.Test;
+
+import de.ingrid.iplug.dsc.utils.CodelistCache.Codelists;
+import de.ingrid.utils.udk.UtilsUDKCodeLists;
+
+public class CodelistCacheTest {
+
+    @Test
+    public void testCodelists() throws Exception {
+        try (Connection connection = DriverManager.getConnection("jdbc:hsqldb:mem:codelists", "sa", "")) {
+            try (Statement st = connection.createStatement()) {
+                st.execute("CREATE TABLE sys_list (id INTEGER, lst_id INTEGER, entry_id INTEGER, lang_id VARCHAR(10), name VARCHAR(255), data VARCHAR(255))");
+                st.execute("INSERT INTO sys_list VALUES (1, 502, 1, 'de', 'Erstellung', NULL)");
+                st.execute("INSERT INTO sys_list VALUES (2, 502, 1, 'en', 'creation', NULL)");
+                st.execute("INSERT INTO sys_list VALUES (3, 502, 1, '" + UtilsUDKCodeLists.LANG_ID_ISO_ENTRY + "', 'creation', 'iso data')");
+                st.execute("INSERT INTO sys_list VALUES (4, 502, 2, 'de', 'Publikation', NULL)");
+                st.execute("INSERT INTO sys_list VALUES (5, 502, 2, 'en', 'publication', 'en data')");
+                st.execute("CREATE TABLE t03_catalogue (id INTEGER, language_key INTEGER)");
+                st.execute("INSERT INTO t03_catalogue VALUES (1, 150)");
+            }
+            SQLUtils sqlUtils = new SQLUtils(connection);
+            CodelistCache cache = CodelistCache.getInstance();
+            cache.invalidate();
+            try {
+                Codelists codelists = cache.getCodelists(sqlUtils);
+                assertEquals(2, codelists.size());
+                assertEquals("Erstellung", codelists.getName(502, 1, "de"));
+                assertNull(codelists.getName(502, 2, String.valueOf(UtilsUDKCodeLists.LANG_ID_ISO_ENTRY)));
+                assertNull(codelists.getName(502, 3, "de"));
+                assertNull(codelists.getName(503, 1, "de"));
+                assertEquals(Integer.valueOf(2), codelists.getEntryId(502, "Publikation"));
+                assertEquals("en data", codelists.getData(502, "publication"));
+                assertEquals(Integer.valueOf(1), codelists.getEntryIdByDataFilter(502, "iso da"));
+                // names and data are compared ignoring case like in the database
+                assertEquals(Integer.valueOf(2), codelists.getEntryId(502, "publikation"));
+                assertEquals("en data", codelists.getData(502, "PUBLICATION"));
+                assertEquals(Integer.valueOf(1), codelists.getEntryIdByDataFilter(502, "ISO Da"));
+                // the entry with the lowest id wins
+                assertEquals(Integer.valueOf(1), codelists.getEntryIdByDataFilter(502, "data"));
+                assertEquals(Integer.valueOf(150), codelists.getCatalogLanguageKey());
+
+                TransformationUtils trafoUtils = new TransformationUtils(sqlUtils);
+                assertEquals("creation", trafoUtils.getISOCodeListEntryFromIGCSyslistEntry(502L, "1"));
+                // fallback to the english entry
+                assertEquals("publication", trafoUtils.getISOCodeListEntryFromIGCSyslistEntry(502L, "2"));
+                assertEquals("Publikation", trafoUtils.getCodeListEntryFromIGCSyslistEntry(502L, "2", "de"));
+                assertEquals("1", trafoUtils.getISOCodeListEntryId(502L, "creation"));
+                assertEquals("1", trafoUtils.getISOCodeListEntryId(502L, "Creation"));
+                assertEquals("Publikation", trafoUtils.getIGCSyslistEntryName(502, 2, "de"));
+
+                // changes are only visible after a refresh
+                try (Statement st = connection.createStatement()) {
+                    st.execute("UPDATE sys_list SET name='Erstellt' WHERE id=1");
+                }
+                assertEquals("Erstellung", trafoUtils.getCodeListEntryFromIGCSyslistEntry(502L, "1", "de"));
+                cache.invalidate();
+                assertEquals("Erstellt", trafoUtils.getCodeListEntryFromIGCSyslistEntry(502L, "1", "de"));
+            } finally {
+                cache.invalidate();
+                try (Statement st = connection.createStatement()) {
+                    st.execute("DROP TABLE sys_list");
+                    st.execute("DROP TABLE t03_catalogue");
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.junit.Test;
+
+public class SQLUtilsTest {
+
+    @Test
+    public void testStatementCache() throws Exception {
+        String sql = "SELECT name FROM sql_utils_test WHERE id=?";
+        try (Connection connection = DriverManager.getConnection("jdbc:hsqldb:mem:sqlutils", "sa", "")) {
+            try (Statement st = connection.createStatement()) {
+                st.execute("CREATE TABLE sql_utils_test (id INTEGER, name VARCHAR(50))");
+                st.execute("INSERT INTO sql_utils_test VALUES (1, 'one')");
+                st.execute("INSERT INTO sql_utils_test VALUES (2, 'two')");
+            }
+
+            long hits = SQLUtils.getStatementCacheHits();
+            long misses = SQLUtils.getStatementCacheMisses();
+            SQLUtils sqlUtils = new SQLUtils(connection);
+            assertEquals("one", sqlUtils.first(sql, new Object[] { 1 }).get("name"));
+            // another instance on the same connection shares the statements
+            assertEquals("two", new SQLUtils(connection).first(sql, new Object[] { 2 }).get("name"));
+            assertEquals(misses + 1, SQLUtils.getStatementCacheMisses());
+            assertEquals(hits + 1, SQLUtils.getStatementCacheHits());
+
+            try (Statement st = connection.createStatement()) {
+                st.execute("DROP TABLE sql_utils_test");
+            }
+        }
+    }
+
+    @Test
+    public void testStatementCacheOfPooledConnection() throws Exception {
+        String sql = "SELECT name FROM sql_utils_pool WHERE id=?";
+        try (BasicDataSource dataSource = new BasicDataSource()) {
+            dataSource.setUrl("jdbc:hsqldb:mem:sqlutils");
+            dataSource.setUsername("sa");
+            dataSource.setPassword("");
+            dataSource.setMaxTotal(1);
+            dataSource.setAccessToUnderlyingConnectionAllowed(true);
+            try (Connection connection = dataSource.getConnection(); Statement st = connection.createStatement()) {
+                st.execute("CREATE TABLE sql_utils_pool (id INTEGER, name VARCHAR(50))");
+                st.execute("INSERT INTO sql_utils_pool VALUES (1, 'one')");
+            }
+
+            long hits = SQLUtils.getStatementCacheHits();
+            long misses = SQLUtils.getStatementCacheMisses();
+            try (Connection connection = dataSource.getConnection()) {
+                assertEquals("one", new SQLUtils(connection).first(sql, new Object[] { 1 }).get("name"));
+            }
+            // the next borrow gets another wrapper of the same physical connection
+            try (Connection connection = dataSource.getConnection()) {
+                assertEquals("one", new SQLUtils(connection).first(sql, new Object[] { 1 }).get("name"));
+            }
+            assertEquals(misses + 1, SQLUtils.getStatementCacheMisses());
+            assertEquals(hits + 1, SQLUtils.getStatementCacheHits());
+
+            try (Connection connection = dataSource.getConnection(); Statement st = connection.createStatement()) {
+                st.execute("DROP TABLE sql_utils_pool");
+            }
+        }
+    }
+
+    @Test
+    public void testStreamingRows() throws Exception {
+        try (Connection connection = DriverManager.getConnection("jdbc:hsqldb:mem:sqlutils", "sa", "")) {
+            try (Statement st = connection.createStatement()) {
+                st.execute("CREATE TABLE sql_utils_rows (id INTEGER, name VARCHAR(50))");
+                for (int i = 1; i <= 5; i++) {
+                    st.execute("INSERT INTO sql_utils_rows VALUES (" + i + ", 'name " + i + "')");
+                }
+            }
+            SQLUtils sqlUtils = new SQLUtils(connection);
+            String sql = "SELECT id, name FROM sql_utils_rows WHERE id>=? ORDER BY id";
+
+            List<String> names = new ArrayList<>();
+            int rows = sqlUtils.each(sql, new Object[] { 2 }, row -> {
+                names.add(row.get("name"));
+                // nested query with the same SQL gets its own statement
+                assertEquals(1, sqlUtils.all(sql, new Object[] { 5 }).size());
+                return names.size() < 2 ? null : false;
+            });
+            assertEquals(2, rows);
+            assertEquals(Arrays.asList("name 2", "name 3"), names);
+
+            names.clear();
+            try (SQLUtils.RowIterator it = sqlUtils.iterate(sql, new Object[] { 4 })) {
+                while (it.hasNext()) {
+                    names.add(it.next().get("id"));
+                }
+                assertFalse(it.hasNext());
+            }
+            assertEquals(Arrays.asList("4", "5"), names);
+            assertEquals("name 1", sqlUtils.first(sql, new Object[] { 1 }).get("name"));
+
+            try (Statement st = connection.createStatement()) {
+                st.execute("DROP TABLE sql_utils_rows");
+            }
+        }
+    }
+
+    @Test
+    public void testResultRow() throws Exception {
+        try (Connection connection = DriverManager.getConnection("jdbc:hsqldb:mem:sqlutils", "sa", "")) {
+            try (Statement st = connection.createStatement()) {
+                st.execute("CREATE TABLE sql_utils_row (id BIGINT, name VARCHAR(50), amount DOUBLE)");
+                st.execute("INSERT INTO sql_utils_row VALUES (7, ' seven ', 2.5)");
+            }
+            List<Map<String, String>> rows = new SQLUtils(connection).all("SELECT ID, NAME, AMOUNT FROM sql_utils_row");
+            assertEquals(1, rows.size());
+            ResultRow row = (ResultRow) rows.get(0);
+
+            assertEquals("7", row.get("id"));
+            assertEquals(Long.valueOf(7), row.getLong("id"));
+            assertEquals("seven", row.get("name"));
+            assertNull(row.getLong("name"));
+            assertEquals(2.5, row.getDouble("amount"), 0);
+            assertEquals(Arrays.asList("id", "name", "amount"), new ArrayList<>(row.keySet()));
+
+            row.put("name", "eight");
+            row.put("added", "value");
+            assertEquals("eight", row.get("name"));
+            assertEquals("value", row.get("added"));
+            assertEquals(4, row.size());
+
+            try (Statement st = connection.createStatement()) {
+                st.execute("DROP TABLE sql_utils_row");
+            }
+        }
+    }
+
+    @Test
+    public void testAllByKeys() throws Exception {
+        try (Connection connection = DriverManager.getConnection("jdbc:hsqldb:mem:sqlutils", "sa", "")) {
+            try (Statement st = connection.createStatement()) {
+                st.execute("CREATE TABLE sql_utils_keys (id INTEGER, parent_id INTEGER, name VARCHAR(50))");
+                for (int i = 1; i <= 1500; i++) {
+                    st.execute("INSERT INTO sql_utils_keys VALUES (" + i + ", " + (i % 3) + ", 'name " + i + "')");
+                }
+            }
+            SQLUtils sqlUtils = new SQLUtils(connection);
+
+            Map<String, List<Map<String, String>>> byParent = sqlUtils.allByKeys(
+                    "SELECT * FROM sql_utils_keys WHERE parent_id IN (?) ORDER BY id", "parent_id", new Object[] { 2, 1.0, 2, 5 });
+            assertEquals(Arrays.asList("2", "1", "5"), new ArrayList<>(byParent.keySet()));
+            assertEquals(500, byParent.get("1").size());
+            assertEquals("name 2", byParent.get("2").get(0).get("name"));
+            assertEquals(0, byParent.get("5").size());
+
+            // more keys than allowed in one IN clause
+            Object[] ids = new Object[1200];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = i + 1;
+            }
+            Map<String, Map<String, String>> byId = sqlUtils.firstByKeys("SELECT * FROM sql_utils_keys WHERE id IN (?)", "id", ids);
+            assertEquals(1200, byId.size());
+            assertEquals("name 1200", byId.get("1200").get("name"));
+
+            try (Statement st = connection.createStatement()) {
+                st.execute("DROP TABLE sql_utils_keys");
+            }
+        }
+    }
+
+}
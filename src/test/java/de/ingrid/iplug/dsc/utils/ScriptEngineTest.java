@@ -0,0 +1,91 @@
+/*
+ * **************************************************-
+ * InGrid-iPlug DSC
+ * ==================================================
+ * Copyright (C) 2014 - 2023 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.1 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * http://ec.europa.eu/idabc/eupl5
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.iplug.dsc.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+public class ScriptEngineTest {
+
+    @Test
+    public void testReloadChangedScript() throws Exception {
+        File scriptFile = File.createTempFile("reload", ".js");
+        scriptFile.deleteOnExit();
+        Files.write(scriptFile.toPath(), "'version ' + version;".getBytes(StandardCharsets.UTF_8));
+        Resource[] scripts = { new FileSystemResource(scriptFile) };
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("version", 1);
+
+        assertEquals("version 1", ScriptEngine.execute(scripts, parameters, true).get(scriptFile.getName()));
+
+        // a change is only picked up by the reload
+        Files.write(scriptFile.toPath(), "'changed ' + version;".getBytes(StandardCharsets.UTF_8));
+        scriptFile.setLastModified(scriptFile.lastModified() + 2000);
+        assertEquals("version 1", ScriptEngine.execute(scripts, parameters, true).get(scriptFile.getName()));
+        ScriptEngine.reloadChangedScripts();
+        assertEquals("changed 1", ScriptEngine.execute(scripts, parameters, true).get(scriptFile.getName()));
+        assertEquals("changed 1", ScriptEngine.execute(scripts, parameters, false).get(scriptFile.getName()));
+
+        // a change that does not compile keeps the previous version
+        Files.write(scriptFile.toPath(), "'broken' + ;".getBytes(StandardCharsets.UTF_8));
+        scriptFile.setLastModified(scriptFile.lastModified() + 2000);
+        ScriptEngine.reloadChangedScripts();
+        assertEquals("changed 1", ScriptEngine.execute(scripts, parameters, true).get(scriptFile.getName()));
+    }
+
+    @Test
+    public void testLibraryEvaluatedOnce() throws Exception {
+        File libraryFile = File.createTempFile("library", ".js");
+        libraryFile.deleteOnExit();
+        Files.write(libraryFile.toPath(),
+                "var evaluations = (typeof evaluations === 'undefined' ? 0 : evaluations) + 1;\nfunction greet(name) { return 'hello ' + name; }"
+                        .getBytes(StandardCharsets.UTF_8));
+        File scriptFile = File.createTempFile("mapping", ".js");
+        scriptFile.deleteOnExit();
+        Files.write(scriptFile.toPath(), "greet(name) + ' ' + evaluations + ' ' + typeof previous;".getBytes(StandardCharsets.UTF_8));
+        Resource[] libraries = { new FileSystemResource(libraryFile) };
+        Resource[] scripts = { new FileSystemResource(scriptFile) };
+
+        for (boolean compile : new boolean[] { true, false }) {
+            Map<String, Object> parameters = new HashMap<>();
+            parameters.put("name", "a");
+            parameters.put("previous", "a");
+            ScriptEngine.execute(libraries, scripts, parameters, compile);
+
+            // the record parameters of the previous execution are removed
+            parameters = new HashMap<>();
+            parameters.put("name", "b");
+            assertEquals("hello b 1 undefined", ScriptEngine.execute(libraries, scripts, parameters, compile).get(scriptFile.getName()));
+        }
+    }
+
+}
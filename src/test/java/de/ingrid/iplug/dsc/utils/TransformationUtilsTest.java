@@ -29,6 +29,8 @@ import java.util.Map;
 
 import org.junit.Test;
 
+import de.ingrid.geo.utils.transformation.CoordTransformUtil.CoordType;
+
 public class TransformationUtilsTest {
 
     @Test
@@ -49,5 +51,26 @@ public class TransformationUtilsTest {
         
         assertEquals("20211220185853321", tu.millisecondsToTimestamp("1640023133321"));
     }
-    
+
+    @Test
+    public void testTransformPointsToWGS84() {
+        TransformationUtils tu = new TransformationUtils(null);
+        CoordType coordType = CoordType.values()[0];
+        double[] coords = { 3500000.0, 5800000.0, 3510000.0, 5810000.0, 3500000.0, 5800000.0 };
+
+        double[] transformed = tu.transformPointsToWGS84(coords, coordType);
+        assertEquals(coords.length, transformed.length);
+        // same result as the single point transformation, repeated points from the memo
+        String[] point = tu.transformPointToWGS84("3510000.0", "5810000.0", coordType);
+        assertEquals(point[0], Double.toString(transformed[2]));
+        assertEquals(point[1], Double.toString(transformed[3]));
+        assertEquals(transformed[0], transformed[4], 0);
+        assertEquals(transformed[1], transformed[5], 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransformPointsToWGS84OddCoordinates() {
+        new TransformationUtils(null).transformPointsToWGS84(new double[] { 1.0 }, CoordType.values()[0]);
+    }
+
 }